@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
+
+import java.text.ParseException;
+
+/**
+ * A compiled five-field cron expression (minute, hour, day of month, month, day of week).
+ *
+ * Each field is compiled into a bitmask so finding the next fire time is a matter of scanning for the next set bit in
+ * each field rather than stepping through candidate times. Fields support "*", single values, ranges ("1-5"), steps
+ * ("*&#47;15", "0-30/10") and comma-separated lists of these; months and days of the week also accept three letter
+ * names (JAN, MON, etc.) and day of week 7 is Sunday. The @yearly, @annually, @monthly, @weekly, @daily, @midnight
+ * and @hourly shortcuts are also supported.
+ *
+ * As with standard cron, if both the day of month and day of week are restricted a day matches if either does. Times
+ * that don't exist because of a DST change are moved forward and times that occur twice only match once.
+ */
+public class CronExpression {
+    private static final Chronology CHRONO = ISOChronology.getInstanceUTC();
+    private static final long MINUTE = 60000L;
+    private static final long HOUR = 3600000L;
+    private static final long DAY = 86400000L;
+    private static final String[] MONTH_NAMES = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+    private static final String[] DAY_NAMES = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+
+    /**
+     * The number of years to search before concluding an expression never matches (e.g. "0 0 30 2 *"). Leap days can
+     * be up to 8 years apart.
+     */
+    static final int MAX_YEARS = 9;
+
+    private final String expression;
+    private final long minutes;
+    private final long hours;
+    private final long daysOfMonth;
+    private final long months;
+    private final long daysOfWeek;
+    private final boolean dayOfMonthRestricted;
+    private final boolean dayOfWeekRestricted;
+    // the days of a month matching the day of week field, indexed by the day of week the month starts on
+    private final long[] weekdayDays = new long[7];
+
+    private CronExpression(String expression, long minutes, long hours, long daysOfMonth, long months, long daysOfWeek, boolean dayOfMonthRestricted, boolean dayOfWeekRestricted) {
+        this.expression = expression;
+        this.minutes = minutes;
+        this.hours = hours;
+        this.daysOfMonth = daysOfMonth;
+        this.months = months;
+        this.daysOfWeek = daysOfWeek;
+        this.dayOfMonthRestricted = dayOfMonthRestricted;
+        this.dayOfWeekRestricted = dayOfWeekRestricted;
+
+        for (int first = 0; first < 7; first++) {
+            for (int d = 1; d <= 31; d++) {
+                if ((daysOfWeek & (1L << ((first + d - 1) % 7))) != 0) {
+                    weekdayDays[first] |= 1L << d;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles a cron expression.
+     *
+     * @param expression the expression (e.g. "0 6 * * MON-FRI")
+     *
+     * @return a CronExpression
+     *
+     * @throws ParseException if the expression is invalid
+     */
+    public static CronExpression parse(String expression) throws ParseException {
+        if (expression == null) {
+            throw new ParseException("Cron expression is null", 0);
+        }
+        String s = expression.trim();
+        switch (s.toLowerCase()) {
+            case "@yearly":
+            case "@annually":
+                s = "0 0 1 1 *";
+                break;
+            case "@monthly":
+                s = "0 0 1 * *";
+                break;
+            case "@weekly":
+                s = "0 0 * * 0";
+                break;
+            case "@daily":
+            case "@midnight":
+                s = "0 0 * * *";
+                break;
+            case "@hourly":
+                s = "0 * * * *";
+                break;
+        }
+
+        String[] fields = s.split("\\s+");
+        if (fields.length != 5) {
+            throw new ParseException("Cron expression must have 5 fields: " + expression, 0);
+        }
+
+        long dow = parseField(fields[4], 0, 7, DAY_NAMES, 0);
+        // 7 is an alias for Sunday
+        if ((dow & (1L << 7)) != 0) {
+            dow = (dow | 1L) & ~(1L << 7);
+        }
+
+        return new CronExpression(
+            expression.trim(),
+            parseField(fields[0], 0, 59, null, 0),
+            parseField(fields[1], 0, 23, null, 0),
+            parseField(fields[2], 1, 31, null, 0),
+            parseField(fields[3], 1, 12, MONTH_NAMES, 1),
+            dow,
+            !isWildcard(fields[2]),
+            !isWildcard(fields[4])
+        );
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public long getMinutes() {
+        return minutes;
+    }
+
+    public long getHours() {
+        return hours;
+    }
+
+    public long getDaysOfMonth() {
+        return daysOfMonth;
+    }
+
+    public long getMonths() {
+        return months;
+    }
+
+    public long getDaysOfWeek() {
+        return daysOfWeek;
+    }
+
+    /**
+     * Returns the first time after a point in time that the expression matches.
+     *
+     * @param after the point in time
+     * @param tz the time zone the expression is evaluated in
+     *
+     * @return a time in epoch milliseconds or -1 if the expression never matches
+     */
+    public long next(long after, DateTimeZone tz) {
+        long local = tz.convertUTCToLocal(after);
+        local = local - floorMod(local, MINUTE) + MINUTE;
+        int lastYear = CHRONO.year().get(local) + MAX_YEARS;
+
+        while (true) {
+            int year = CHRONO.year().get(local);
+            if (year > lastYear) {
+                return -1;
+            }
+
+            // month
+            int month = CHRONO.monthOfYear().get(local);
+            if ((months & (1L << month)) == 0) {
+                int m = nextBit(months, month + 1);
+                local = (m > 0 && m <= 12) ? CHRONO.getDateTimeMillis(year, m, 1, 0) : CHRONO.getDateTimeMillis(year + 1, nextBit(months, 1), 1, 0);
+                continue;
+            }
+
+            // day
+            int day = CHRONO.dayOfMonth().get(local);
+            int d = nextBit(getDays(local, day), day);
+            if (d < 0) {
+                local = (month == 12) ? CHRONO.getDateTimeMillis(year + 1, 1, 1, 0) : CHRONO.getDateTimeMillis(year, month + 1, 1, 0);
+                continue;
+            } else if (d != day) {
+                local = local - floorMod(local, DAY) + (d - day) * DAY;
+            }
+
+            // hour
+            int hour = CHRONO.hourOfDay().get(local);
+            int h = nextBit(hours, hour);
+            if (h < 0) {
+                local = local - floorMod(local, DAY) + DAY;
+                continue;
+            } else if (h != hour) {
+                local = local - floorMod(local, DAY) + h * HOUR;
+            }
+
+            // minute
+            int minute = CHRONO.minuteOfHour().get(local);
+            int m = nextBit(minutes, minute);
+            if (m < 0) {
+                local = local - floorMod(local, HOUR) + HOUR;
+                continue;
+            } else if (m != minute) {
+                local = local - floorMod(local, HOUR) + m * MINUTE;
+            }
+
+            // a local time in a DST overlap resolves to its first occurrence so it may fall before the starting point
+            long t = tz.convertLocalToUTC(local, false);
+            if (t > after) {
+                return t;
+            }
+            local += MINUTE;
+        }
+    }
+
+    /**
+     * Returns the days of the month a point in time falls in that match the expression.
+     *
+     * @param local the point in (local) time
+     * @param day its day of the month
+     *
+     * @return a bitmask with bit 1 representing the first day of the month
+     */
+    private long getDays(long local, int day) {
+        int length = CHRONO.dayOfMonth().getMaximumValue(local);
+        long valid = (1L << (length + 1)) - 2;
+        if (!dayOfWeekRestricted) {
+            return daysOfMonth & valid;
+        }
+        // the day of week of the 1st, where 0 is Sunday
+        int first = floorMod(CHRONO.dayOfWeek().get(local) - (day - 1), 7);
+        long dow = weekdayDays[first];
+        return (dayOfMonthRestricted ? (daysOfMonth | dow) : dow) & valid;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Returns the index of the lowest set bit at or above a position.
+     *
+     * @param mask the bitmask
+     * @param from the position
+     *
+     * @return a bit index or -1 if there are none
+     */
+    static int nextBit(long mask, int from) {
+        if (from > 63) {
+            return -1;
+        }
+        long m = mask & (-1L << from);
+        return (m != 0) ? Long.numberOfTrailingZeros(m) : -1;
+    }
+
+    static long parseField(String field, int min, int max, String[] names, int nameBase) throws ParseException {
+        long mask = 0;
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash > -1) {
+                step = parseValue(part.substring(slash + 1), 1, max, null, 0);
+                part = part.substring(0, slash);
+            }
+
+            int start;
+            int end;
+            if ("*".equals(part) || "?".equals(part)) {
+                start = min;
+                end = max;
+            } else {
+                int dash = part.indexOf('-', 1);
+                if (dash > -1) {
+                    start = parseValue(part.substring(0, dash), min, max, names, nameBase);
+                    end = parseValue(part.substring(dash + 1), min, max, names, nameBase);
+                    if (end < start) {
+                        throw new ParseException("Invalid cron range: " + part, 0);
+                    }
+                } else {
+                    start = parseValue(part, min, max, names, nameBase);
+                    // "5/15" means every 15 starting at 5
+                    end = (slash > -1) ? max : start;
+                }
+            }
+
+            for (int i = start; i <= end; i += step) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    private static boolean isWildcard(String field) {
+        return (field.startsWith("*") || field.startsWith("?"));
+    }
+
+    private static int parseValue(String s, int min, int max, String[] names, int nameBase) throws ParseException {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equalsIgnoreCase(s)) {
+                    return i + nameBase;
+                }
+            }
+        }
+        try {
+            int v = Integer.parseInt(s);
+            if (v < min || v > max) {
+                throw new ParseException("Cron value out of range: " + s, 0);
+            }
+            return v;
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid cron value: " + s, 0);
+        }
+    }
+
+    private static long floorMod(long x, long y) {
+        long r = x % y;
+        return (r < 0) ? r + y : r;
+    }
+
+    private static int floorMod(int x, int y) {
+        int r = x % y;
+        return (r < 0) ? r + y : r;
+    }
+}
@@ -18,13 +18,22 @@ import com.whizzosoftware.hobson.api.plugin.PluginType;
 import com.whizzosoftware.hobson.api.property.PropertyContainer;
 import com.whizzosoftware.hobson.api.property.TypedProperty;
 import com.whizzosoftware.hobson.scheduler.condition.ScheduleConditionClass;
+import com.whizzosoftware.hobson.scheduler.condition.TimeWindowConditionClass;
 import com.whizzosoftware.hobson.scheduler.queue.LocalTaskQueue;
+import com.whizzosoftware.hobson.scheduler.queue.NettyTaskQueue;
+import com.whizzosoftware.hobson.scheduler.queue.SchedulerCore;
+import com.whizzosoftware.hobson.scheduler.queue.SharedTaskQueue;
+import com.whizzosoftware.hobson.scheduler.queue.TaskQueue;
+import com.whizzosoftware.hobson.scheduler.queue.TriggerDispatcher;
 import com.whizzosoftware.hobson.scheduler.ical.ICalTaskProvider;
+import com.whizzosoftware.hobson.scheduler.ical.SchedulerDiagnostics;
 import com.whizzosoftware.hobson.scheduler.util.SolarHelper;
+import io.netty.util.Timer;
 import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.*;
 
 /**
@@ -37,14 +46,39 @@ public class SchedulerPlugin extends AbstractHobsonPlugin implements DayResetLis
 
     private static final String SUNRISE = "sunrise";
     private static final String SUNSET = "sunset";
+    private static final String PROP_SPREAD_WINDOW = "spreadWindow";
+    private static final String PROP_QUEUE_BACKEND = "queueBackend";
+    private static final String PROP_DISPATCH_THREADS = "dispatchThreads";
+    private static final String PROP_TICK_RESOLUTION = "tickResolution";
+    private static final String PROP_UPDATE_COALESCE_WINDOW = "updateCoalesceWindow";
+    private static final String PROP_SUBSCRIPTIONS = "subscriptions";
+    private static final String BACKEND_LOCAL = "local";
+    private static final String BACKEND_WHEEL = "wheel";
+    private static final String BACKEND_SHARED = "shared";
+    private static final int DEFAULT_UPDATE_COALESCE_WINDOW = 250;
 
     private Double latitude;
     private Double longitude;
+    private String queueConfig;
+    private SchedulerCore core;
+    private volatile Timer wheelTimer;
+    private volatile List<File> subscriptions = Collections.emptyList();
 
     public SchedulerPlugin(String pluginId, String version, String description) {
         super(pluginId, version, description);
     }
 
+    /**
+     * Sets a Netty timer owned by the hub for the wheel queue backend to use instead of creating its own. The hub API
+     * doesn't expose its timer, so unless the embedding environment calls this before startup, the wheel backend
+     * runs a dedicated timer thread.
+     *
+     * @param timer the timer (or null to use a dedicated one)
+     */
+    public void setWheelTimer(Timer timer) {
+        this.wheelTimer = timer;
+    }
+
     @Override
     public void onStartup(PropertyContainer config) {
         // get latitude and longitude
@@ -53,48 +87,82 @@ public class SchedulerPlugin extends AbstractHobsonPlugin implements DayResetLis
 
         // create an ical task provider
         ICalTaskProvider taskProvider = new ICalTaskProvider(getContext(), latitude, longitude);
-        taskProvider.setScheduleExecutor(new LocalTaskQueue(getTaskManager()));
+        taskProvider.setScheduleExecutor(createTaskQueue(config));
+        if (core != null) {
+            taskProvider.setHousekeepingExecutor(core.getHousekeepingExecutor());
+        }
         taskProvider.setTaskManager(getTaskManager());
         taskProvider.setDayResetListener(this);
+        taskProvider.setSpreadWindow(getIntegerConfiguration(config, PROP_SPREAD_WINDOW, 0));
+        taskProvider.setUpdateCoalesceWindow(getIntegerConfiguration(config, PROP_UPDATE_COALESCE_WINDOW, DEFAULT_UPDATE_COALESCE_WINDOW));
         taskProvider.start();
+
+        // tasks registered from here on are only queued; they're planned in the background below so that a large
+        // hub doesn't hold up startup
+        taskProvider.beginWarmup();
         setTaskProvider(taskProvider);
 
         // publish conditions that this plugin can trigger
         publishTaskConditionClass(new ScheduleConditionClass(getContext()));
+        publishTaskConditionClass(new TimeWindowConditionClass(getContext(), taskProvider.getSolarCache(), taskProvider.getTimeZone()));
 
-        // set the initial sunrise and sunset
-        String sunrise = null;
-        String sunset = null;
-        Long lastUpdate = null;
-        String ss[] = SolarHelper.getSunriseSunset(latitude, longitude, DateTimeZone.getDefault(), System.currentTimeMillis());
-        if (ss != null) {
-            sunrise = ss[0];
-            sunset = ss[1];
-            lastUpdate = System.currentTimeMillis();
-        }
+        setStatus(new PluginStatus(PluginStatus.Code.INITIALIZING));
 
-        // publish sunrise/sunset global variables
-        Map<String,Object> vars = new HashMap<>();
-        vars.put(SUNRISE, sunrise);
-        vars.put(SUNSET, sunset);
-        setGlobalVariables(vars, lastUpdate != null ? lastUpdate : System.currentTimeMillis());
+        // the sunrise and sunset variables only depend on the hub location so they're set before planning starts
+        updateSunriseSunset(System.currentTimeMillis());
 
-        // set the plugin to running status
-        setStatus(new PluginStatus(PluginStatus.Code.RUNNING));
+        // plan the tasks once the hub has registered them, then start syncing subscriptions
+        subscriptions = getFileListConfiguration(config, PROP_SUBSCRIPTIONS);
+        taskProvider.completeWarmup(new ReadinessListener() {
+            @Override
+            public void onReady(int plannedCount, int caughtUpCount) {
+                ICalTaskProvider provider = (ICalTaskProvider)getTaskProvider();
+                if (provider != null) {
+                    provider.setSubscriptions(subscriptions);
+
+                    // set the plugin to running status
+                    setStatus(new PluginStatus(PluginStatus.Code.RUNNING));
+                }
+            }
+        });
     }
 
     @Override
     public void onShutdown() {
         ((ICalTaskProvider)getTaskProvider()).stop();
+        if (core != null) {
+            SchedulerCore.release(core);
+            core = null;
+        }
     }
 
     @Override
     public void onPluginConfigurationUpdate(PropertyContainer config) {
+        ICalTaskProvider taskProvider = (ICalTaskProvider)getTaskProvider();
+        if (taskProvider != null) {
+            taskProvider.setSpreadWindow(getIntegerConfiguration(config, PROP_SPREAD_WINDOW, 0));
+            taskProvider.setUpdateCoalesceWindow(getIntegerConfiguration(config, PROP_UPDATE_COALESCE_WINDOW, DEFAULT_UPDATE_COALESCE_WINDOW));
+
+            subscriptions = getFileListConfiguration(config, PROP_SUBSCRIPTIONS);
+            taskProvider.setSubscriptions(subscriptions);
+
+            // only replace the task queue if its configuration has actually changed
+            if (!createQueueConfig(config).equals(queueConfig)) {
+                taskProvider.migrateScheduleExecutor(createTaskQueue(config));
+            }
+        }
     }
 
     @Override
     protected TypedProperty[] getConfigurationPropertyTypes() {
-        return null;
+        return new TypedProperty[] {
+            new TypedProperty.Builder(PROP_SPREAD_WINDOW, "Spread window", "The number of seconds either side of their scheduled time that tasks can be moved to smooth load when many tasks share the same time", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_QUEUE_BACKEND, "Queue backend", "The timer used to queue tasks: local (a dedicated timer thread), wheel (a hashed wheel timer) or shared (threads shared with every other hub in this process)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder(PROP_DISPATCH_THREADS, "Dispatch threads", "The number of threads used to fire due tasks", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_TICK_RESOLUTION, "Tick resolution", "The number of milliseconds between ticks of the wheel backend", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_UPDATE_COALESCE_WINDOW, "Update coalescing window", "The number of milliseconds during which repeated updates to a task are collapsed into one", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_SUBSCRIPTIONS, "Calendar subscriptions", "A comma-separated list of local .ics files to sync tasks from", TypedProperty.Type.STRING).build()
+        };
     }
 
     @Override
@@ -107,6 +175,18 @@ public class SchedulerPlugin extends AbstractHobsonPlugin implements DayResetLis
         return "Hobson Scheduler";
     }
 
+    /**
+     * Returns a snapshot of the scheduler's internal state for troubleshooting.
+     *
+     * @param maxFires the maximum number of upcoming fires to include
+     *
+     * @return a SchedulerDiagnostics instance (or null if the plugin hasn't started)
+     */
+    public SchedulerDiagnostics getDiagnostics(int maxFires) {
+        ICalTaskProvider taskProvider = (ICalTaskProvider)getTaskProvider();
+        return (taskProvider != null) ? taskProvider.getDiagnostics(maxFires) : null;
+    }
+
     @EventHandler
     public void onHubConfigurationUpdate(HubConfigurationUpdateEvent event) {
         updateLatitudeLongitude(getHubLatitude(), getHubLongitude());
@@ -120,6 +200,84 @@ public class SchedulerPlugin extends AbstractHobsonPlugin implements DayResetLis
         updateSunriseSunset(now);
     }
 
+    private TaskQueue createTaskQueue(PropertyContainer config) {
+        String backend = getStringConfiguration(config, PROP_QUEUE_BACKEND, BACKEND_LOCAL);
+        int dispatchThreads = Math.max(1, getIntegerConfiguration(config, PROP_DISPATCH_THREADS, TriggerDispatcher.DEFAULT_THREAD_COUNT));
+        queueConfig = createQueueConfig(config);
+        if (BACKEND_SHARED.equalsIgnoreCase(backend)) {
+            // the shared core is kept until shutdown since the provider may be using its housekeeping executor
+            if (core == null) {
+                core = SchedulerCore.acquire(getIntegerConfiguration(config, PROP_DISPATCH_THREADS, SchedulerCore.DEFAULT_DISPATCH_THREADS));
+            }
+            logger.info("Using shared task queue ({} dispatch thread(s) shared by {} hub(s))", core.getDispatchThreadCount(), core.getTenantCount() + 1);
+            return new SharedTaskQueue(core, getTaskManager());
+        } else if (BACKEND_WHEEL.equalsIgnoreCase(backend)) {
+            Timer timer = wheelTimer;
+            if (timer != null) {
+                logger.info("Using wheel task queue on the hub's timer ({} dispatch thread(s))", dispatchThreads);
+                return new NettyTaskQueue(getTaskManager(), timer, dispatchThreads);
+            }
+            long tick = Math.max(1, getIntegerConfiguration(config, PROP_TICK_RESOLUTION, (int)NettyTaskQueue.DEFAULT_TICK_MS));
+            logger.info("Using wheel task queue ({}ms ticks on a dedicated timer thread, {} dispatch thread(s))", tick, dispatchThreads);
+            return new NettyTaskQueue(getTaskManager(), tick, dispatchThreads);
+        } else {
+            if (!BACKEND_LOCAL.equalsIgnoreCase(backend)) {
+                logger.error("Unknown queue backend {}; using {}", backend, BACKEND_LOCAL);
+            }
+            logger.info("Using local task queue ({} dispatch thread(s))", dispatchThreads);
+            return new LocalTaskQueue(getTaskManager(), dispatchThreads);
+        }
+    }
+
+    private String createQueueConfig(PropertyContainer config) {
+        String backend = getStringConfiguration(config, PROP_QUEUE_BACKEND, BACKEND_LOCAL).toLowerCase();
+        if (BACKEND_SHARED.equals(backend)) {
+            // the shared core's thread count is fixed once it's created
+            return backend;
+        }
+        StringBuilder sb = new StringBuilder(backend).append(",").append(getIntegerConfiguration(config, PROP_DISPATCH_THREADS, TriggerDispatcher.DEFAULT_THREAD_COUNT));
+        if (BACKEND_WHEEL.equals(backend)) {
+            sb.append(",").append(getIntegerConfiguration(config, PROP_TICK_RESOLUTION, (int)NettyTaskQueue.DEFAULT_TICK_MS));
+        }
+        return sb.toString();
+    }
+
+    private List<File> getFileListConfiguration(PropertyContainer config, String name) {
+        List<File> files = new ArrayList<>();
+        String s = getStringConfiguration(config, name, null);
+        if (s != null) {
+            for (String path : s.split(",")) {
+                path = path.trim();
+                if (path.length() > 0) {
+                    files.add(new File(path));
+                }
+            }
+        }
+        return files;
+    }
+
+    private String getStringConfiguration(PropertyContainer config, String name, String defaultValue) {
+        if (config != null && config.hasPropertyValue(name)) {
+            Object o = config.getPropertyValue(name);
+            if (o != null && o.toString().trim().length() > 0) {
+                return o.toString().trim();
+            }
+        }
+        return defaultValue;
+    }
+
+    private int getIntegerConfiguration(PropertyContainer config, String name, int defaultValue) {
+        if (config != null && config.hasPropertyValue(name)) {
+            Object o = config.getPropertyValue(name);
+            try {
+                return (o instanceof Number) ? ((Number)o).intValue() : Integer.parseInt(o.toString().trim());
+            } catch (NumberFormatException e) {
+                logger.error("Invalid value for configuration property {}: {}", name, o);
+            }
+        }
+        return defaultValue;
+    }
+
     private Double getHubLatitude() {
         return (Double)getLocalHub().getConfiguration().getPropertyValue(HubConfigurationClass.LATITUDE);
     }
@@ -26,6 +26,9 @@ import java.util.List;
  */
 public class ScheduleConditionClass extends TaskConditionClass {
     public static final String SCHEDULE_CONDITION_CLASS_ID = "schedule";
+    public static final String PROP_SOURCE = "source";
+    public static final String PROP_CRON = "cron";
+    public static final String PROP_EXCLUDED_DATES = "exdate";
 
     public ScheduleConditionClass(PluginContext context) {
         super(PropertyContainerClassContext.create(context, SCHEDULE_CONDITION_CLASS_ID), "A scheduled time occurs", "The time is {time} on {date} repeating {recurrence}");
@@ -48,13 +51,30 @@ public class ScheduleConditionClass extends TaskConditionClass {
             constraint(PropertyConstraintType.required, true).
             build()
         );
-        props.add(new TypedProperty.Builder("time", "Start time", "The time of day the task will occur", TypedProperty.Type.TIME).
-            constraint(PropertyConstraintType.required, true).
+        props.add(new TypedProperty.Builder("time", "Start time", "The time of day the task will occur; required unless a cron expression is set", TypedProperty.Type.TIME).
             build()
         );
         props.add(new TypedProperty.Builder("recurrence", "Repeat", "How often the task should repeat", TypedProperty.Type.RECURRENCE).
             build()
         );
+        props.add(new TypedProperty.Builder("timeZone", "Time zone", "The time zone the start time is in (e.g. America/Denver); defaults to the hub's time zone", TypedProperty.Type.STRING).
+            build()
+        );
+        props.add(new TypedProperty.Builder("priority", "Priority", "The priority of the task when many tasks are due at once (high, normal or low)", TypedProperty.Type.STRING).
+            build()
+        );
+        props.add(new TypedProperty.Builder("spread", "Spread window", "The number of seconds either side of the scheduled time the task can be moved to smooth load when many tasks share the same time", TypedProperty.Type.NUMBER).
+            build()
+        );
+        props.add(new TypedProperty.Builder(PROP_CRON, "Cron expression", "A cron schedule to use instead of the start time and repeat (e.g. */15 6-22 * * MON-FRI); the start date, if any, is the first day it applies", TypedProperty.Type.STRING).
+            build()
+        );
+        props.add(new TypedProperty.Builder(PROP_EXCLUDED_DATES, "Excluded dates", "A comma-separated list of occurrences of the repeat to skip (e.g. 20150105T090000 or 20150105)", TypedProperty.Type.STRING).
+            build()
+        );
+        props.add(new TypedProperty.Builder(PROP_SOURCE, "Source", "The subscribed calendar event the task is synced from (e.g. /path/to/calendar.ics#UID)", TypedProperty.Type.STRING).
+            build()
+        );
         return props;
     }
 }
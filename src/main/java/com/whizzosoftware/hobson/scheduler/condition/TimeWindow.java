@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.condition;
+
+import com.whizzosoftware.hobson.scheduler.SolarOffset;
+import com.whizzosoftware.hobson.scheduler.util.DayBoundaryTable;
+import com.whizzosoftware.hobson.scheduler.util.SolarCache;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.text.ParseException;
+
+/**
+ * A compiled daily time window (e.g. "sunset-30 to 23:00 on weekdays").
+ *
+ * Each boundary is either a time of day or an offset from sunrise or sunset. The window is resolved to absolute
+ * instants once per day (and again if the solar cache's location changes) so contains() is a handful of primitive
+ * comparisons that don't allocate. A window whose end is at or before its start runs past midnight and belongs to
+ * the day it starts on.
+ */
+public class TimeWindow {
+    public static final int ALL_DAYS = 0x7f;
+
+    private final Boundary start;
+    private final Boundary end;
+    private final int dayMask;
+    private final DateTimeZone timeZone;
+    private final SolarCache solarCache;
+    private volatile Day day;
+
+    TimeWindow(Boundary start, Boundary end, int dayMask, DateTimeZone timeZone, SolarCache solarCache) {
+        this.start = start;
+        this.end = end;
+        this.dayMask = dayMask;
+        this.timeZone = timeZone;
+        this.solarCache = solarCache;
+    }
+
+    /**
+     * Compiles a time window.
+     *
+     * @param start the start boundary: a time of day (e.g. 18:30 or 183000) or a solar offset (e.g. SS-30)
+     * @param end the end boundary
+     * @param days a comma-separated list of days (MO, TU, ..., SU, WEEKDAYS or WEEKENDS) or null for every day
+     * @param timeZone the time zone times of day are in
+     * @param solarCache the cache used to look up sunrise and sunset (only needed if a boundary is a solar offset)
+     *
+     * @return a TimeWindow
+     *
+     * @throws ParseException if a boundary or day can't be parsed
+     */
+    public static TimeWindow compile(String start, String end, String days, DateTimeZone timeZone, SolarCache solarCache) throws ParseException {
+        if (start == null || end == null) {
+            throw new ParseException("A time window requires a start and an end", 0);
+        }
+        return new TimeWindow(Boundary.parse(start), Boundary.parse(end), parseDays(days), timeZone, solarCache);
+    }
+
+    /**
+     * Indicates whether a point in time falls inside the window. This is false if the window needs sunrise or sunset
+     * and no location has been set.
+     *
+     * @param now the point in time
+     *
+     * @return a boolean
+     */
+    public boolean contains(long now) {
+        Day d = day;
+        if (d == null || now < d.start || now >= d.nextStart || (solarCache != null && d.generation != solarCache.getGeneration() && isSolar())) {
+            d = resolve(now);
+            day = d;
+        }
+        return (d.carryEnd > 0 && now < d.carryEnd) || (d.windowStart > 0 && now >= d.windowStart && now < d.windowEnd);
+    }
+
+    public int getDayMask() {
+        return dayMask;
+    }
+
+    public DateTimeZone getTimeZone() {
+        return timeZone;
+    }
+
+    public boolean isSolar() {
+        return (start.solarOffset != null || end.solarOffset != null);
+    }
+
+    /**
+     * Resolves the window for the day a point in time falls in, including the tail of a window carried over from the
+     * previous day.
+     *
+     * @param now the point in time
+     *
+     * @return a Day
+     */
+    private Day resolve(long now) {
+        int generation = (solarCache != null) ? solarCache.getGeneration() : 0;
+        long dayStart = DayBoundaryTable.getStartOfDay(now, timeZone);
+        long nextStart = DayBoundaryTable.getStartOfNextDay(now, timeZone);
+        LocalDate today = new LocalDate(now, timeZone);
+        LocalDate yesterday = today.minusDays(1);
+        LocalDate tomorrow = today.plusDays(1);
+
+        long windowStart = 0;
+        long windowEnd = 0;
+        if (isEnabled(today)) {
+            long s = start.resolve(today, timeZone, solarCache);
+            long e = end.resolve(today, timeZone, solarCache);
+            if (s > 0 && e > 0) {
+                if (e <= s) {
+                    e = end.resolve(tomorrow, timeZone, solarCache);
+                }
+                windowStart = s;
+                windowEnd = e;
+            }
+        }
+
+        long carryEnd = 0;
+        if (isEnabled(yesterday)) {
+            long s = start.resolve(yesterday, timeZone, solarCache);
+            long e = end.resolve(yesterday, timeZone, solarCache);
+            if (s > 0 && e > 0 && e <= s) {
+                carryEnd = end.resolve(today, timeZone, solarCache);
+            }
+        }
+
+        return new Day(dayStart, nextStart, windowStart, windowEnd, carryEnd, generation);
+    }
+
+    private boolean isEnabled(LocalDate date) {
+        return ((dayMask & (1 << (date.getDayOfWeek() - DateTimeConstants.MONDAY))) != 0);
+    }
+
+    static int parseDays(String days) throws ParseException {
+        if (days == null || days.trim().length() == 0) {
+            return ALL_DAYS;
+        }
+        int mask = 0;
+        for (String d : days.split(",")) {
+            switch (d.trim().toUpperCase()) {
+                case "MO":
+                    mask |= 1;
+                    break;
+                case "TU":
+                    mask |= 1 << 1;
+                    break;
+                case "WE":
+                    mask |= 1 << 2;
+                    break;
+                case "TH":
+                    mask |= 1 << 3;
+                    break;
+                case "FR":
+                    mask |= 1 << 4;
+                    break;
+                case "SA":
+                    mask |= 1 << 5;
+                    break;
+                case "SU":
+                    mask |= 1 << 6;
+                    break;
+                case "WEEKDAYS":
+                    mask |= 0x1f;
+                    break;
+                case "WEEKENDS":
+                    mask |= 0x60;
+                    break;
+                default:
+                    throw new ParseException("Invalid day: " + d, 0);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * One end of the window.
+     */
+    static class Boundary {
+        private final int secondOfDay;
+        private final SolarOffset solarOffset;
+
+        private Boundary(int secondOfDay, SolarOffset solarOffset) {
+            this.secondOfDay = secondOfDay;
+            this.solarOffset = solarOffset;
+        }
+
+        static Boundary parse(String s) throws ParseException {
+            s = s.trim().toUpperCase();
+            if (s.startsWith("SR") || s.startsWith("SS")) {
+                return new Boundary(0, new SolarOffset(s));
+            }
+
+            String t = s.replace(":", "");
+            if (t.endsWith("Z")) {
+                t = t.substring(0, t.length() - 1);
+            }
+            if ((t.length() != 4 && t.length() != 6) || !isDigits(t)) {
+                throw new ParseException("Invalid time: " + s, 0);
+            }
+            int h = Integer.parseInt(t.substring(0, 2));
+            int m = Integer.parseInt(t.substring(2, 4));
+            int sec = (t.length() == 6) ? Integer.parseInt(t.substring(4, 6)) : 0;
+            if (h > 23 || m > 59 || sec > 59) {
+                throw new ParseException("Invalid time: " + s, 0);
+            }
+            return new Boundary(h * 3600 + m * 60 + sec, null);
+        }
+
+        /**
+         * Returns the instant the boundary falls at on a day. A time of day that doesn't exist because of a DST
+         * change is moved forward.
+         *
+         * @param date the day
+         * @param tz the time zone
+         * @param solarCache the solar cache
+         *
+         * @return a time in milliseconds or 0 if sunrise/sunset can't be calculated
+         */
+        long resolve(LocalDate date, DateTimeZone tz, SolarCache solarCache) {
+            if (solarOffset != null) {
+                DateTime dt = (solarCache != null) ? solarCache.getTime(date, tz, solarOffset) : null;
+                return (dt != null) ? dt.getMillis() : 0;
+            } else {
+                long localMillis = date.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis() + secondOfDay * 1000L;
+                return tz.convertLocalToUTC(localMillis, false);
+            }
+        }
+
+        private static boolean isDigits(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (!Character.isDigit(s.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The window resolved to instants for a single day.
+     */
+    private static class Day {
+        final long start;
+        final long nextStart;
+        final long windowStart;
+        final long windowEnd;
+        final long carryEnd;
+        final int generation;
+
+        Day(long start, long nextStart, long windowStart, long windowEnd, long carryEnd, int generation) {
+            this.start = start;
+            this.nextStart = nextStart;
+            this.windowStart = windowStart;
+            this.windowEnd = windowEnd;
+            this.carryEnd = carryEnd;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.condition;
+
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyConstraintType;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
+import com.whizzosoftware.hobson.api.property.TypedProperty;
+import com.whizzosoftware.hobson.api.task.condition.ConditionClassType;
+import com.whizzosoftware.hobson.api.task.condition.ConditionEvaluationContext;
+import com.whizzosoftware.hobson.api.task.condition.TaskConditionClass;
+import com.whizzosoftware.hobson.scheduler.util.SolarCache;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A condition class that is true while the current time is inside a daily window (e.g. between sunset-30 and 23:00
+ * on weekdays).
+ *
+ * Since the rule engine evaluates conditions on every device event, a condition's properties are compiled into a
+ * TimeWindow ahead of time: the provider calls prepare() as tasks are created and updated. Compiled windows are found
+ * again by the identity of the condition's container through a small lock-free table, so evaluating a prepared
+ * condition is an array read followed by TimeWindow.contains() and allocates nothing. Behind that table, compiled
+ * windows are also kept against the condition's trimmed property values, so equal conditions in different containers
+ * share one TimeWindow, and the least recently compiled or prepared are evicted once MAX_COMPILED are kept.
+ * Containers the provider hasn't seen are compiled (or found by value) the first time they're evaluated.
+ */
+public class TimeWindowConditionClass extends TaskConditionClass {
+    private static final Logger logger = LoggerFactory.getLogger(TimeWindowConditionClass.class);
+
+    public static final String TIME_WINDOW_CONDITION_CLASS_ID = "timeWindow";
+    public static final String PROP_START = "start";
+    public static final String PROP_END = "end";
+    public static final String PROP_DAYS = "days";
+    public static final String PROP_TIME_ZONE = "timeZone";
+
+    // a power of two so a container's slot is a mask of its identity hash
+    static final int MAX_COMPILED = 1024;
+
+    private final SolarCache solarCache;
+    private final DateTimeZone timeZone;
+    private final Map<String,TimeWindow> compiled = new LinkedHashMap<String,TimeWindow>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,TimeWindow> eldest) {
+            return (size() > MAX_COMPILED);
+        }
+    };
+    private final AtomicReferenceArray<Prepared> prepared = new AtomicReferenceArray<>(MAX_COMPILED);
+
+    public TimeWindowConditionClass(PluginContext context, SolarCache solarCache, DateTimeZone timeZone) {
+        super(PropertyContainerClassContext.create(context, TIME_WINDOW_CONDITION_CLASS_ID), "The time is within a window", "The time is between {start} and {end} on {days}");
+        this.solarCache = solarCache;
+        this.timeZone = timeZone;
+    }
+
+    @Override
+    public ConditionClassType getConditionClassType() {
+        return ConditionClassType.evaluator;
+    }
+
+    @Override
+    public boolean evaluate(ConditionEvaluationContext context, PropertyContainer values) {
+        TimeWindow w = getTimeWindow(values);
+        return (w != null && w.contains(System.currentTimeMillis()));
+    }
+
+    /**
+     * Compiles a condition ahead of its first evaluation. This is called as tasks are created and updated; calling it
+     * again for the same container (e.g. because its values were changed in place) compiles it again.
+     *
+     * @param values the condition's properties
+     *
+     * @return false if the properties are invalid
+     */
+    public boolean prepare(PropertyContainer values) {
+        return (values != null && lookup(values) != null);
+    }
+
+    /**
+     * Returns the compiled form of a condition, compiling it if necessary.
+     *
+     * @param values the condition's properties
+     *
+     * @return a TimeWindow or null if the properties are invalid
+     */
+    TimeWindow getTimeWindow(PropertyContainer values) {
+        if (values == null) {
+            return null;
+        }
+
+        // the hot path: a container that has already been prepared
+        int slot = System.identityHashCode(values) & (MAX_COMPILED - 1);
+        Prepared p = prepared.get(slot);
+        if (p != null && p.container.get() == values) {
+            return p.window;
+        }
+        p = prepared.get(slot ^ 1);
+        if (p != null && p.container.get() == values) {
+            return p.window;
+        }
+
+        return lookup(values);
+    }
+
+    /**
+     * Finds or compiles a condition's window by value and records it against the container.
+     *
+     * @param values the condition's properties
+     *
+     * @return a TimeWindow or null if the properties are invalid
+     */
+    private TimeWindow lookup(PropertyContainer values) {
+        String key = getString(values, PROP_START) + '|' + getString(values, PROP_END) + '|' + getString(values, PROP_DAYS) + '|' + getString(values, PROP_TIME_ZONE);
+        TimeWindow w;
+        synchronized (compiled) {
+            w = compiled.get(key);
+        }
+        if (w == null) {
+            try {
+                w = compile(values);
+            } catch (ParseException e) {
+                logger.error("Invalid time window condition: {}", e.getMessage());
+                forget(values);
+                return null;
+            }
+            synchronized (compiled) {
+                compiled.put(key, w);
+            }
+        }
+
+        // use whichever of the container's two slots is free (or holds a collected container), else replace the first
+        int slot = System.identityHashCode(values) & (MAX_COMPILED - 1);
+        Prepared p = prepared.get(slot);
+        if (p != null && p.container.get() != null && p.container.get() != values) {
+            Prepared alt = prepared.get(slot ^ 1);
+            if (alt == null || alt.container.get() == null || alt.container.get() == values) {
+                slot ^= 1;
+            }
+        }
+        prepared.set(slot, new Prepared(values, w));
+        return w;
+    }
+
+    /**
+     * Compiles a condition's properties into a TimeWindow.
+     *
+     * @param values the condition's properties
+     *
+     * @return a TimeWindow
+     *
+     * @throws ParseException if the properties are invalid
+     */
+    public TimeWindow compile(PropertyContainer values) throws ParseException {
+        String start = getString(values, PROP_START);
+        String end = getString(values, PROP_END);
+        String tzId = getString(values, PROP_TIME_ZONE);
+
+        // like schedule conditions, times with a Z suffix are UTC unless a time zone is given
+        DateTimeZone tz = timeZone;
+        if (tzId != null) {
+            try {
+                tz = DateTimeZone.forID(tzId);
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Invalid time zone: " + tzId, 0);
+            }
+        } else if ((start != null && start.endsWith("Z")) || (end != null && end.endsWith("Z"))) {
+            tz = DateTimeZone.UTC;
+        }
+
+        return TimeWindow.compile(start, end, getString(values, PROP_DAYS), tz, solarCache);
+    }
+
+    /**
+     * Removes any window recorded against a container (e.g. because its values have been changed to invalid ones).
+     *
+     * @param values the condition's properties
+     */
+    private void forget(PropertyContainer values) {
+        // a container's two slots are an even slot and the odd one after it
+        int base = System.identityHashCode(values) & (MAX_COMPILED - 2);
+        for (int i = base; i <= base + 1; i++) {
+            Prepared p = prepared.get(i);
+            if (p != null && p.container.get() == values) {
+                prepared.compareAndSet(i, p, null);
+            }
+        }
+    }
+
+    /**
+     * A compiled window recorded against the container it was prepared for. The container is weakly referenced so
+     * the table doesn't keep deleted conditions alive.
+     */
+    private static class Prepared {
+        final WeakReference<PropertyContainer> container;
+        final TimeWindow window;
+
+        Prepared(PropertyContainer container, TimeWindow window) {
+            this.container = new WeakReference<>(container);
+            this.window = window;
+        }
+    }
+
+    private String getString(PropertyContainer values, String name) {
+        if (values != null && values.hasPropertyValue(name)) {
+            Object o = values.getPropertyValue(name);
+            if (o != null && o.toString().trim().length() > 0) {
+                return o.toString().trim();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected List<TypedProperty> createProperties() {
+        List<TypedProperty> props = new ArrayList<>();
+        props.add(new TypedProperty.Builder(PROP_START, "Start", "The start of the window as a time of day (e.g. 18:30) or an offset from sunrise or sunset (e.g. SS-30)", TypedProperty.Type.STRING).
+            constraint(PropertyConstraintType.required, true).
+            build()
+        );
+        props.add(new TypedProperty.Builder(PROP_END, "End", "The end of the window as a time of day or an offset from sunrise or sunset; an end before the start runs past midnight", TypedProperty.Type.STRING).
+            constraint(PropertyConstraintType.required, true).
+            build()
+        );
+        props.add(new TypedProperty.Builder(PROP_DAYS, "Days", "The days the window applies on (e.g. MO,TU,WE or WEEKDAYS); defaults to every day", TypedProperty.Type.STRING).
+            build()
+        );
+        props.add(new TypedProperty.Builder(PROP_TIME_ZONE, "Time zone", "The time zone the times are in (e.g. America/Denver); defaults to the hub's time zone", TypedProperty.Type.STRING).
+            build()
+        );
+        return props;
+    }
+}
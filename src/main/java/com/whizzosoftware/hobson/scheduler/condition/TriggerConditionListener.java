@@ -15,5 +15,12 @@ import com.whizzosoftware.hobson.scheduler.ical.ICalTask;
  * @author Dan Noguerol
  */
 public interface TriggerConditionListener {
-    void onTriggerCondition(ICalTask task, long now);
+    /**
+     * Callback when a task's trigger condition occurs.
+     *
+     * @param task the task
+     * @param scheduledTime the time the task was scheduled to run
+     * @param now the time it actually ran
+     */
+    void onTriggerCondition(ICalTask task, long scheduledTime, long now);
 }
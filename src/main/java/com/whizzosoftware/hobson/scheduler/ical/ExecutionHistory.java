@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+/**
+ * The firing history of a single task: its last N scheduled and actual fire times in a pair of primitive ring
+ * buffers, along with a lifetime fire count and a lateness histogram that percentiles are estimated from.
+ *
+ * The histogram has one bucket per power of two milliseconds so percentiles are accurate to within a factor of two,
+ * which is enough to tell a task that fires a few milliseconds late from one that fires seconds late. Recording a
+ * fire doesn't allocate anything.
+ */
+public class ExecutionHistory {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static final int BUCKETS = 64;
+
+    private final long[] scheduledTimes;
+    private final long[] actualTimes;
+    private final long[] latenessBuckets = new long[BUCKETS];
+    private int head;
+    private int size;
+    private long fireCount;
+    private long maxLateness;
+    private long earlyCount;
+
+    public ExecutionHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ExecutionHistory(int capacity) {
+        this.scheduledTimes = new long[capacity];
+        this.actualTimes = new long[capacity];
+    }
+
+    /**
+     * Records a fire.
+     *
+     * @param scheduledTime the time the task was scheduled to fire
+     * @param actualTime the time it actually fired
+     */
+    public synchronized void record(long scheduledTime, long actualTime) {
+        scheduledTimes[head] = scheduledTime;
+        actualTimes[head] = actualTime;
+        head = (head + 1) % scheduledTimes.length;
+        if (size < scheduledTimes.length) {
+            size++;
+        }
+        fireCount++;
+
+        long lateness = actualTime - scheduledTime;
+        if (lateness < 0) {
+            earlyCount++;
+            lateness = 0;
+        }
+        latenessBuckets[getBucket(lateness)]++;
+        if (lateness > maxLateness) {
+            maxLateness = lateness;
+        }
+    }
+
+    public synchronized long getFireCount() {
+        return fireCount;
+    }
+
+    /**
+     * Returns the estimated number of bytes the history occupies.
+     *
+     * @return a number of bytes
+     */
+    public long getEstimatedSize() {
+        return 96 + scheduledTimes.length * 16L + BUCKETS * 8L;
+    }
+
+    /**
+     * Returns a copy of the history.
+     *
+     * @return a Snapshot
+     */
+    public synchronized Snapshot getSnapshot() {
+        long[] scheduled = new long[size];
+        long[] actual = new long[size];
+        int start = (head - size + scheduledTimes.length) % scheduledTimes.length;
+        for (int i = 0; i < size; i++) {
+            int ix = (start + i) % scheduledTimes.length;
+            scheduled[i] = scheduledTimes[ix];
+            actual[i] = actualTimes[ix];
+        }
+        return new Snapshot(scheduled, actual, fireCount, earlyCount, maxLateness, latenessBuckets.clone());
+    }
+
+    /**
+     * Returns the histogram bucket for a lateness: bucket 0 holds 0ms and bucket n holds [2^(n-1), 2^n).
+     *
+     * @param lateness a lateness in milliseconds
+     *
+     * @return a bucket index
+     */
+    static int getBucket(long lateness) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(lateness));
+    }
+
+    /**
+     * A point-in-time copy of a task's history.
+     */
+    public static class Snapshot {
+        private final long[] scheduledTimes;
+        private final long[] actualTimes;
+        private final long fireCount;
+        private final long earlyCount;
+        private final long maxLateness;
+        private final long[] latenessBuckets;
+
+        Snapshot(long[] scheduledTimes, long[] actualTimes, long fireCount, long earlyCount, long maxLateness, long[] latenessBuckets) {
+            this.scheduledTimes = scheduledTimes;
+            this.actualTimes = actualTimes;
+            this.fireCount = fireCount;
+            this.earlyCount = earlyCount;
+            this.maxLateness = maxLateness;
+            this.latenessBuckets = latenessBuckets;
+        }
+
+        /**
+         * Returns the scheduled times of the most recent fires, oldest first.
+         *
+         * @return an array of times
+         */
+        public long[] getScheduledTimes() {
+            return scheduledTimes;
+        }
+
+        /**
+         * Returns the actual times of the most recent fires, oldest first.
+         *
+         * @return an array of times
+         */
+        public long[] getActualTimes() {
+            return actualTimes;
+        }
+
+        /**
+         * Returns the total number of times the task has fired.
+         *
+         * @return a count
+         */
+        public long getFireCount() {
+            return fireCount;
+        }
+
+        /**
+         * Returns the number of times the task fired before its scheduled time (e.g. after the clock was set back).
+         *
+         * @return a count
+         */
+        public long getEarlyCount() {
+            return earlyCount;
+        }
+
+        public long getMaxLateness() {
+            return maxLateness;
+        }
+
+        public long getLastFireTime() {
+            return (actualTimes.length > 0) ? actualTimes[actualTimes.length - 1] : 0;
+        }
+
+        /**
+         * Estimates a lateness percentile over every fire.
+         *
+         * @param percentile the percentile (e.g. 0.99)
+         *
+         * @return the upper bound (in milliseconds) of the histogram bucket the percentile falls in
+         */
+        public long getLatenessPercentile(double percentile) {
+            if (fireCount == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long)Math.ceil(fireCount * percentile));
+            long seen = 0;
+            for (int i = 0; i < latenessBuckets.length; i++) {
+                seen += latenessBuckets[i];
+                if (seen >= target) {
+                    return (i == 0) ? 0 : (i >= 63 ? maxLateness : Math.min(maxLateness, (1L << i) - 1));
+                }
+            }
+            return maxLateness;
+        }
+
+        @Override
+        public String toString() {
+            return "fires=" + fireCount + ", p50=" + getLatenessPercentile(0.5) + "ms, p99=" + getLatenessPercentile(0.99) + "ms, max=" + maxLateness + "ms, early=" + earlyCount;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainerSet;
+import com.whizzosoftware.hobson.api.task.TaskManager;
+import com.whizzosoftware.hobson.scheduler.condition.ScheduleConditionClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Imports the VEVENTs in an .ics file as scheduled tasks.
+ *
+ * The file is read a line at a time and only the event currently being parsed is held in memory, so memory use
+ * doesn't depend on the size of the file. Each event's DTSTART (including any TZID), RRULE, EXDATE, X-SUN-OFFSET and
+ * X-CRON are converted into a schedule trigger condition; SUMMARY and DESCRIPTION become the task's name and
+ * description. Modified instances of recurring events (those with a RECURRENCE-ID) are skipped since a task can't
+ * override a single occurrence; importing one as a task of its own would run the occurrence twice.
+ * Parsed events are collected into batches of batchSize and progress is logged after each batch; the TaskManager has
+ * no bulk create so each task in a batch is still created with its own call. Tasks are created with an empty action
+ * set. Other components (e.g. VTIMEZONE and VTODO) are skipped since time zones are resolved by ID.
+ */
+public class ICalImporter {
+    private static final Logger logger = LoggerFactory.getLogger(ICalImporter.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private TaskManager taskManager;
+    private PluginContext pluginContext;
+    private PropertyContainerClassContext conditionClassContext;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean dryRun;
+
+    public ICalImporter(TaskManager taskManager, PluginContext pluginContext) {
+        this.taskManager = taskManager;
+        this.pluginContext = pluginContext;
+        this.conditionClassContext = PropertyContainerClassContext.create(pluginContext, ScheduleConditionClass.SCHEDULE_CONDITION_CLASS_ID);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets whether events should only be parsed and validated rather than created as tasks.
+     *
+     * @param dryRun whether this is a dry run
+     */
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public Result importFile(File file) throws IOException {
+        try (Reader r = new InputStreamReader(new FileInputStream(file), UTF8)) {
+            return importFrom(r);
+        }
+    }
+
+    public Result importFrom(InputStream is) throws IOException {
+        return importFrom(new InputStreamReader(is, UTF8));
+    }
+
+    /**
+     * Imports all events from a reader. The reader is not closed.
+     *
+     * @param reader the reader
+     *
+     * @return the result of the import
+     *
+     * @throws IOException on failure
+     */
+    public Result importFrom(Reader reader) throws IOException {
+        Result result = new Result();
+        List<ImportedEvent> batch = new ArrayList<>(batchSize);
+        ContentLineReader lines = new ContentLineReader(reader);
+        ImportedEvent event = null;
+        int depth = 0;
+        String line;
+
+        while ((line = lines.next()) != null) {
+            ContentLine cl = ContentLine.parse(line);
+            if (cl == null) {
+                continue;
+            }
+            if ("BEGIN".equals(cl.name)) {
+                if (event == null && "VEVENT".equalsIgnoreCase(cl.value)) {
+                    event = new ImportedEvent();
+                    depth = 0;
+                } else if (event != null) {
+                    // a nested component such as a VALARM
+                    depth++;
+                }
+            } else if ("END".equals(cl.name)) {
+                if (event != null) {
+                    if (depth > 0) {
+                        depth--;
+                    } else {
+                        result.eventCount++;
+                        String error = event.validate();
+                        if (error == null) {
+                            batch.add(event);
+                            if (batch.size() >= batchSize) {
+                                createTasks(batch, result);
+                            }
+                        } else {
+                            result.skippedCount++;
+                            logger.warn("Skipping event {} at line {}: {}", event.uid, lines.getLineNumber(), error);
+                        }
+                        event = null;
+                    }
+                }
+            } else if (event != null && depth == 0) {
+                event.set(cl);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            createTasks(batch, result);
+        }
+        result.elapsed = System.currentTimeMillis() - result.startTime;
+        logger.info("Import complete: {}", result);
+        return result;
+    }
+
+    /**
+     * Parses a single VEVENT. Any lines outside the event and any nested components are ignored.
+     *
+     * @param reader a reader positioned at (or before) the event's BEGIN:VEVENT line
+     *
+     * @return the event or null if the reader didn't contain one
+     *
+     * @throws IOException on failure
+     */
+    static ImportedEvent parseEvent(Reader reader) throws IOException {
+        ContentLineReader lines = new ContentLineReader(reader);
+        ImportedEvent event = null;
+        int depth = 0;
+        String line;
+        while ((line = lines.next()) != null) {
+            ContentLine cl = ContentLine.parse(line);
+            if (cl == null) {
+                continue;
+            }
+            if ("BEGIN".equals(cl.name)) {
+                if (event == null && "VEVENT".equalsIgnoreCase(cl.value)) {
+                    event = new ImportedEvent();
+                } else if (event != null) {
+                    depth++;
+                }
+            } else if ("END".equals(cl.name)) {
+                if (event != null) {
+                    if (depth == 0) {
+                        return event;
+                    }
+                    depth--;
+                }
+            } else if (event != null && depth == 0) {
+                event.set(cl);
+            }
+        }
+        return event;
+    }
+
+    void createTask(ImportedEvent e, PropertyContainer condition) {
+        taskManager.createTask(pluginContext.getHubContext(), e.getName(), e.description, Collections.singletonList(condition), new PropertyContainerSet(UUID.randomUUID().toString(), new ArrayList<PropertyContainer>()));
+    }
+
+    private void createTasks(List<ImportedEvent> batch, Result result) {
+        for (ImportedEvent e : batch) {
+            if (!dryRun) {
+                try {
+                    createTask(e, createCondition(e, null));
+                    result.createdCount++;
+                } catch (Exception ex) {
+                    result.skippedCount++;
+                    logger.error("Error creating task for event " + e.uid, ex);
+                }
+            } else {
+                result.createdCount++;
+            }
+        }
+        batch.clear();
+        result.elapsed = System.currentTimeMillis() - result.startTime;
+        logger.debug("Imported batch: {}", result);
+    }
+
+    /**
+     * Creates a schedule trigger condition for an event.
+     *
+     * @param e the event
+     * @param source the source to record in the condition (or null if the task isn't synced from a file)
+     *
+     * @return a PropertyContainer
+     */
+    PropertyContainer createCondition(ImportedEvent e, String source) {
+        Map<String,Object> values = new HashMap<>();
+        if (source != null) {
+            values.put(ScheduleConditionClass.PROP_SOURCE, source);
+        }
+        values.put("date", e.date);
+        // a cron schedule supplies its own times so the event's start only gives the first day it applies
+        if (e.cron != null) {
+            values.put(ScheduleConditionClass.PROP_CRON, e.cron);
+        } else {
+            values.put("time", e.time);
+        }
+        if (e.recurrence != null) {
+            values.put("recurrence", e.recurrence);
+        }
+        if (e.exDates != null) {
+            values.put(ScheduleConditionClass.PROP_EXCLUDED_DATES, e.exDates);
+        }
+        if (e.timeZone != null) {
+            values.put("timeZone", e.timeZone);
+        }
+        return new PropertyContainer(conditionClassContext, values);
+    }
+
+    /**
+     * The outcome of an import.
+     */
+    public static class Result {
+        private final long startTime = System.currentTimeMillis();
+        private int eventCount;
+        private int createdCount;
+        private int skippedCount;
+        private long elapsed;
+
+        /**
+         * Returns the number of VEVENTs found.
+         *
+         * @return a count
+         */
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        public int getCreatedCount() {
+            return createdCount;
+        }
+
+        /**
+         * Returns the number of events that were invalid or that a task could not be created for.
+         *
+         * @return a count
+         */
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        public long getElapsedTime() {
+            return elapsed;
+        }
+
+        public double getEventsPerSecond() {
+            return (elapsed > 0) ? eventCount * 1000.0 / elapsed : eventCount;
+        }
+
+        @Override
+        public String toString() {
+            return eventCount + " event(s), " + createdCount + " created, " + skippedCount + " skipped in " + elapsed + "ms (" + Math.round(getEventsPerSecond()) + " events/s)";
+        }
+    }
+
+    /**
+     * The schedule-related properties of a single VEVENT.
+     */
+    static class ImportedEvent {
+        String uid;
+        String summary;
+        String description;
+        String date;
+        String time;
+        String timeZone;
+        String recurrence;
+        String cron;
+        String sunOffset;
+        String exDates;
+        String recurrenceId;
+
+        void set(ContentLine cl) {
+            switch (cl.name) {
+                case "UID":
+                    uid = cl.value;
+                    break;
+                case "SUMMARY":
+                    summary = unescape(cl.value);
+                    break;
+                case "DESCRIPTION":
+                    description = unescape(cl.value);
+                    break;
+                case "RRULE":
+                    recurrence = cl.value;
+                    break;
+                case ICalTask.PROP_SUN_OFFSET:
+                    sunOffset = cl.value;
+                    break;
+                case ICalTask.PROP_CRON:
+                    cron = cl.value;
+                    break;
+                case "EXDATE":
+                    exDates = (exDates != null) ? exDates + "," + cl.value : cl.value;
+                    break;
+                case "RECURRENCE-ID":
+                    recurrenceId = cl.value;
+                    break;
+                case "DTSTART":
+                    timeZone = cl.getParameter("TZID");
+                    String v = cl.value;
+                    int ix = v.indexOf('T');
+                    if (ix > -1) {
+                        date = v.substring(0, ix);
+                        time = v.substring(ix + 1);
+                        // UTC times are absolute so any TZID is redundant
+                        if (time.endsWith("Z")) {
+                            timeZone = null;
+                        }
+                    } else {
+                        // an all-day event
+                        date = v;
+                        time = "000000";
+                    }
+                    break;
+            }
+        }
+
+        String validate() {
+            if (recurrenceId != null) {
+                return "modified instance " + recurrenceId + " of a recurring event isn't supported";
+            } else if (date == null) {
+                return "no DTSTART";
+            } else if (date.length() != 8 || !isDigits(date)) {
+                return "invalid start date " + date;
+            } else if (time.length() < 6 || !isDigits(time.substring(0, 6))) {
+                return "invalid start time " + time;
+            }
+            if (sunOffset != null) {
+                time = sunOffset;
+            }
+            return null;
+        }
+
+        String getName() {
+            if (summary != null && summary.length() > 0) {
+                return summary;
+            } else if (uid != null) {
+                return uid;
+            } else {
+                return "Imported task";
+            }
+        }
+
+        static private boolean isDigits(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (!Character.isDigit(s.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static private String unescape(String s) {
+            if (s.indexOf('\\') == -1) {
+                return s;
+            }
+            StringBuilder sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '\\' && i + 1 < s.length()) {
+                    char n = s.charAt(++i);
+                    sb.append(n == 'n' || n == 'N' ? '\n' : n);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A single property line, e.g. DTSTART;TZID=America/Denver:20150101T090000.
+     */
+    static class ContentLine {
+        String name;
+        String params;
+        String value;
+
+        static ContentLine parse(String line) {
+            // the value starts at the first colon that isn't inside a quoted parameter value
+            boolean quoted = false;
+            int paramStart = -1;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && c == ';' && paramStart == -1) {
+                    paramStart = i;
+                } else if (!quoted && c == ':') {
+                    ContentLine cl = new ContentLine();
+                    cl.name = line.substring(0, paramStart > -1 ? paramStart : i).trim().toUpperCase();
+                    cl.params = (paramStart > -1) ? line.substring(paramStart + 1, i) : null;
+                    cl.value = line.substring(i + 1).trim();
+                    return cl;
+                }
+            }
+            return null;
+        }
+
+        String getParameter(String name) {
+            if (params != null) {
+                for (String p : params.split(";")) {
+                    int ix = p.indexOf('=');
+                    if (ix > -1 && p.substring(0, ix).trim().equalsIgnoreCase(name)) {
+                        String v = p.substring(ix + 1).trim();
+                        if (v.length() > 1 && v.startsWith("\"") && v.endsWith("\"")) {
+                            v = v.substring(1, v.length() - 1);
+                        }
+                        return v;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads unfolded content lines (i.e. with continuation lines joined) from a reader.
+     */
+    static class ContentLineReader {
+        private BufferedReader reader;
+        private String lookahead;
+        private int lineNumber;
+
+        ContentLineReader(Reader reader) {
+            this.reader = (reader instanceof BufferedReader) ? (BufferedReader)reader : new BufferedReader(reader);
+        }
+
+        String next() throws IOException {
+            String line = (lookahead != null) ? lookahead : readLine();
+            lookahead = null;
+            if (line == null) {
+                return null;
+            }
+            StringBuilder sb = null;
+            String l;
+            while ((l = readLine()) != null) {
+                if (l.length() > 0 && (l.charAt(0) == ' ' || l.charAt(0) == '\t')) {
+                    if (sb == null) {
+                        sb = new StringBuilder(line);
+                    }
+                    sb.append(l, 1, l.length());
+                } else {
+                    lookahead = l;
+                    break;
+                }
+            }
+            return (sb != null) ? sb.toString() : line;
+        }
+
+        int getLineNumber() {
+            return lineNumber;
+        }
+
+        private String readLine() throws IOException {
+            String s = reader.readLine();
+            if (s != null) {
+                lineNumber++;
+            }
+            return s;
+        }
+    }
+}
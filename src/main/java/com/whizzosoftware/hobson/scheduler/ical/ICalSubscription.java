@@ -0,0 +1,481 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A local .ics file that tasks are synced from. Each VEVENT in the file becomes a task whose trigger condition
+ * records the event it came from (its source) so the task can be matched back to the event after a restart.
+ *
+ * The file's directory is watched with a WatchService. When the file changes, it is scanned through a memory-mapped
+ * buffer without decoding it: only each event's UID, SEQUENCE and LAST-MODIFIED are read and combined into a
+ * fingerprint (events with neither SEQUENCE nor LAST-MODIFIED are fingerprinted by their content instead). Only events
+ * whose fingerprint has changed are decoded and parsed, and only their tasks are re-planned by the provider. Tasks
+ * whose events have been removed from the file are unscheduled. Modified instances of recurring events (blocks with a
+ * RECURRENCE-ID) share their series' UID and are skipped, as they are by ICalImporter, so each UID maps to its master
+ * event alone.
+ *
+ * Since editors often write a file in several steps, a change is only applied once a poll passes with no further
+ * change events.
+ *
+ * The provider calls into a subscription while holding its own lock, so a subscription never calls the provider (or
+ * creates tasks) while holding its lock. Changes found by a scan are collected and applied once the lock is released.
+ */
+public class ICalSubscription {
+    private static final Logger logger = LoggerFactory.getLogger(ICalSubscription.class);
+
+    static final String SOURCE_SEPARATOR = "#";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] BEGIN_VEVENT = "BEGIN:VEVENT".getBytes(UTF8);
+    private static final byte[] END_VEVENT = "END:VEVENT".getBytes(UTF8);
+    private static final byte[] BEGIN = "BEGIN:".getBytes(UTF8);
+    private static final byte[] END = "END:".getBytes(UTF8);
+    private static final byte[] UID = "UID".getBytes(UTF8);
+    private static final byte[] SEQUENCE = "SEQUENCE".getBytes(UTF8);
+    private static final byte[] LAST_MODIFIED = "LAST-MODIFIED".getBytes(UTF8);
+    private static final byte[] RECURRENCE_ID = "RECURRENCE-ID".getBytes(UTF8);
+
+    private final File file;
+    private final String sourcePrefix;
+    private final ICalTaskProvider provider;
+    private final ICalImporter importer;
+    private WatchService watchService;
+    private WatchKey watchKey;
+    private boolean dirty;
+    private final Map<String,Long> fingerprints = new HashMap<>();
+    private final Map<String,PropertyContainer> conditions = new HashMap<>();
+    private final Map<String,TaskContext> contexts = new HashMap<>();
+    private final Set<String> pendingCreates = new HashSet<>();
+    private long refreshCount;
+    private long reparsedCount;
+
+    public ICalSubscription(File file, ICalTaskProvider provider, ICalImporter importer) {
+        this.file = file.getAbsoluteFile();
+        this.sourcePrefix = this.file.getPath() + SOURCE_SEPARATOR;
+        this.provider = provider;
+        this.importer = importer;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Starts watching the file and performs an initial refresh.
+     *
+     * @throws IOException on failure
+     */
+    public void open() throws IOException {
+        synchronized (this) {
+            Path dir = file.getParentFile().toPath();
+            watchService = dir.getFileSystem().newWatchService();
+            watchKey = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        refresh();
+    }
+
+    public synchronized void close() {
+        if (watchKey != null) {
+            watchKey.cancel();
+            watchKey = null;
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.debug("Error closing watch service", e);
+            }
+            watchService = null;
+        }
+    }
+
+    /**
+     * Checks for changes to the file without blocking and refreshes if the file changed before the last poll and
+     * hasn't changed since.
+     *
+     * @return true if a refresh was performed
+     */
+    public boolean poll() {
+        synchronized (this) {
+            if (watchKey == null) {
+                return false;
+            }
+            boolean changed = false;
+            for (WatchEvent<?> e : watchKey.pollEvents()) {
+                if (e.kind() == StandardWatchEventKinds.OVERFLOW || file.getName().equals(String.valueOf(e.context()))) {
+                    changed = true;
+                }
+            }
+            watchKey.reset();
+
+            if (changed) {
+                dirty = true;
+                return false;
+            } else if (!dirty) {
+                return false;
+            }
+            dirty = false;
+        }
+
+        try {
+            refresh();
+            return true;
+        } catch (IOException e) {
+            logger.error("Error refreshing subscription " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Scans the file and applies any events that have been added, changed or removed since the last refresh.
+     *
+     * @return the number of events that were re-parsed
+     *
+     * @throws IOException on failure
+     */
+    public int refresh() throws IOException {
+        List<Change> changes = new ArrayList<>();
+        int reparsed;
+        synchronized (this) {
+            reparsed = scanFile(changes);
+        }
+        for (Change c : changes) {
+            c.apply();
+        }
+        return reparsed;
+    }
+
+    private int scanFile(List<Change> changes) throws IOException {
+        long start = System.currentTimeMillis();
+        Set<String> seen = new HashSet<>();
+        int reparsed = 0;
+
+        if (file.exists()) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Calendar file is too large: " + file);
+                }
+                if (size > 0) {
+                    reparsed = scan(ch.map(FileChannel.MapMode.READ_ONLY, 0, size), seen, changes);
+                }
+            }
+        }
+
+        // anything that's no longer in the file has been removed
+        int removed = 0;
+        for (Iterator<String> it = fingerprints.keySet().iterator(); it.hasNext(); ) {
+            String uid = it.next();
+            if (!seen.contains(uid)) {
+                it.remove();
+                conditions.remove(uid);
+                pendingCreates.remove(uid);
+                TaskContext ctx = contexts.remove(uid);
+                if (ctx != null) {
+                    changes.add(new Change(uid, ctx, null, null, "Removed from " + file.getName()));
+                }
+                removed++;
+            }
+        }
+        for (Iterator<Map.Entry<String,TaskContext>> it = contexts.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String,TaskContext> e = it.next();
+            if (!seen.contains(e.getKey())) {
+                changes.add(new Change(e.getKey(), e.getValue(), null, null, "Removed from " + file.getName()));
+                it.remove();
+                removed++;
+            }
+        }
+
+        refreshCount++;
+        reparsedCount += reparsed;
+        logger.debug("Refreshed {}: {} event(s), {} re-parsed, {} removed in {}ms", file, seen.size(), reparsed, removed, System.currentTimeMillis() - start);
+        return reparsed;
+    }
+
+    private int scan(MappedByteBuffer buf, Set<String> seen, List<Change> changes) {
+        int reparsed = 0;
+        int limit = buf.limit();
+        int pos = 0;
+        int blockStart = -1;
+        int depth = 0;
+        String uid = null;
+        String sequence = null;
+        String lastModified = null;
+        boolean override = false;
+        byte[] lastProperty = null;
+
+        while (pos < limit) {
+            int lineStart = pos;
+            int lineEnd = pos;
+            while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            pos = lineEnd + 1;
+            if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            if (blockStart == -1) {
+                if (startsWith(buf, lineStart, lineEnd, BEGIN_VEVENT)) {
+                    blockStart = lineStart;
+                    depth = 0;
+                    uid = null;
+                    sequence = null;
+                    lastModified = null;
+                    override = false;
+                    lastProperty = null;
+                }
+            } else if (lineEnd > lineStart && (buf.get(lineStart) == ' ' || buf.get(lineStart) == '\t')) {
+                // a continuation of a folded line
+                if (lastProperty == UID && uid != null) {
+                    uid = uid + decode(buf, lineStart + 1, lineEnd);
+                }
+            } else if (depth == 0 && startsWith(buf, lineStart, lineEnd, END_VEVENT)) {
+                if (override) {
+                    logger.trace("Skipping modified instance of event {} in {}", uid, file);
+                } else if (uid != null) {
+                    seen.add(uid);
+                    long fp = fingerprint(buf, blockStart, pos, sequence, lastModified);
+                    Long previous = fingerprints.get(uid);
+                    if (previous == null || previous != fp || !conditions.containsKey(uid)) {
+                        if (apply(uid, decode(buf, blockStart, Math.min(pos, limit)), changes)) {
+                            fingerprints.put(uid, fp);
+                        }
+                        reparsed++;
+                    }
+                } else {
+                    logger.warn("Ignoring event with no UID in {}", file);
+                }
+                blockStart = -1;
+            } else if (startsWith(buf, lineStart, lineEnd, BEGIN)) {
+                depth++;
+                lastProperty = null;
+            } else if (startsWith(buf, lineStart, lineEnd, END)) {
+                depth--;
+                lastProperty = null;
+            } else if (depth == 0) {
+                if (isProperty(buf, lineStart, lineEnd, UID)) {
+                    uid = getValue(buf, lineStart, lineEnd);
+                    lastProperty = UID;
+                } else if (isProperty(buf, lineStart, lineEnd, SEQUENCE)) {
+                    sequence = getValue(buf, lineStart, lineEnd);
+                    lastProperty = SEQUENCE;
+                } else if (isProperty(buf, lineStart, lineEnd, LAST_MODIFIED)) {
+                    lastModified = getValue(buf, lineStart, lineEnd);
+                    lastProperty = LAST_MODIFIED;
+                } else if (isProperty(buf, lineStart, lineEnd, RECURRENCE_ID)) {
+                    override = true;
+                    lastProperty = null;
+                } else {
+                    lastProperty = null;
+                }
+            }
+        }
+        return reparsed;
+    }
+
+    /**
+     * Parses a changed event and records the creation or re-planning of its task.
+     *
+     * @param uid the event UID
+     * @param block the event's text
+     * @param changes the list to add the resulting change to
+     *
+     * @return true if the event was applied
+     */
+    private boolean apply(String uid, String block, List<Change> changes) {
+        try {
+            ICalImporter.ImportedEvent event = ICalImporter.parseEvent(new StringReader(block));
+            String error = (event != null) ? event.validate() : "unable to parse";
+            if (error != null) {
+                logger.warn("Ignoring event {} in {}: {}", uid, file, error);
+                return false;
+            }
+            PropertyContainer condition = importer.createCondition(event, sourcePrefix + uid);
+            conditions.put(uid, condition);
+            TaskContext ctx = contexts.get(uid);
+            if (ctx != null) {
+                changes.add(new Change(uid, ctx, condition, null, null));
+            } else if (!pendingCreates.contains(uid)) {
+                // the task is bound to this event once the provider is told about it
+                changes.add(new Change(uid, null, condition, event, null));
+                pendingCreates.add(uid);
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("Error applying event " + uid + " in " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Indicates whether a task's source refers to this subscription.
+     *
+     * @param source the source recorded in the task's trigger condition
+     *
+     * @return a boolean
+     */
+    public boolean owns(String source) {
+        return (source != null && source.startsWith(sourcePrefix));
+    }
+
+    /**
+     * Binds a task to the event it was created from.
+     *
+     * @param source the source recorded in the task's trigger condition
+     * @param ctx the task context
+     *
+     * @return the event's current trigger condition or null if the file hasn't been read yet or no longer contains
+     * the event
+     */
+    public synchronized PropertyContainer bind(String source, TaskContext ctx) {
+        String uid = source.substring(sourcePrefix.length());
+        contexts.put(uid, ctx);
+        pendingCreates.remove(uid);
+        return conditions.get(uid);
+    }
+
+    /**
+     * Indicates whether the file has been read and no longer contains an event.
+     *
+     * @param source the source recorded in a task's trigger condition
+     *
+     * @return a boolean
+     */
+    public synchronized boolean isRemoved(String source) {
+        return (refreshCount > 0 && !fingerprints.containsKey(source.substring(sourcePrefix.length())));
+    }
+
+    public synchronized int getEventCount() {
+        return fingerprints.size();
+    }
+
+    /**
+     * Returns the total number of events that have been re-parsed.
+     *
+     * @return a count
+     */
+    public synchronized long getReparsedCount() {
+        return reparsedCount;
+    }
+
+    synchronized PropertyContainer getCondition(String uid) {
+        return conditions.get(uid);
+    }
+
+    private long fingerprint(MappedByteBuffer buf, int start, int end, String sequence, String lastModified) {
+        CRC32 crc = new CRC32();
+        if (sequence != null || lastModified != null) {
+            crc.update((sequence + "|" + lastModified).getBytes(UTF8));
+        } else {
+            ByteBuffer b = buf.duplicate();
+            b.limit(Math.min(end, buf.limit()));
+            b.position(start);
+            byte[] chunk = new byte[4096];
+            while (b.hasRemaining()) {
+                int n = Math.min(chunk.length, b.remaining());
+                b.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    static private boolean startsWith(ByteBuffer buf, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toUpperCase((char)buf.get(start + i)) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static private boolean isProperty(ByteBuffer buf, int start, int end, byte[] name) {
+        if (startsWith(buf, start, end, name) && end - start > name.length) {
+            byte b = buf.get(start + name.length);
+            return (b == ':' || b == ';');
+        }
+        return false;
+    }
+
+    static private String getValue(ByteBuffer buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf.get(i) == ':') {
+                return decode(buf, i + 1, end).trim();
+            }
+        }
+        return null;
+    }
+
+    static private String decode(ByteBuffer buf, int start, int end) {
+        byte[] b = new byte[end - start];
+        ByteBuffer d = buf.duplicate();
+        d.position(start);
+        d.get(b);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * A change to a task found by a scan that is applied once the subscription's lock has been released.
+     */
+    private class Change {
+        private final String uid;
+        private final TaskContext ctx;
+        private final PropertyContainer condition;
+        private final ICalImporter.ImportedEvent event;
+        private final String reason;
+
+        Change(String uid, TaskContext ctx, PropertyContainer condition, ICalImporter.ImportedEvent event, String reason) {
+            this.uid = uid;
+            this.ctx = ctx;
+            this.condition = condition;
+            this.event = event;
+            this.reason = reason;
+        }
+
+        void apply() {
+            try {
+                if (reason != null) {
+                    provider.unscheduleSubscribedTask(ctx, reason);
+                } else if (ctx != null) {
+                    provider.applyCondition(ctx, condition);
+                } else {
+                    importer.createTask(event, condition);
+                }
+            } catch (Exception e) {
+                logger.error("Error applying event " + uid + " in " + file, e);
+                // forget the event so the next refresh tries again
+                if (reason == null) {
+                    synchronized (ICalSubscription.this) {
+                        conditions.remove(uid);
+                        pendingCreates.remove(uid);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -11,15 +11,24 @@ import com.whizzosoftware.hobson.api.HobsonRuntimeException;
 import com.whizzosoftware.hobson.api.plugin.PluginContext;
 import com.whizzosoftware.hobson.api.property.PropertyContainer;
 import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.scheduler.CronExpression;
 import com.whizzosoftware.hobson.scheduler.SchedulingException;
 import com.whizzosoftware.hobson.scheduler.SolarOffset;
 import com.whizzosoftware.hobson.scheduler.condition.TriggerConditionListener;
-import com.whizzosoftware.hobson.scheduler.util.SolarHelper;
+import com.whizzosoftware.hobson.scheduler.queue.OccurrenceCursor;
+import com.whizzosoftware.hobson.scheduler.queue.TaskPriority;
+import com.whizzosoftware.hobson.scheduler.util.DayBoundaryTable;
+import com.whizzosoftware.hobson.scheduler.util.RunDayBitmap;
+import com.whizzosoftware.hobson.scheduler.util.SchedulerEvent;
+import com.whizzosoftware.hobson.scheduler.util.SolarCache;
+import com.whizzosoftware.hobson.scheduler.util.TimeZoneCache;
 import net.fortuna.ical4j.model.*;
 import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.parameter.Value;
 import net.fortuna.ical4j.model.property.*;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 
 import java.text.ParseException;
 import java.util.*;
@@ -31,6 +40,7 @@ import java.util.*;
  */
 public class ICalTask implements Runnable {
     protected static final String PROP_SUN_OFFSET = "X-SUN-OFFSET";
+    protected static final String PROP_CRON = "X-CRON";
     protected static final String PROP_ACTION_SET = "X-ACTION-SET";
     protected static final String PROP_NEXT_RUN_TIME = "nextRunTime";
     protected static final String PROP_SCHEDULED = "scheduled";
@@ -39,9 +49,19 @@ public class ICalTask implements Runnable {
     private TaskContext taskContext;
     private VEvent event;
     private TriggerConditionListener listener;
-    private Double latitude;
-    private Double longitude;
+    private SolarCache solarCache;
     private SolarOffset solarOffset;
+    private CronExpression cron;
+    private int spreadWindow = -1;
+    private TaskPriority priority = TaskPriority.NORMAL;
+    private String startDate;
+    private String startTime;
+    private String recurrence;
+    private String exDates;
+    private String timeZoneId;
+    private DateTimeZone timeZone;
+    private volatile RunDays runDays;
+    private volatile LocalDate cronStartDay;
 
     public ICalTask(PluginContext pluginContext, VEvent event, TriggerConditionListener listener) throws InvalidVEventException {
         this.event = event;
@@ -53,6 +73,16 @@ public class ICalTask implements Runnable {
 
             // adjust the time for any solar offset defined
             adjustForSolarOffset();
+
+            // use any cron schedule defined in place of the recurrence rule
+            Property cronProp = event.getProperty(PROP_CRON);
+            if (cronProp != null) {
+                try {
+                    cron = CronExpression.parse(cronProp.getValue());
+                } catch (ParseException e) {
+                    throw new InvalidVEventException("Invalid X-CRON", e);
+                }
+            }
         } else {
             throw new InvalidVEventException("ICalEventTask must have a non-null event");
         }
@@ -67,31 +97,54 @@ public class ICalTask implements Runnable {
         return taskContext;
     }
 
+    /**
+     * Describes how a trigger condition differs from the one a task was built from.
+     */
+    public enum Change {
+        /**
+         * There are no schedule-related changes.
+         */
+        NONE,
+        /**
+         * Only scheduling options (e.g. priority) have changed.
+         */
+        OPTIONS,
+        /**
+         * The start date or time (or the excluded occurrences) has changed but the recurrence rule has not.
+         */
+        START,
+        /**
+         * The recurrence rule or cron expression has changed.
+         */
+        RULE
+    }
+
     public void update(TaskContext taskContext, PropertyContainer triggerCondition) {
         this.event = new VEvent();
         event.getProperties().add(new Uid(taskContext.getTaskId()));
+        this.recurrence = null;
+        this.cron = null;
+        this.runDays = null;
 
         try {
             if (triggerCondition != null) {
-                if (triggerCondition.hasPropertyValue("date") && triggerCondition.hasPropertyValue("time")) {
-                    String date = ((String)triggerCondition.getPropertyValue("date")).replace("-", "");
-                    String time = ((String)triggerCondition.getPropertyValue("time")).replace(":", "");
-
-                    // if the time is relative to sunset (e.g. SR or SS), set the time to 000000 and set the sun offset property
-                    if (time.startsWith("S")) {
-                        event.getProperties().add(new DtStart(date + "T000000"));
-                        event.getProperties().add(new XProperty(PROP_SUN_OFFSET, time));
-                        adjustForSolarOffset();
-                    // otherwise, set the time as-is
-                    } else {
-                        event.getProperties().add(new DtStart(date + "T" + time));
+                // a cron expression takes the place of the recurrence rule and is compiled once here
+                String c = getCron(triggerCondition);
+                if (c != null) {
+                    try {
+                        cron = CronExpression.parse(c);
+                    } catch (ParseException e) {
+                        throw new HobsonRuntimeException("Error parsing cron expression", e);
                     }
+                    event.getProperties().add(new XProperty(PROP_CRON, c));
                 }
-                if (triggerCondition.hasPropertyValue("recurrence")) {
-                    String r = (String)triggerCondition.getPropertyValue("recurrence");
-                    if (r.length() > 0 && !"never".equalsIgnoreCase(r)) {
+                updateStart(triggerCondition);
+                String r = getRecurrence(triggerCondition);
+                if (r != null) {
+                    if (cron == null) {
                         event.getProperties().add(new RRule(r));
                     }
+                    this.recurrence = r;
                 }
             }
         } catch (ParseException e) {
@@ -99,6 +152,191 @@ public class ICalTask implements Runnable {
         }
     }
 
+    /**
+     * Updates the start date/time and scheduling options of the task in place without rebuilding its event.
+     *
+     * @param triggerCondition the new trigger condition
+     */
+    public void updateStart(PropertyContainer triggerCondition) {
+        event.getProperties().remove(event.getProperty(Property.DTSTART));
+        event.getProperties().remove(event.getProperty(PROP_SUN_OFFSET));
+        event.getProperties().removeAll(event.getProperties(Property.EXDATE));
+        solarOffset = null;
+        startDate = getStartDate(triggerCondition);
+        startTime = getStartTime(triggerCondition);
+        timeZoneId = getTimeZoneId(triggerCondition);
+        exDates = getExDates(triggerCondition);
+        timeZone = null;
+        runDays = null;
+        cronStartDay = null;
+
+        try {
+            // if the task is pinned to a time zone, bind its start to that zone's TZID rather than leaving it floating
+            net.fortuna.ical4j.model.TimeZone icalTz = null;
+            if (timeZoneId != null) {
+                try {
+                    timeZone = TimeZoneCache.getZone(timeZoneId);
+                } catch (IllegalArgumentException e) {
+                    throw new HobsonRuntimeException("Invalid time zone: " + timeZoneId, e);
+                }
+                icalTz = TimeZoneCache.getICalTimeZone(timeZoneId);
+            }
+
+            // a cron schedule supplies its own times so its start date only marks the first day it applies
+            if (startDate != null && cron != null) {
+                event.getProperties().add(createDtStart(startDate + "T000000", icalTz));
+            } else if (startDate != null && startTime != null) {
+                // if the time is relative to sunset (e.g. SR or SS), set the time to 000000 and set the sun offset property
+                if (startTime.startsWith("S")) {
+                    event.getProperties().add(createDtStart(startDate + "T000000", icalTz));
+                    event.getProperties().add(new XProperty(PROP_SUN_OFFSET, startTime));
+                    adjustForSolarOffset();
+                // otherwise, set the time as-is
+                } else {
+                    event.getProperties().add(createDtStart(startDate + "T" + startTime, icalTz));
+                }
+            }
+
+            // excluded occurrences must match the start's time of day; a date on its own means that day's occurrence
+            if (startDate != null && exDates != null) {
+                String time = (cron != null || startTime == null || startTime.startsWith("S")) ? "000000" : startTime;
+                StringBuilder sb = new StringBuilder();
+                for (String d : exDates.split(",")) {
+                    d = d.trim();
+                    if (d.length() > 0) {
+                        if (sb.length() > 0) {
+                            sb.append(',');
+                        }
+                        sb.append(d.indexOf('T') > -1 ? d : d + "T" + time);
+                    }
+                }
+                if (sb.length() > 0) {
+                    String value = sb.toString();
+                    event.getProperties().add(new ExDate(new DateList(value, Value.DATE_TIME, value.endsWith("Z") ? null : icalTz)));
+                }
+            }
+        } catch (ParseException e) {
+            throw new HobsonRuntimeException("Error parsing start date/time", e);
+        }
+
+        priority = getPriority(triggerCondition);
+        spreadWindow = getSpreadWindow(triggerCondition);
+    }
+
+    private DtStart createDtStart(String value, net.fortuna.ical4j.model.TimeZone tz) throws ParseException {
+        // UTC times (e.g. 100000Z) are already absolute so a zone doesn't apply to them
+        if (tz != null && !value.endsWith("Z")) {
+            return new DtStart(value, tz);
+        } else {
+            return new DtStart(value);
+        }
+    }
+
+    /**
+     * Returns the time zone the task is pinned to.
+     *
+     * @param defaultZone the zone to return if the task isn't pinned to one
+     *
+     * @return a DateTimeZone
+     */
+    public DateTimeZone getTimeZone(DateTimeZone defaultZone) {
+        return (timeZone != null) ? timeZone : defaultZone;
+    }
+
+    /**
+     * Determines how a trigger condition differs from the one this task was built from.
+     *
+     * @param triggerCondition the new trigger condition
+     *
+     * @return a Change
+     */
+    public Change diff(PropertyContainer triggerCondition) {
+        if (!isEqual(recurrence, getRecurrence(triggerCondition)) || !isEqual(cron != null ? cron.getExpression() : null, getCron(triggerCondition))) {
+            return Change.RULE;
+        } else if (!isEqual(startDate, getStartDate(triggerCondition)) || !isEqual(startTime, getStartTime(triggerCondition)) || !isEqual(timeZoneId, getTimeZoneId(triggerCondition)) || !isEqual(exDates, getExDates(triggerCondition))) {
+            return Change.START;
+        } else if (priority != getPriority(triggerCondition) || spreadWindow != getSpreadWindow(triggerCondition)) {
+            return Change.OPTIONS;
+        } else {
+            return Change.NONE;
+        }
+    }
+
+    static private String getStartDate(PropertyContainer tc) {
+        return (tc != null && tc.hasPropertyValue("date")) ? ((String)tc.getPropertyValue("date")).replace("-", "") : null;
+    }
+
+    static private String getStartTime(PropertyContainer tc) {
+        return (tc != null && tc.hasPropertyValue("time")) ? ((String)tc.getPropertyValue("time")).replace(":", "") : null;
+    }
+
+    static private String getTimeZoneId(PropertyContainer tc) {
+        if (tc != null && tc.hasPropertyValue("timeZone")) {
+            String s = ((String)tc.getPropertyValue("timeZone")).trim();
+            if (s.length() > 0) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    static private String getRecurrence(PropertyContainer tc) {
+        if (tc != null && tc.hasPropertyValue("recurrence")) {
+            String r = (String)tc.getPropertyValue("recurrence");
+            if (r.length() > 0 && !"never".equalsIgnoreCase(r)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    static private String getExDates(PropertyContainer tc) {
+        if (tc != null && tc.hasPropertyValue("exdate")) {
+            String s = ((String)tc.getPropertyValue("exdate")).trim();
+            if (s.length() > 0) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    static private String getCron(PropertyContainer tc) {
+        if (tc != null && tc.hasPropertyValue("cron")) {
+            String s = ((String)tc.getPropertyValue("cron")).trim();
+            if (s.length() > 0) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    static private TaskPriority getPriority(PropertyContainer tc) {
+        if (tc != null && tc.hasPropertyValue("priority")) {
+            try {
+                return TaskPriority.fromString((String)tc.getPropertyValue("priority"));
+            } catch (IllegalArgumentException e) {
+                throw new HobsonRuntimeException("Invalid task priority", e);
+            }
+        }
+        return TaskPriority.NORMAL;
+    }
+
+    static private int getSpreadWindow(PropertyContainer tc) {
+        if (tc != null && tc.hasPropertyValue("spread")) {
+            Object o = tc.getPropertyValue("spread");
+            try {
+                return (o instanceof Number) ? ((Number)o).intValue() : Integer.parseInt(o.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new HobsonRuntimeException("Invalid spread window: " + o, e);
+            }
+        }
+        return -1;
+    }
+
+    static private boolean isEqual(String s1, String s2) {
+        return (s1 == null) ? (s2 == null) : s1.equals(s2);
+    }
+
     @Override
     public void run() {
         run(System.currentTimeMillis());
@@ -117,32 +355,251 @@ public class ICalTask implements Runnable {
     }
 
     protected void run(long now) {
+        run(now, now);
+    }
+
+    protected void run(long scheduledTime, long now) {
         // notify the listener that the task has executed (whether successfully or unsuccessfully)
         if (listener != null) {
-            listener.onTriggerCondition(this, now);
+            listener.onTriggerCondition(this, scheduledTime, now);
         }
     }
 
+    /**
+     * Returns the number of seconds either side of its scheduled time this task can be moved.
+     *
+     * @return a number of seconds or -1 if the task doesn't define its own spread window
+     */
+    public int getSpreadWindow() {
+        return spreadWindow;
+    }
+
+    public TaskPriority getPriority() {
+        return priority;
+    }
+
     public void setLocation(Double latitude, Double longitude) {
-        this.latitude = latitude;
-        this.longitude = longitude;
+        setSolarCache(new SolarCache(latitude, longitude));
+    }
+
+    /**
+     * Sets the (typically shared) cache used to look up sunrise/sunset times for the task's location.
+     *
+     * @param solarCache the cache
+     */
+    public void setSolarCache(SolarCache solarCache) {
+        this.solarCache = solarCache;
+    }
+
+    public boolean hasSolarOffset() {
+        return (solarOffset != null);
     }
 
     public VEvent getVEvent() {
         return event;
     }
 
+    /**
+     * Indicates whether the task runs on a cron schedule rather than a recurrence rule.
+     *
+     * @return a boolean
+     */
+    public boolean hasCronSchedule() {
+        return (cron != null);
+    }
+
+    /**
+     * Returns the task's next cron run. This is a bit scan of the compiled expression so it's cheap enough to call
+     * each time the task fires.
+     *
+     * @param after the time to find the next run after
+     * @param tz the time zone to use if the task isn't pinned to one
+     *
+     * @return a time in epoch milliseconds or -1 if the task doesn't have a cron schedule or will never run again
+     */
+    public long getNextCronRun(long after, DateTimeZone tz) {
+        if (cron == null) {
+            return -1;
+        }
+        DateTimeZone zone = getTimeZone(tz);
+        LocalDate day = getCronStartDay();
+        long start = (day != null) ? day.toDateTimeAtStartOfDay(zone).getMillis() : 0;
+        return cron.next(Math.max(after, start - 1), zone);
+    }
+
+    /**
+     * Returns the first day a cron schedule applies. This is the calendar date of DTSTART rather than the instant it
+     * resolves to since a floating start would otherwise be read in the JVM's zone instead of the task's.
+     *
+     * @return a LocalDate or null if the task has no start date
+     */
+    private LocalDate getCronStartDay() {
+        LocalDate day = cronStartDay;
+        if (day == null && event.getStartDate() != null) {
+            String s = event.getStartDate().getValue();
+            day = new LocalDate(Integer.parseInt(s.substring(0, 4)), Integer.parseInt(s.substring(4, 6)), Integer.parseInt(s.substring(6, 8)));
+            cronStartDay = day;
+        }
+        return day;
+    }
+
+    /**
+     * Creates a cursor into this task's occurrence sequence. This is only possible for tasks that recur at a fixed
+     * period (FREQ=SECONDLY, MINUTELY or HOURLY with no BYxxx rules, additional dates or solar offset).
+     *
+     * @return an OccurrenceCursor or null if the task's recurrence doesn't have a fixed period
+     */
+    public OccurrenceCursor createOccurrenceCursor() {
+        if (event == null || solarOffset != null || event.getStartDate() == null) {
+            return null;
+        }
+
+        PropertyList rrules = event.getProperties(Property.RRULE);
+        if (rrules.size() != 1 || event.getProperty(Property.RDATE) != null || event.getProperty(Property.EXDATE) != null || event.getProperty(Property.EXRULE) != null) {
+            return null;
+        }
+
+        Recur recur = ((RRule)rrules.get(0)).getRecur();
+        long unit;
+        if (Recur.SECONDLY.equals(recur.getFrequency())) {
+            unit = 1000L;
+        } else if (Recur.MINUTELY.equals(recur.getFrequency())) {
+            unit = 60000L;
+        } else if (Recur.HOURLY.equals(recur.getFrequency())) {
+            unit = 3600000L;
+        } else {
+            return null;
+        }
+
+        if (!recur.getSecondList().isEmpty() || !recur.getMinuteList().isEmpty() || !recur.getHourList().isEmpty() ||
+            !recur.getDayList().isEmpty() || !recur.getMonthDayList().isEmpty() || !recur.getYearDayList().isEmpty() ||
+            !recur.getWeekNoList().isEmpty() || !recur.getMonthList().isEmpty() || !recur.getSetPosList().isEmpty()) {
+            return null;
+        }
+
+        long first = event.getStartDate().getDate().getTime();
+        long period = unit * Math.max(1, recur.getInterval());
+        long last = Long.MAX_VALUE;
+        if (recur.getCount() > 0) {
+            last = first + (recur.getCount() - 1) * period;
+        } else if (recur.getUntil() != null) {
+            last = recur.getUntil().getTime();
+        }
+
+        return new OccurrenceCursor(first, period, last);
+    }
+
+    /**
+     * Indicates whether the task might run on the day a point in time falls in. The answer comes from a bitmap of the
+     * task's run days for the year ahead, which is built the first time it's needed and again once the year has
+     * passed (or the rule or spread offset changes). Tasks whose run days can't be determined cheaply (e.g. solar
+     * offsets or rules with sub-hourly frequencies) always return true.
+     *
+     * @param now the point in time
+     * @param tz the time zone the day is local to
+     * @param spreadOffset the offset the task's runs are spread by
+     *
+     * @return false if the task definitely doesn't run that day
+     */
+    public boolean mayRunOn(long now, DateTimeZone tz, long spreadOffset) {
+        RunDays rd = runDays;
+        if (rd == null || rd.spreadOffset != spreadOffset || !rd.bitmap.covers(now, tz)) {
+            RunDayBitmap b;
+            try {
+                b = createRunDayBitmap(now, tz, spreadOffset);
+            } catch (SchedulingException e) {
+                b = null;
+            }
+            if (b == null) {
+                runDays = null;
+                return true;
+            }
+            rd = new RunDays(b, spreadOffset);
+            runDays = rd;
+        }
+        return rd.bitmap.isSet(now);
+    }
+
+    private RunDayBitmap createRunDayBitmap(long now, DateTimeZone tz, long spreadOffset) throws SchedulingException {
+        if (event == null || solarOffset != null) {
+            return null;
+        }
+
+        // a spread can move a run onto the neighbouring day, so runs just outside the year are included and both the
+        // day a run falls on and the day it's spread onto are marked
+        RunDayBitmap b = new RunDayBitmap(now, tz);
+        long from = b.getStartTime() - Math.abs(spreadOffset);
+        long to = b.getEndTime() + Math.abs(spreadOffset);
+        OccurrenceCursor cursor = createOccurrenceCursor();
+        if (cron != null) {
+            // skip straight to the next day once a day has a run
+            for (long t = getNextCronRun(from - 1, tz); t > -1 && t < to; t = getNextCronRun(DayBoundaryTable.getStartOfNextDay(t, tz) - 1, tz)) {
+                b.set(t);
+                b.set(t + spreadOffset);
+            }
+        } else if (cursor != null) {
+            cursor.setLimit(to - 1);
+            for (long t = cursor.seek(from - 1); t > -1; t = cursor.seek(DayBoundaryTable.getStartOfNextDay(t, tz) - 1)) {
+                b.set(t);
+                b.set(t + spreadOffset);
+            }
+        } else {
+            // expanding a sub-hourly rule over a year costs more than the bitmap saves
+            Property rrule = event.getProperty(Property.RRULE);
+            if (rrule != null) {
+                String freq = ((RRule)rrule).getRecur().getFrequency();
+                if (Recur.SECONDLY.equals(freq) || Recur.MINUTELY.equals(freq)) {
+                    return null;
+                }
+            }
+            for (Long t : getRunsDuringInterval(from, to, tz)) {
+                b.set(t);
+                b.set(t + spreadOffset);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * A task's run-day bitmap and the spread offset it was built for.
+     */
+    private static class RunDays {
+        final RunDayBitmap bitmap;
+        final long spreadOffset;
+
+        RunDays(RunDayBitmap bitmap, long spreadOffset) {
+            this.bitmap = bitmap;
+            this.spreadOffset = spreadOffset;
+        }
+    }
+
+    /**
+     * Returns the times the task will run during an interval.
+     *
+     * @param startTime the start of the interval
+     * @param endTime the end of the interval
+     * @param tz the time zone to use if the task isn't pinned to one
+     *
+     * @return a list of times
+     *
+     * @throws SchedulingException on failure
+     */
     public List<Long> getRunsDuringInterval(long startTime, long endTime, DateTimeZone tz) throws SchedulingException {
+        SchedulerEvent evt = SchedulerEvent.begin(SchedulerEvent.Type.RECURRENCE_EXPANSION);
         List<Long> results = new ArrayList<>();
-        if (event != null) {
+        tz = getTimeZone(tz);
+        if (cron != null) {
+            for (long t = getNextCronRun(startTime - 1, tz); t > -1 && t < endTime; t = getNextCronRun(t, tz)) {
+                results.add(t);
+            }
+        } else if (event != null) {
             // if there's a solar offset, reset the start time to the beginning of the day so that
             // we can see if the event should run at any point during the first to subsequent days
             if (solarOffset != null) {
-                if (latitude == null || longitude == null) {
+                if (solarCache == null || !solarCache.hasLocation()) {
                     throw new SchedulingException("Unable to calculate sunrise/sunset; please set Hub latitude/longitude");
                 }
-                DateTime c = new DateTime(startTime, tz);
-                startTime = c.withTimeAtStartOfDay().getMillis();
+                startTime = DayBoundaryTable.getStartOfDay(startTime, tz);
             }
 
             PeriodList periods = event.calculateRecurrenceSet(new Period(new net.fortuna.ical4j.model.DateTime(startTime), new net.fortuna.ical4j.model.DateTime(endTime)));
@@ -152,18 +609,24 @@ public class ICalTask implements Runnable {
 
                 // adjust time if there's an solar offset defined
                 if (solarOffset != null) {
-                    DateTime c = new DateTime(time, tz);
-                    try {
-                        c = SolarHelper.createCalendar(c.toLocalDate(), tz, solarOffset, latitude, longitude);
-                        time = c.getMillis();
-                    } catch (ParseException e) {
-                        throw new SchedulingException("Error parsing solar offset", e);
+                    DateTime c = solarCache.getTime(new DateTime(time, tz).toLocalDate(), tz, solarOffset);
+                    if (c == null) {
+                        throw new SchedulingException("Unable to calculate sunrise/sunset; please set Hub latitude/longitude");
                     }
+                    time = c.getMillis();
                 }
 
                 results.add(time);
             }
         }
+        if (evt.isEnabled()) {
+            evt.set("task", taskContext != null ? taskContext.getTaskId() : null)
+                .set("rule", cron != null ? cron.getExpression() : recurrence)
+                .set("windowStart", startTime)
+                .set("windowEnd", endTime)
+                .set("count", results.size())
+                .commit();
+        }
         return results;
     }
 }
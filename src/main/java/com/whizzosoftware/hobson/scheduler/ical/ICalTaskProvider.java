@@ -15,12 +15,21 @@ import com.whizzosoftware.hobson.api.property.PropertyContainer;
 import com.whizzosoftware.hobson.api.task.*;
 import com.whizzosoftware.hobson.api.task.condition.TaskConditionClass;
 import com.whizzosoftware.hobson.scheduler.DayResetListener;
+import com.whizzosoftware.hobson.scheduler.ReadinessListener;
 import com.whizzosoftware.hobson.scheduler.SchedulingException;
 import com.whizzosoftware.hobson.scheduler.TaskNotFoundException;
 import com.whizzosoftware.hobson.scheduler.condition.ScheduleConditionClass;
+import com.whizzosoftware.hobson.scheduler.condition.TimeWindowConditionClass;
 import com.whizzosoftware.hobson.scheduler.condition.TriggerConditionListener;
+import com.whizzosoftware.hobson.scheduler.queue.AbstractTaskQueue;
+import com.whizzosoftware.hobson.scheduler.queue.OccurrenceCursor;
+import com.whizzosoftware.hobson.scheduler.queue.QueueDiagnostics;
 import com.whizzosoftware.hobson.scheduler.queue.TaskQueue;
-import com.whizzosoftware.hobson.scheduler.util.DateHelper;
+import com.whizzosoftware.hobson.scheduler.queue.TaskQueueListener;
+import com.whizzosoftware.hobson.scheduler.util.DayBoundaryTable;
+import com.whizzosoftware.hobson.scheduler.util.SchedulerEvent;
+import com.whizzosoftware.hobson.scheduler.util.SolarCache;
+import com.whizzosoftware.hobson.scheduler.util.SpreadHelper;
 import net.fortuna.ical4j.model.*;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.component.VEvent;
@@ -29,30 +38,68 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Scheduler implementation that uses the iCal (RFC 5445) format.
  *
  * @author Dan Noguerol
  */
-public class ICalTaskProvider implements TaskProvider, TriggerConditionListener {
+public class ICalTaskProvider implements TaskProvider, TriggerConditionListener, TaskQueueListener {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     public static final long MS_24_HOURS = 86400000;
+    public static final int INDEX_HORIZON_DAYS = 7;
+    public static final long SUBSCRIPTION_POLL_INTERVAL = 1000;
+    public static final int PLANNING_BATCH_SIZE = 100;
+    public static final long REGISTRATION_WAIT_MS = 5000;
+
+    // estimated bytes for a task (ICalTask plus its VEvent), an occurrence index entry and a solar cache entry
+    private static final long TASK_BYTES = 2048;
+    private static final long INDEX_ENTRY_BYTES = 64;
+    private static final long SOLAR_ENTRY_BYTES = 160;
 
     private PluginContext pluginContext;
     private TaskManager taskManager;
     private DayResetListener dayResetListener;
     private Calendar calendar = new Calendar();
-    private TaskQueue taskQueue;
-    private ScheduledThreadPoolExecutor resetDayExecutor = new ScheduledThreadPoolExecutor(1);
-    private Double latitude;
-    private Double longitude;
+    private Map<TaskContext,ICalTask> tasks = new ConcurrentHashMap<>();
+    private OccurrenceIndex occurrenceIndex = new OccurrenceIndex();
+    private ScheduleFeed feed = new ScheduleFeed();
+    private final ConcurrentHashMap<TaskContext,ExecutionHistory> executionHistory = new ConcurrentHashMap<>();
+    private final Map<TaskContext,String> taskErrors = new ConcurrentHashMap<>();
+    private int executionHistorySize = ExecutionHistory.DEFAULT_CAPACITY;
+    private volatile TaskQueue taskQueue;
+    private TaskQueue migrationTarget;
+    private int pendingMigrations;
+    private ScheduledExecutorService housekeepingExecutor = new ScheduledThreadPoolExecutor(1);
+    private boolean ownsHousekeepingExecutor = true;
+    private volatile ScheduledFuture dayResetFuture;
+    private volatile long nextDayResetTime;
+    private SolarCache solarCache;
+    private Set<TaskContext> solarTasks = Collections.newSetFromMap(new ConcurrentHashMap<TaskContext,Boolean>());
     private DateTimeZone timeZone;
+    private int spreadWindow;
+    private long updateCoalesceWindow;
+    private final Map<TaskContext,ScheduledFuture> pendingUpdates = new HashMap<>();
+    private final Map<String,ICalSubscription> subscriptions = new ConcurrentHashMap<>();
+    private ScheduledFuture subscriptionFuture;
+    private final AtomicLong coalescedUpdateCount = new AtomicLong();
+    private final AtomicLong appliedUpdateCount = new AtomicLong();
+    private final Object warmupLock = new Object();
+    private final Deque<TaskContext> pendingRegistrations = new ArrayDeque<>();
+    private volatile boolean warmingUp;
+    private long warmupStart;
+    private boolean registrationReceived;
+    private WarmupPlanner waitingPlanner;
     private boolean running = false;
 
     public ICalTaskProvider(PluginContext pluginContext, Double latitude, Double longitude) {
@@ -61,11 +108,23 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
 
     ICalTaskProvider(PluginContext pluginContext, Double latitude, Double longitude, DateTimeZone timeZone) {
         this.pluginContext = pluginContext;
-        this.latitude = latitude;
-        this.longitude = longitude;
+        this.solarCache = new SolarCache(latitude, longitude);
         this.timeZone = timeZone;
     }
 
+    /**
+     * Returns the sunrise/sunset cache for the provider's location so that other components can share it.
+     *
+     * @return a SolarCache
+     */
+    public SolarCache getSolarCache() {
+        return solarCache;
+    }
+
+    public DateTimeZone getTimeZone() {
+        return timeZone;
+    }
+
     public void setTaskManager(TaskManager taskManager) {
         this.taskManager = taskManager;
     }
@@ -74,17 +133,253 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         this.dayResetListener = dayResetListener;
     }
 
+    /**
+     * Sets the default number of seconds either side of their scheduled time that tasks can be moved in order to
+     * smooth load when many tasks share the same time. Tasks can override this with their own spread window.
+     *
+     * @param spreadWindow a number of seconds (0 to disable)
+     */
+    public void setSpreadWindow(int spreadWindow) {
+        if (this.spreadWindow != spreadWindow) {
+            this.spreadWindow = spreadWindow;
+            if (running) {
+                try {
+                    refreshLocalCalendarData(System.currentTimeMillis(), false);
+                } catch (Exception e) {
+                    logger.error("Error refreshing calendar data", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the window during which repeated update events for the same task are collapsed into a single update.
+     * The net change is applied once the window elapses.
+     *
+     * @param updateCoalesceWindow a number of milliseconds (0 to apply updates immediately)
+     */
+    public void setUpdateCoalesceWindow(long updateCoalesceWindow) {
+        this.updateCoalesceWindow = updateCoalesceWindow;
+    }
+
+    /**
+     * Returns the number of update events that were absorbed by an already pending update.
+     *
+     * @return a count
+     */
+    public long getCoalescedUpdateCount() {
+        return coalescedUpdateCount.get();
+    }
+
+    /**
+     * Returns the number of task updates that have been applied.
+     *
+     * @return a count
+     */
+    public long getAppliedUpdateCount() {
+        return appliedUpdateCount.get();
+    }
+
+    /**
+     * Returns the deterministic offset applied to a task's scheduled times.
+     *
+     * @param task the task
+     *
+     * @return an offset in milliseconds
+     */
+    long getSpreadOffset(ICalTask task) {
+        return SpreadHelper.getOffset(task.getContext().getTaskId(), task.getSpreadWindow() > -1 ? task.getSpreadWindow() : spreadWindow);
+    }
+
     Calendar getCalendar() {
         return calendar;
     }
 
+    /**
+     * Sets the number of recent fires remembered for each task. Tasks that have already fired keep their existing
+     * history size.
+     *
+     * @param size a number of fires
+     */
+    public void setExecutionHistorySize(int size) {
+        this.executionHistorySize = Math.max(1, size);
+    }
+
+    /**
+     * Returns a task's firing history.
+     *
+     * @param ctx the task context
+     *
+     * @return a snapshot of the task's history or null if it hasn't fired
+     */
+    public ExecutionHistory.Snapshot getExecutionHistory(TaskContext ctx) {
+        ExecutionHistory h = executionHistory.get(ctx);
+        return (h != null) ? h.getSnapshot() : null;
+    }
+
+    /**
+     * Returns the tasks whose lateness at a given percentile exceeds a threshold, latest first.
+     *
+     * @param percentile the percentile (e.g. 0.95)
+     * @param threshold a number of milliseconds
+     *
+     * @return a list of task contexts
+     */
+    public List<TaskContext> getLateTasks(final double percentile, long threshold) {
+        final Map<TaskContext,Long> late = new HashMap<>();
+        for (Map.Entry<TaskContext,ExecutionHistory> e : executionHistory.entrySet()) {
+            long l = e.getValue().getSnapshot().getLatenessPercentile(percentile);
+            if (l > threshold) {
+                late.put(e.getKey(), l);
+            }
+        }
+        List<TaskContext> results = new ArrayList<>(late.keySet());
+        Collections.sort(results, new Comparator<TaskContext>() {
+            @Override
+            public int compare(TaskContext o1, TaskContext o2) {
+                return late.get(o2).compareTo(late.get(o1));
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Returns a snapshot of the scheduler's internal state. Nothing is locked for longer than it takes to copy a
+     * counter or two (the feed's size is the exception and is a single pass over its entries) so it's cheap enough
+     * to poll every few seconds.
+     *
+     * @param maxFires the maximum number of upcoming fires to include
+     *
+     * @return a SchedulerDiagnostics instance
+     */
+    public SchedulerDiagnostics getDiagnostics(int maxFires) {
+        long now = System.currentTimeMillis();
+
+        TaskQueue q = taskQueue;
+        QueueDiagnostics qd = (q instanceof AbstractTaskQueue) ? ((AbstractTaskQueue)q).getDiagnostics(maxFires) : null;
+
+        ScheduledFuture f = dayResetFuture;
+        long nextDayReset = (f != null && !f.isDone()) ? now + f.getDelay(TimeUnit.MILLISECONDS) : 0;
+
+        long historyBytes = 0;
+        for (ExecutionHistory h : executionHistory.values()) {
+            historyBytes += h.getEstimatedSize();
+        }
+
+        Map<String,Long> memory = new LinkedHashMap<>();
+        int taskCount = tasks.size();
+        memory.put("tasks", taskCount * TASK_BYTES);
+        memory.put("occurrenceIndex", occurrenceIndex.size() * INDEX_ENTRY_BYTES);
+        memory.put("executionHistory", historyBytes);
+        memory.put("feed", feed.getEstimatedSize());
+        memory.put("solarCache", solarCache.size() * SOLAR_ENTRY_BYTES);
+        if (qd != null) {
+            memory.putAll(qd.getEstimatedMemory());
+        }
+
+        return new SchedulerDiagnostics(
+            now,
+            running,
+            taskCount,
+            calendar.getComponents().size(),
+            solarTasks.size(),
+            nextDayReset,
+            new HashMap<>(taskErrors),
+            qd,
+            memory
+        );
+    }
+
+    private void recordExecution(TaskContext ctx, long scheduledTime, long actualTime) {
+        ExecutionHistory h = executionHistory.get(ctx);
+        if (h == null) {
+            h = new ExecutionHistory(executionHistorySize);
+            ExecutionHistory existing = executionHistory.putIfAbsent(ctx, h);
+            if (existing != null) {
+                h = existing;
+            }
+        }
+        h.record(scheduledTime, actualTime);
+    }
+
+    /**
+     * Returns an iCalendar export of the schedule for external consumers.
+     *
+     * @return a ScheduleFeed
+     */
+    public ScheduleFeed getFeed() {
+        return feed;
+    }
+
+    /**
+     * Returns the upcoming runs of all tasks during a time interval in ascending order. Only runs within the
+     * occurrence index horizon (the next INDEX_HORIZON_DAYS days) are returned.
+     *
+     * @param startTime the start of the interval (inclusive)
+     * @param endTime the end of the interval (exclusive)
+     * @param after the last run returned by the previous call (or null for the first page)
+     * @param limit the maximum number of runs to return
+     *
+     * @return a list of ScheduledRun objects
+     */
+    public List<ScheduledRun> getScheduledRuns(long startTime, long endTime, ScheduledRun after, int limit) {
+        return occurrenceIndex.getRuns(startTime, endTime, after, limit);
+    }
+
+    /**
+     * Sets the hub location. Only tasks with a solar offset depend on the location so only those are re-planned.
+     *
+     * @param latitude the latitude
+     * @param longitude the longitude
+     */
     public void setLatitudeLongitude(Double latitude, Double longitude) {
-        this.latitude = latitude;
-        this.longitude = longitude;
-        try {
-            refreshLocalCalendarData(System.currentTimeMillis(), false);
-        } catch (Exception e) {
-            logger.error("Error refreshing calendar data", e);
+        if (solarCache.setLocation(latitude, longitude) && taskQueue != null) {
+            replanSolarTasks(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Returns the number of tasks that have a solar offset.
+     *
+     * @return a count
+     */
+    int getSolarTaskCount() {
+        return solarTasks.size();
+    }
+
+    /**
+     * Re-schedules and re-indexes all tasks that have a solar offset.
+     *
+     * @param now the current time
+     */
+    synchronized void replanSolarTasks(long now) {
+        logger.debug("Re-planning {} solar offset task(s)", solarTasks.size());
+        for (TaskContext ctx : solarTasks) {
+            ICalTask task = tasks.get(ctx);
+            if (task != null) {
+                cancelQueuedTask(ctx);
+                try {
+                    scheduleNextRun(task, now, false);
+                } catch (Exception e) {
+                    logger.error("Error re-planning task " + ctx, e);
+                }
+                if (occurrenceIndex.hasHorizon()) {
+                    indexTask(task, occurrenceIndex.getHorizonStart(), occurrenceIndex.getHorizonEnd(), false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the solar offset task index in step with a task.
+     *
+     * @param task the task
+     */
+    private void trackSolarTask(ICalTask task) {
+        if (task.hasSolarOffset()) {
+            solarTasks.add(task.getContext());
+        } else {
+            solarTasks.remove(task.getContext());
         }
     }
 
@@ -116,14 +411,26 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
      * @throws Exception on failure
      */
     private boolean scheduleNextRun(ICalTask task, long now, boolean wasDayReset) throws Exception {
+        SchedulerEvent evt = SchedulerEvent.begin(SchedulerEvent.Type.SCHEDULE_NEXT_RUN);
+        boolean shouldRunToday = calculateNextRun(task, now, wasDayReset);
+        if (evt.isEnabled()) {
+            evt.set("task", task.getContext().getTaskId()).set("dayReset", wasDayReset).set("runToday", shouldRunToday).commit();
+        }
+        return shouldRunToday;
+    }
+
+    private boolean calculateNextRun(ICalTask task, long now, boolean wasDayReset) throws Exception {
         logger.trace("Attempting to schedule next run of task: {}", task.getContext());
+        taskErrors.remove(task.getContext());
 
         if (taskQueue == null) {
             throw new HobsonRuntimeException("No task executor configured");
         }
 
-        long startOfToday = DateHelper.getTimeInCurrentDay(now, timeZone, 0, 0, 0, 0).getMillis();
-        long endOfToday = DateHelper.getTimeInCurrentDay(now, timeZone, 23, 59, 59, 999).getMillis();
+        // the day boundaries are always the provider's (even for tasks pinned to another zone) since that's when the
+        // next day reset will arm tasks again
+        long startOfToday = DayBoundaryTable.getStartOfDay(now, timeZone);
+        long endOfToday = DayBoundaryTable.getEndOfDay(now, timeZone);
         boolean shouldRunToday = false;
         Map<String,Object> properties = new HashMap<>();
 
@@ -132,23 +439,87 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         properties.put(ICalTask.PROP_SCHEDULED, false);
 
         try {
+            // tasks that recur at a fixed period (e.g. minutely) can be positioned arithmetically without expanding
+            // their recurrence rule; the queue then re-arms them itself each time they fire
+            long spreadOffset = getSpreadOffset(task);
+            OccurrenceCursor cursor = task.createOccurrenceCursor();
+            if (cursor != null) {
+                cursor.shift(spreadOffset);
+                if (wasDayReset && cursor.hasOccurrenceBetween(startOfToday, now)) {
+                    shouldRunToday = true;
+                    logger.trace("Task will run today");
+                }
+                long nextRunTime = cursor.seek(now);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Next run time for task {}: {}", task.getContext(), nextRunTime > 0 ? new Date(nextRunTime) : "Unknown");
+                }
+                if (nextRunTime > 0) {
+                    properties.put(ICalTask.PROP_NEXT_RUN_TIME, nextRunTime);
+                    // a task is armed if its unspread run time falls today, even if spreading pushes it past midnight
+                    if (nextRunTime - spreadOffset < endOfToday) {
+                        properties.put(ICalTask.PROP_SCHEDULED, true);
+                        cursor.setLimit(endOfToday + Math.max(0, spreadOffset));
+                        taskQueue.schedule(task.getContext(), nextRunTime - now, cursor, task.getPriority());
+                    }
+                }
+                taskManager.updateTaskProperties(pluginContext, task.getContext(), properties);
+                return shouldRunToday;
+            }
+
+            // cron tasks find their next run by scanning the compiled expression's bitmasks so there's no need to
+            // expand their schedule over a window
+            if (task.hasCronSchedule()) {
+                if (wasDayReset) {
+                    long firstRunTime = task.getNextCronRun(startOfToday - 1, timeZone);
+                    if (firstRunTime > -1 && firstRunTime + spreadOffset < now) {
+                        shouldRunToday = true;
+                        logger.trace("Task will run today");
+                    }
+                }
+                long nextRunTime = task.getNextCronRun(now - spreadOffset, timeZone);
+                if (nextRunTime > -1) {
+                    nextRunTime += spreadOffset;
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Next run time for task {}: {}", task.getContext(), nextRunTime > 0 ? new Date(nextRunTime) : "Unknown");
+                }
+                if (nextRunTime > 0) {
+                    properties.put(ICalTask.PROP_NEXT_RUN_TIME, nextRunTime);
+                    if (nextRunTime - spreadOffset < endOfToday) {
+                        properties.put(ICalTask.PROP_SCHEDULED, true);
+                        taskQueue.schedule(task.getContext(), nextRunTime - now, null, task.getPriority());
+                    }
+                }
+                taskManager.updateTaskProperties(pluginContext, task.getContext(), properties);
+                return shouldRunToday;
+            }
+
+            // a spread can move a run across midnight so the window is widened by it in both directions; the raw
+            // occurrence of a run spread into today may fall late yesterday or early tomorrow
+            long maxSpread = Math.abs(spreadOffset);
+            long windowStart = startOfToday - maxSpread;
+
             // check if there is more than 1 run in the next two days
-            List<Long> todaysRunTimes = task.getRunsDuringInterval(startOfToday, startOfToday + 86400000L, timeZone);
+            List<Long> todaysRunTimes = task.getRunsDuringInterval(windowStart, startOfToday + 86400000L + maxSpread, timeZone);
             // if not, check if there is more than 1 run in the next 6 weeks
             if (todaysRunTimes.size() < 2) {
                 logger.trace("Found less than 2 run times over next two days; re-calculating in next 6 weeks");
-                todaysRunTimes = task.getRunsDuringInterval(startOfToday, startOfToday + 3628800000L, timeZone);
+                todaysRunTimes = task.getRunsDuringInterval(windowStart, startOfToday + 3628800000L + maxSpread, timeZone);
                 // it not, check if there is more than 1 run in the next 53 weeks
                 if (todaysRunTimes.size() < 2) {
                     logger.trace("Found less than 2 run times over next 6 weeks; re-calculating in next 53 weeks");
-                    todaysRunTimes = task.getRunsDuringInterval(startOfToday, startOfToday + 32054400000L, timeZone);
+                    todaysRunTimes = task.getRunsDuringInterval(windowStart, startOfToday + 32054400000L + maxSpread, timeZone);
                 }
             }
 
             if (todaysRunTimes.size() > 0) {
                 long nextRunTime = 0;
-                for (Long l : todaysRunTimes) {
-                    if (l - now < 0 && wasDayReset) {
+                for (Long rt : todaysRunTimes) {
+                    long l = rt + spreadOffset;
+                    // a run spread into yesterday was armed by yesterday's plan
+                    if (l < startOfToday) {
+                        continue;
+                    } else if (l - now < 0 && wasDayReset) {
                         shouldRunToday = true;
                         logger.trace("Task will run today");
                     } else if (l - now > 0) {
@@ -162,9 +533,11 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
                 }
                 if (nextRunTime > 0) {
                     properties.put(ICalTask.PROP_NEXT_RUN_TIME, nextRunTime);
+                    // the spread time decides the day a run is armed on; one spread past midnight is picked up by
+                    // the next day's plan rather than being armed now and cancelled by the day reset
                     if (nextRunTime < endOfToday) {
                         properties.put(ICalTask.PROP_SCHEDULED, true);
-                        taskQueue.schedule(task.getContext(), nextRunTime - now);
+                        taskQueue.schedule(task.getContext(), nextRunTime - now, null, task.getPriority());
                     }
                 } else {
                     logger.trace("Next run time is not > 0; not scheduled");
@@ -175,6 +548,7 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         } catch (SchedulingException e) {
             logger.error("A scheduling exception occurred", e);
             properties.put(ICalTask.PROP_ERROR, e.getLocalizedMessage());
+            taskErrors.put(task.getContext(), e.getLocalizedMessage() != null ? e.getLocalizedMessage() : e.toString());
         }
 
         taskManager.updateTaskProperties(pluginContext, task.getContext(), properties);
@@ -184,6 +558,66 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
 
     public void setScheduleExecutor(TaskQueue executor) {
         this.taskQueue = executor;
+        if (executor != null) {
+            executor.setListener(this);
+        }
+    }
+
+    /**
+     * Sets a shared executor to use for housekeeping work (day resets and coalesced updates) instead of a thread
+     * owned by this provider. The shared executor is not shut down when the provider stops. This must be called
+     * before the provider is started.
+     *
+     * @param executor the executor
+     */
+    public void setHousekeepingExecutor(ScheduledExecutorService executor) {
+        if (ownsHousekeepingExecutor) {
+            housekeepingExecutor.shutdownNow();
+        }
+        housekeepingExecutor = executor;
+        ownsHousekeepingExecutor = false;
+    }
+
+    /**
+     * Replaces the task queue while the provider is running. Armed tasks are moved to the new queue for the same
+     * absolute times so nothing is dropped or fired twice. The old queue forwards to the new one until it has
+     * drained in the background, so it remains the provider's queue until then.
+     *
+     * @param executor the new task queue
+     */
+    public synchronized void migrateScheduleExecutor(TaskQueue executor) {
+        // if a migration is still draining, this one follows on from its target
+        TaskQueue old = (migrationTarget != null) ? migrationTarget : taskQueue;
+        executor.setListener(this);
+        if (running) {
+            executor.start();
+        }
+        if (old != null) {
+            logger.info("Migrating tasks to new task queue");
+            migrationTarget = executor;
+            pendingMigrations++;
+            old.migrateTo(executor, housekeepingExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    onMigrationComplete();
+                }
+            });
+        } else {
+            taskQueue = executor;
+        }
+    }
+
+    synchronized private void onMigrationComplete() {
+        // the old queues forward to each other in turn so only switch once they have all drained
+        if (pendingMigrations > 0 && --pendingMigrations == 0 && migrationTarget != null) {
+            taskQueue = migrationTarget;
+            migrationTarget = null;
+            logger.info("Task queue migration complete");
+        }
+    }
+
+    public TaskQueue getScheduleExecutor() {
+        return taskQueue;
     }
 
     public void start() {
@@ -194,14 +628,143 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         }
     }
 
+    /**
+     * Begins a staged startup. Until completeWarmup() has planned them, tasks registered with the provider are only
+     * queued so that registration returns to the hub immediately.
+     */
+    public void beginWarmup() {
+        beginWarmup(System.currentTimeMillis());
+    }
+
+    void beginWarmup(long now) {
+        synchronized (warmupLock) {
+            warmingUp = true;
+            warmupStart = now;
+            registrationReceived = false;
+        }
+    }
+
+    /**
+     * Plans the tasks registered since beginWarmup() in the background, a batch at a time so other housekeeping work
+     * isn't held up behind a large hub. Any task that was due to run between beginWarmup() and being planned is fired
+     * immediately. Tasks registered while planning is under way are included; once nothing is left to plan,
+     * registration goes back to being done inline and the listener is notified.
+     *
+     * If the hub has tasks but hasn't registered them yet, planning waits for the registration (or
+     * REGISTRATION_WAIT_MS milliseconds, in case none of them are for this provider) so the listener isn't told the
+     * provider is ready before any tasks have been planned. A hub with no tasks has nothing to wait for.
+     *
+     * @param listener the listener to notify when planning is complete (or null)
+     */
+    public void completeWarmup(ReadinessListener listener) {
+        ScheduledExecutorService e = housekeepingExecutor;
+        if (e != null) {
+            WarmupPlanner planner = new WarmupPlanner(listener);
+            boolean hubHasTasks = hubHasTasks();
+            synchronized (warmupLock) {
+                if (warmingUp && !registrationReceived && hubHasTasks) {
+                    waitingPlanner = planner;
+                    e.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            startWaitingPlanner();
+                        }
+                    }, REGISTRATION_WAIT_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            e.execute(planner);
+        }
+    }
+
+    private boolean hubHasTasks() {
+        Collection<HobsonTask> c = (taskManager != null) ? taskManager.getTasks(pluginContext.getHubContext()) : null;
+        return (c != null && !c.isEmpty());
+    }
+
+    private void startWaitingPlanner() {
+        WarmupPlanner planner;
+        boolean received;
+        synchronized (warmupLock) {
+            planner = waitingPlanner;
+            waitingPlanner = null;
+            received = registrationReceived;
+        }
+        ScheduledExecutorService e = housekeepingExecutor;
+        if (planner != null && e != null) {
+            if (!received) {
+                logger.warn("No tasks were registered within {}ms; completing warm-up anyway", REGISTRATION_WAIT_MS);
+            }
+            e.execute(planner);
+        }
+    }
+
+    public boolean isWarmingUp() {
+        return warmingUp;
+    }
+
+    /**
+     * Fires a task if one of its runs fell between the start of warm-up and when it was planned.
+     *
+     * @param task the task
+     * @param since the start of warm-up
+     * @param now the time the task was planned
+     *
+     * @return a boolean indicating whether the task was fired
+     */
+    private boolean catchUp(ICalTask task, long since, long now) {
+        try {
+            long offset = getSpreadOffset(task);
+            for (Long rt : task.getRunsDuringInterval(since - offset, now - offset, timeZone)) {
+                if (rt >= since - offset && rt < now - offset) {
+                    logger.debug("Task {} was due during warm-up; firing it now", task.getContext());
+                    onTaskExecuted(task, rt + offset, now, false);
+                    return true;
+                }
+            }
+        } catch (SchedulingException e) {
+            logger.error("Unable to determine if task " + task.getContext() + " was due during warm-up", e);
+        }
+        return false;
+    }
+
     public void stop() {
         running = false;
 
-        resetDayExecutor.shutdownNow();
-        resetDayExecutor = null;
+        synchronized (warmupLock) {
+            pendingRegistrations.clear();
+            warmingUp = false;
+            waitingPlanner = null;
+        }
+
+        setSubscriptions(Collections.<File>emptyList());
+
+        ScheduledExecutorService e = housekeepingExecutor;
+        housekeepingExecutor = null;
+        synchronized (pendingUpdates) {
+            if (ownsHousekeepingExecutor) {
+                e.shutdownNow();
+            } else {
+                // the executor is shared so only cancel this provider's own work
+                if (dayResetFuture != null) {
+                    dayResetFuture.cancel(false);
+                }
+                for (ScheduledFuture f : pendingUpdates.values()) {
+                    f.cancel(false);
+                }
+            }
+            pendingUpdates.clear();
+        }
 
         taskQueue.stop();
         taskQueue = null;
+        synchronized (this) {
+            if (migrationTarget != null) {
+                migrationTarget.stop();
+                migrationTarget = null;
+            }
+            pendingMigrations = 0;
+        }
     }
 
     void resetForNewDay(long now) {
@@ -213,11 +776,16 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         }
 
         // refresh the internal calendar data to identify new tasks that should be scheduled
+        SchedulerEvent evt = SchedulerEvent.begin(SchedulerEvent.Type.DAY_RESET);
+        int skipped = 0;
         try {
-            refreshLocalCalendarData(now, true);
+            skipped = refreshLocalCalendarData(now, true);
         } catch (Exception e) {
             logger.error("Error reloading calendar file on day reset", e);
         }
+        if (evt.isEnabled()) {
+            evt.set("taskCount", tasks.size()).set("skippedCount", skipped).commit();
+        }
 
         // schedule the next run
         scheduleNextWakeup();
@@ -225,19 +793,81 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
 
     private void scheduleNextWakeup() {
         long now = System.currentTimeMillis();
-        long delay = DateHelper.getMillisecondsUntilMidnight(now, timeZone);
+        scheduleDayReset(now, DayBoundaryTable.getMillisecondsUntilMidnight(now, timeZone));
+    }
+
+    private void scheduleDayReset(long now, long delay) {
         logger.debug("New day will start at {} ({} seconds)", new DateTime(now + delay), (delay / 1000));
-        resetDayExecutor.schedule(new Runnable() {
-            @Override
-            public void run() {
-                resetForNewDay(System.currentTimeMillis());
+        nextDayResetTime = now + delay;
+        ScheduledExecutorService e = housekeepingExecutor;
+        if (e != null) {
+            dayResetFuture = e.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resetForNewDay(System.currentTimeMillis());
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onTriggerCondition(ICalTask task, long scheduledTime, long now) {
+        onTaskExecuted(task, scheduledTime, now, false);
+    }
+
+    @Override
+    public void onTaskFired(TaskContext ctx, long scheduledTime, long now, long nextRunTime) {
+        recordExecution(ctx, scheduledTime, now);
+        if (nextRunTime > 0) {
+            // the queue re-armed the task itself so there's no need to re-calculate its schedule
+            Map<String,Object> properties = new HashMap<>();
+            properties.put(ICalTask.PROP_SCHEDULED, true);
+            properties.put(ICalTask.PROP_NEXT_RUN_TIME, nextRunTime);
+            taskManager.updateTaskProperties(pluginContext, ctx, properties);
+        } else if (running) {
+            ICalTask task = tasks.get(ctx);
+            if (task != null) {
+                try {
+                    scheduleNextRun(task, now, false);
+                } catch (Exception e) {
+                    logger.error("Unable to determine if task needs to run again today", e);
+                }
             }
-        }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onClockJump(long drift) {
+        // the day reset was scheduled with a relative delay so it has to be re-planned from the new wall clock time;
+        // a reset that's already under way schedules the next one itself
+        ScheduledFuture f = dayResetFuture;
+        if (running && f != null && f.cancel(false)) {
+            long now = System.currentTimeMillis();
+            long delay = (now >= nextDayResetTime) ? 0 : DayBoundaryTable.getMillisecondsUntilMidnight(now, timeZone);
+            logger.debug("Clock jumped {}ms; rescheduling day reset", drift);
+            scheduleDayReset(now, delay);
+        }
     }
 
     @Override
-    public void onTriggerCondition(ICalTask task, long now) {
-        onTaskExecuted(task, now, false);
+    public void onTaskDropped(TaskContext ctx, long scheduledTime, long nextRunTime) {
+        // a task the queue didn't re-arm needs its next run scheduled (which also clears any previous error)
+        if (nextRunTime == 0 && running) {
+            ICalTask task = tasks.get(ctx);
+            if (task != null) {
+                try {
+                    scheduleNextRun(task, System.currentTimeMillis(), false);
+                } catch (Exception e) {
+                    logger.error("Unable to reschedule dropped task", e);
+                }
+            }
+        }
+
+        String msg = "The run due at " + new Date(scheduledTime) + " was dropped because the dispatch backlog was full";
+        taskErrors.put(ctx, msg);
+        Map<String,Object> properties = new HashMap<>();
+        properties.put(ICalTask.PROP_ERROR, msg);
+        taskManager.updateTaskProperties(pluginContext, ctx, properties);
     }
 
     /**
@@ -248,9 +878,22 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
      * @param forceCheck post-process regardless of running state?
      */
     void onTaskExecuted(ICalTask task, long now, boolean forceCheck) {
+        onTaskExecuted(task, now, now, forceCheck);
+    }
+
+    /**
+     * Callback when a task is executed.
+     *
+     * @param task the task that executed
+     * @param scheduledTime the time the task was scheduled to run (recorded in its execution history)
+     * @param now the current time
+     * @param forceCheck post-process regardless of running state?
+     */
+    void onTaskExecuted(ICalTask task, long scheduledTime, long now, boolean forceCheck) {
         // notify task manager that the trigger condition has fired
         if (taskManager != null) {
             taskManager.fireTaskTrigger(task.getContext());
+            recordExecution(task.getContext(), scheduledTime, now);
         } else {
             logger.error("Task trigger condition fired but no task manager to notify");
         }
@@ -258,7 +901,7 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         if (running || forceCheck) {
             // check if the task needs to execute again today
             try {
-                long endOfDay = DateHelper.getTimeInCurrentDay(now, timeZone, 23, 59, 59, 999).getMillis();
+                long endOfDay = DayBoundaryTable.getEndOfDay(now, timeZone);
                 logger.debug("Task is done executing; checking for any more runs between {} and {}", now, endOfDay);
                 scheduleNextRun(task, now, false);
             } catch (Exception e) {
@@ -272,7 +915,17 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         taskQueue.cancelAll();
     }
 
-    synchronized private void refreshLocalCalendarData(long now, boolean wasDayReset) throws Exception {
+    /**
+     * Re-schedules all tasks.
+     *
+     * @param now the current time
+     * @param wasDayReset indicates whether this is being done as part of a new day reset
+     *
+     * @return the number of tasks that were skipped because they don't run today
+     *
+     * @throws Exception on failure
+     */
+    synchronized private int refreshLocalCalendarData(long now, boolean wasDayReset) throws Exception {
         if (taskQueue == null) {
             throw new Exception("Can't load a schedule without a configured executor");
         }
@@ -280,14 +933,118 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         // clear all existing scheduled tasks
         clearAllTasks();
 
-        // iterate through all events, add them to the internal store and schedule them if they are supposed to run today
-        ComponentList eventList = calendar.getComponents(Component.VEVENT);
-        for (Object anEventList : eventList) {
-            VEvent event = (VEvent)anEventList;
-            ICalTask task = new ICalTask(pluginContext, event, this);
-            task.setLocation(latitude, longitude);
-            if (addTask(task, now, wasDayReset)) {
-                task.run(now);
+        // move the occurrence index horizon forward; on a day reset only the newly uncovered days need indexing
+        long indexedUntil = occurrenceIndex.getHorizonEnd();
+        advanceIndexHorizon(now);
+        boolean extendIndex = (wasDayReset && indexedUntil > occurrenceIndex.getHorizonStart());
+
+        // iterate through all tasks and schedule them if they are supposed to run today; on a day reset a task's run-day
+        // bitmap rules most of them out with a bit test and their next run time is already known from when they were
+        // last scheduled
+        int skipped = 0;
+        for (ICalTask task : tasks.values()) {
+            if (wasDayReset && !task.mayRunOn(now, timeZone, getSpreadOffset(task))) {
+                skipped++;
+            } else if (addTask(task, now, wasDayReset)) {
+                onTaskExecuted(task, now, false);
+            }
+            if (extendIndex) {
+                indexTask(task, indexedUntil, occurrenceIndex.getHorizonEnd(), true);
+            } else {
+                indexTask(task, occurrenceIndex.getHorizonStart(), occurrenceIndex.getHorizonEnd(), false);
+            }
+        }
+        return skipped;
+    }
+
+    private void advanceIndexHorizon(long now) {
+        occurrenceIndex.advance(DayBoundaryTable.getStartOfDay(now, timeZone), DayBoundaryTable.getStartOfDay(now, timeZone, INDEX_HORIZON_DAYS));
+    }
+
+    /**
+     * Creates a generator for a task's runs if they can be computed without expanding its recurrence rule.
+     *
+     * @param task the task
+     * @param spreadOffset the task's spread offset
+     *
+     * @return a RunGenerator or null if the task isn't a fixed period or cron task
+     */
+    private RunGenerator createRunGenerator(final ICalTask task, final long spreadOffset) {
+        final OccurrenceCursor cursor = task.createOccurrenceCursor();
+        if (cursor != null) {
+            cursor.shift(spreadOffset);
+            return new RunGenerator() {
+                @Override
+                public synchronized long getNextRun(long after) {
+                    return cursor.seek(after);
+                }
+            };
+        } else if (task.hasCronSchedule()) {
+            final DateTimeZone tz = timeZone;
+            return new RunGenerator() {
+                @Override
+                public long getNextRun(long after) {
+                    long t = task.getNextCronRun(after - spreadOffset, tz);
+                    return (t > -1) ? t + spreadOffset : -1;
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     * Materializes a task's runs during an interval into the occurrence index.
+     *
+     * @param task the task
+     * @param startTime the start of the interval
+     * @param endTime the end of the interval
+     * @param append whether to add to the task's existing runs rather than replace them
+     */
+    private void indexTask(ICalTask task, long startTime, long endTime, boolean append) {
+        // a generated task's runs already cover any extension of the horizon
+        if (append && occurrenceIndex.isGenerated(task.getContext())) {
+            return;
+        }
+
+        try {
+            // one more run than the index will materialize is collected so it can tell when a task has too many
+            List<Long> times;
+            long spreadOffset = getSpreadOffset(task);
+            OccurrenceCursor cursor = task.createOccurrenceCursor();
+            if (cursor != null) {
+                cursor.shift(spreadOffset);
+                times = new ArrayList<>();
+                cursor.setLimit(endTime - 1);
+                for (long t = cursor.seek(startTime - 1); t > -1 && times.size() <= OccurrenceIndex.MAX_RUNS_PER_TASK; t = cursor.next()) {
+                    times.add(t);
+                }
+            } else if (task.hasCronSchedule()) {
+                times = new ArrayList<>();
+                for (long t = task.getNextCronRun(startTime - 1, timeZone); t > -1 && t < endTime && times.size() <= OccurrenceIndex.MAX_RUNS_PER_TASK; t = task.getNextCronRun(t, timeZone)) {
+                    times.add(t + spreadOffset);
+                }
+            } else {
+                times = new ArrayList<>();
+                for (Long t : task.getRunsDuringInterval(startTime, endTime, timeZone)) {
+                    times.add(t + spreadOffset);
+                }
+            }
+            boolean complete = append ? occurrenceIndex.append(task.getContext(), times) : occurrenceIndex.put(task.getContext(), times);
+
+            // a task with too many runs to materialize has them computed as they're queried instead
+            if (!complete) {
+                RunGenerator g = createRunGenerator(task, spreadOffset);
+                if (g != null) {
+                    logger.debug("Task {} has more than {} runs over the index horizon; generating them on demand", task.getContext(), OccurrenceIndex.MAX_RUNS_PER_TASK);
+                    occurrenceIndex.putGenerator(task.getContext(), g);
+                } else {
+                    logger.warn("Task {} has more than {} runs over the index horizon; only the first {} will be listed", task.getContext(), OccurrenceIndex.MAX_RUNS_PER_TASK, OccurrenceIndex.MAX_RUNS_PER_TASK);
+                }
+            }
+        } catch (SchedulingException e) {
+            logger.trace("Unable to index runs for task {}", task.getContext(), e);
+            if (!append) {
+                occurrenceIndex.remove(task.getContext());
             }
         }
     }
@@ -295,28 +1052,78 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
     @Override
     public void onRegisterTasks(Collection<TaskContext> tasks) {
         logger.trace("Detected tasks registration: {}", tasks);
-        onCreateTasks(tasks, System.currentTimeMillis());
+        boolean queued = false;
+        synchronized (warmupLock) {
+            if (warmingUp) {
+                pendingRegistrations.addAll(tasks);
+                registrationReceived = true;
+                queued = true;
+            }
+        }
+        if (queued) {
+            // planning may have been waiting for this registration
+            startWaitingPlanner();
+        } else {
+            onCreateTasks(tasks, System.currentTimeMillis());
+        }
     }
 
-    private ICalTask onCreateTask(HobsonTask task, long startOfDay) {
+    synchronized private ICalTask onCreateTask(HobsonTask task, long startOfDay) {
+        PropertyContainer triggerCondition = TaskHelper.getTriggerCondition(taskManager, task.getConditions());
+
+        // a task synced from a subscribed calendar uses the event's current schedule rather than the one it was
+        // created with since the file may have changed since
+        String source = getSource(triggerCondition);
+        if (source != null) {
+            for (ICalSubscription sub : subscriptions.values()) {
+                if (sub.owns(source)) {
+                    PropertyContainer c = sub.bind(source, task.getContext());
+                    if (c != null) {
+                        triggerCondition = c;
+                    } else if (sub.isRemoved(source)) {
+                        unscheduleSubscribedTask(task.getContext(), "Removed from " + sub.getFile().getName());
+                        return null;
+                    }
+                    break;
+                }
+            }
+        }
+
+        return onCreateTask(task.getContext(), triggerCondition, startOfDay);
+    }
+
+    synchronized private ICalTask onCreateTask(TaskContext ctx, PropertyContainer triggerCondition, long startOfDay) {
         try {
-            ICalTask ict = new ICalTask(task.getContext(), TaskHelper.getTriggerCondition(taskManager, task.getConditions()));
-            ict.setLocation(latitude, longitude);
+            ICalTask ict = new ICalTask(ctx, triggerCondition);
+            ict.setSolarCache(solarCache);
             calendar.getComponents().add(ict.getVEvent());
+            tasks.put(ict.getContext(), ict);
+            feed.put(ict);
+            trackSolarTask(ict);
             addTask(ict, startOfDay, false);
+            if (!occurrenceIndex.hasHorizon()) {
+                advanceIndexHorizon(startOfDay);
+            }
+            indexTask(ict, occurrenceIndex.getHorizonStart(), occurrenceIndex.getHorizonEnd(), false);
             return ict;
         } catch (Exception e) {
             throw new HobsonRuntimeException("Error creating task", e);
         }
     }
 
-    List<ICalTask> onCreateTasks(Collection<TaskContext> tasks, long startOfDay) {
+    synchronized List<ICalTask> onCreateTasks(Collection<TaskContext> tasks, long startOfDay) {
         List<ICalTask> results = new ArrayList<>();
 
         for (TaskContext ctx : tasks) {
             HobsonTask task = taskManager.getTask(ctx);
-            if (task != null && task.isEnabled() && doesOwnTask(task)) {
-                results.add(onCreateTask(task, startOfDay));
+            if (task != null) {
+                prepareConditions(task);
+                if (task.isEnabled() && doesOwnTask(task)) {
+                    ICalTask ict = onCreateTask(task, startOfDay);
+                    if (ict != null) {
+                        results.add(ict);
+                    }
+                }
             }
         }
 
@@ -324,53 +1131,268 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
     }
 
     @Override
-    public void onUpdateTask(TaskContext ctx) {
+    public void onUpdateTask(final TaskContext ctx) {
         logger.trace("Detected update for task {}", ctx);
+        if (updateCoalesceWindow > 0 && housekeepingExecutor != null) {
+            synchronized (pendingUpdates) {
+                if (pendingUpdates.containsKey(ctx)) {
+                    coalescedUpdateCount.incrementAndGet();
+                } else {
+                    pendingUpdates.put(ctx, housekeepingExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (pendingUpdates) {
+                                pendingUpdates.remove(ctx);
+                            }
+                            try {
+                                applyUpdate(ctx);
+                            } catch (Exception e) {
+                                logger.error("Error applying update for task " + ctx, e);
+                            }
+                        }
+                    }, updateCoalesceWindow, TimeUnit.MILLISECONDS));
+                }
+            }
+        } else {
+            applyUpdate(ctx);
+        }
+    }
+
+    /**
+     * Applies the net change of a task's update events.
+     *
+     * @param ctx the task context
+     */
+    synchronized void applyUpdate(TaskContext ctx) {
         HobsonTask task = taskManager.getTask(ctx);
-        if (task != null && doesOwnTask(task)) {
-            onDeleteTask(ctx);
-            if (task.isEnabled()) {
-                logger.trace("Task is enabled so re-adding");
-                long now = System.currentTimeMillis();
-                onCreateTask(task, now);
-            } else {
-                Map<String, Object> properties = new HashMap<>();
-                properties.put(ICalTask.PROP_SCHEDULED, false);
-                properties.put(ICalTask.PROP_NEXT_RUN_TIME, 0);
-                taskManager.updateTaskProperties(pluginContext, ctx, properties);
+        if (task != null) {
+            appliedUpdateCount.incrementAndGet();
+            prepareConditions(task);
+            PropertyContainer triggerCondition = TaskHelper.getTriggerCondition(taskManager, task.getConditions());
+            ICalTask existing = tasks.get(ctx);
+            if (doesOwnTask(triggerCondition)) {
+                if (!task.isEnabled()) {
+                    removeTask(ctx);
+                    Map<String, Object> properties = new HashMap<>();
+                    properties.put(ICalTask.PROP_SCHEDULED, false);
+                    properties.put(ICalTask.PROP_NEXT_RUN_TIME, 0);
+                    taskManager.updateTaskProperties(pluginContext, ctx, properties);
+                } else if (existing == null) {
+                    logger.trace("Task is enabled so re-adding");
+                    onCreateTask(task, System.currentTimeMillis());
+                } else {
+                    onUpdateTask(existing, triggerCondition, System.currentTimeMillis());
+                }
+            } else if (existing != null) {
+                logger.trace("Task {} no longer has a schedule trigger; removing", ctx);
+                onDeleteTask(ctx);
             }
         }
     }
 
-    @Override
-    public void onDeleteTask(TaskContext ctx) {
-        // first cancel the task if it is queued to run
+    /**
+     * Applies an update to an existing task based on what has changed in its trigger condition. Changes that
+     * don't affect the schedule are ignored, start date/time and option changes update the existing task in place
+     * and re-arm it, and only recurrence rule changes rebuild the task.
+     *
+     * @param ict the existing task
+     * @param triggerCondition the updated trigger condition
+     * @param now the current time
+     */
+    synchronized private void onUpdateTask(ICalTask ict, PropertyContainer triggerCondition, long now) {
+        ICalTask.Change change = ict.diff(triggerCondition);
+        logger.trace("Task {} schedule change: {}", ict.getContext(), change);
+        switch (change) {
+            case NONE:
+                break;
+            case OPTIONS:
+            case START:
+                cancelQueuedTask(ict.getContext());
+                try {
+                    ict.updateStart(triggerCondition);
+                    feed.put(ict);
+                    trackSolarTask(ict);
+                    scheduleNextRun(ict, now, false);
+                } catch (Exception e) {
+                    throw new HobsonRuntimeException("Error updating task", e);
+                }
+                if (occurrenceIndex.hasHorizon()) {
+                    indexTask(ict, occurrenceIndex.getHorizonStart(), occurrenceIndex.getHorizonEnd(), false);
+                }
+                break;
+            default:
+                removeTask(ict.getContext());
+                onCreateTask(ict.getContext(), triggerCondition, now);
+                break;
+        }
+    }
+
+    /**
+     * Re-plans a task synced from a subscribed calendar using the event's new schedule.
+     *
+     * @param ctx the task context
+     * @param triggerCondition the event's trigger condition
+     */
+    synchronized void applyCondition(TaskContext ctx, PropertyContainer triggerCondition) {
+        long now = System.currentTimeMillis();
+        ICalTask existing = tasks.get(ctx);
+        if (existing != null) {
+            onUpdateTask(existing, triggerCondition, now);
+        } else {
+            onCreateTask(ctx, triggerCondition, now);
+        }
+        Map<String,Object> properties = new HashMap<>();
+        properties.put(ICalTask.PROP_ERROR, null);
+        taskManager.updateTaskProperties(pluginContext, ctx, properties);
+    }
+
+    /**
+     * Unschedules a task whose event has been removed from a subscribed calendar. The task itself is left in place
+     * (with an error describing why) so that its actions aren't lost.
+     *
+     * @param ctx the task context
+     * @param reason the reason the task was unscheduled
+     */
+    void unscheduleSubscribedTask(TaskContext ctx, String reason) {
+        logger.info("Unscheduling task {}: {}", ctx, reason);
+        removeTask(ctx);
+        Map<String,Object> properties = new HashMap<>();
+        properties.put(ICalTask.PROP_SCHEDULED, false);
+        properties.put(ICalTask.PROP_NEXT_RUN_TIME, 0);
+        properties.put(ICalTask.PROP_ERROR, reason);
+        taskManager.updateTaskProperties(pluginContext, ctx, properties);
+    }
+
+    /**
+     * Sets the .ics files that tasks are synced from. Files that are no longer in the list stop being watched but
+     * their tasks are left as they are.
+     *
+     * @param files the files
+     */
+    public synchronized void setSubscriptions(Collection<File> files) {
+        Set<String> paths = new HashSet<>();
+        for (File f : files) {
+            String path = f.getAbsolutePath();
+            paths.add(path);
+            if (!subscriptions.containsKey(path)) {
+                ICalSubscription sub = new ICalSubscription(f, this, new ICalImporter(taskManager, pluginContext));
+                try {
+                    sub.open();
+                    subscriptions.put(path, sub);
+                    logger.info("Subscribed to {} ({} events)", path, sub.getEventCount());
+                } catch (Exception e) {
+                    logger.error("Unable to subscribe to " + path, e);
+                    sub.close();
+                }
+            }
+        }
+        for (Iterator<Map.Entry<String,ICalSubscription>> it = subscriptions.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String,ICalSubscription> e = it.next();
+            if (!paths.contains(e.getKey())) {
+                e.getValue().close();
+                it.remove();
+                logger.info("Unsubscribed from {}", e.getKey());
+            }
+        }
+
+        if (subscriptions.isEmpty() && subscriptionFuture != null) {
+            subscriptionFuture.cancel(false);
+            subscriptionFuture = null;
+        } else if (!subscriptions.isEmpty() && subscriptionFuture == null && housekeepingExecutor != null) {
+            subscriptionFuture = housekeepingExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (ICalSubscription sub : subscriptions.values()) {
+                        sub.poll();
+                    }
+                }
+            }, SUBSCRIPTION_POLL_INTERVAL, SUBSCRIPTION_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Collection<ICalSubscription> getSubscriptions() {
+        return subscriptions.values();
+    }
+
+    static private String getSource(PropertyContainer triggerCondition) {
+        if (triggerCondition != null && triggerCondition.hasPropertyValue(ScheduleConditionClass.PROP_SOURCE)) {
+            Object o = triggerCondition.getPropertyValue(ScheduleConditionClass.PROP_SOURCE);
+            return (o != null) ? o.toString() : null;
+        }
+        return null;
+    }
+
+    private void cancelQueuedTask(TaskContext ctx) {
         try {
             taskQueue.cancel(ctx);
             logger.debug("Removed task {} from task queue", ctx);
         } catch (TaskNotFoundException e) {
             logger.trace("Unable to find task {} to cancel; ignoring", ctx);
         }
+    }
 
-        // then remove it from the calendar
-        Component c = null;
-        for (Object e : calendar.getComponents()) {
-            if (e instanceof VEvent) {
-                if (((VEvent)e).getUid().getValue().equals(ctx.getTaskId())) {
-                    c = (Component)e;
-                }
+    @Override
+    public void onDeleteTask(TaskContext ctx) {
+        synchronized (warmupLock) {
+            pendingRegistrations.remove(ctx);
+        }
+        removeTask(ctx);
+        executionHistory.remove(ctx);
+    }
+
+    /**
+     * Removes a task from the schedule. Unlike onDeleteTask(), the task's execution history is kept since the task
+     * itself still exists.
+     *
+     * @param ctx the task context
+     */
+    synchronized private void removeTask(TaskContext ctx) {
+        // any pending update is now moot
+        synchronized (pendingUpdates) {
+            ScheduledFuture f = pendingUpdates.remove(ctx);
+            if (f != null) {
+                f.cancel(false);
             }
         }
-        if (c != null) {
+
+        // first cancel the task if it is queued to run
+        cancelQueuedTask(ctx);
+
+        // then remove it from the calendar
+        ICalTask ict = tasks.remove(ctx);
+        taskErrors.remove(ctx);
+        feed.remove(ctx);
+        solarTasks.remove(ctx);
+        occurrenceIndex.remove(ctx);
+        if (ict != null) {
             logger.debug("Removing task from calendar: {}", ctx);
-            calendar.getComponents().remove(c);
+            calendar.getComponents().remove(ict.getVEvent());
         } else {
             logger.trace("Unable to find task {} to remove; ignoring", ctx);
         }
     }
 
+    /**
+     * Compiles any of a task's conditions that this plugin evaluates so their first evaluation doesn't have to.
+     *
+     * @param task the task
+     */
+    private void prepareConditions(HobsonTask task) {
+        if (task.getConditions() != null) {
+            for (PropertyContainer pc : task.getConditions()) {
+                TaskConditionClass tcc = taskManager.getConditionClass(pc.getContainerClassContext());
+                if (tcc instanceof TimeWindowConditionClass) {
+                    ((TimeWindowConditionClass)tcc).prepare(pc);
+                }
+            }
+        }
+    }
+
     private boolean doesOwnTask(HobsonTask task) {
-        PropertyContainer triggerCondition = TaskHelper.getTriggerCondition(taskManager, task.getConditions());
+        return doesOwnTask(TaskHelper.getTriggerCondition(taskManager, task.getConditions()));
+    }
+
+    private boolean doesOwnTask(PropertyContainer triggerCondition) {
         if (triggerCondition != null) {
             TaskConditionClass tcc = taskManager.getConditionClass(triggerCondition.getContainerClassContext());
             if (tcc != null) {
@@ -379,4 +1401,68 @@ public class ICalTaskProvider implements TaskProvider, TriggerConditionListener
         }
         return false;
     }
+
+    /**
+     * Plans one batch of the registrations queued during warm-up and then re-submits itself until none are left.
+     */
+    private class WarmupPlanner implements Runnable {
+        private final ReadinessListener listener;
+        private final long startTime = System.currentTimeMillis();
+        private int plannedCount;
+        private int caughtUpCount;
+
+        WarmupPlanner(ReadinessListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+
+            long since;
+            List<TaskContext> batch = new ArrayList<>(PLANNING_BATCH_SIZE);
+            synchronized (warmupLock) {
+                since = warmupStart;
+                while (batch.size() < PLANNING_BATCH_SIZE && !pendingRegistrations.isEmpty()) {
+                    TaskContext ctx = pendingRegistrations.poll();
+                    // an update may already have scheduled the task
+                    if (!tasks.containsKey(ctx)) {
+                        batch.add(ctx);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    warmingUp = false;
+                }
+            }
+
+            if (batch.isEmpty()) {
+                logger.info("Planned {} task(s) in {}ms; {} were due during warm-up", plannedCount, System.currentTimeMillis() - startTime, caughtUpCount);
+                if (listener != null) {
+                    listener.onReady(plannedCount, caughtUpCount);
+                }
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for (TaskContext ctx : batch) {
+                try {
+                    for (ICalTask ict : onCreateTasks(Collections.singletonList(ctx), now)) {
+                        plannedCount++;
+                        if (catchUp(ict, since, now)) {
+                            caughtUpCount++;
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error("Error planning task " + ctx, e);
+                }
+            }
+
+            ScheduledExecutorService e = housekeepingExecutor;
+            if (e != null) {
+                e.execute(this);
+            }
+        }
+    }
 }
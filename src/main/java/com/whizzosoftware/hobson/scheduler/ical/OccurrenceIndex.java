@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An ordered index of the runs of all tasks over a rolling time horizon. Range queries are answered in O(log n + k)
+ * and results can be paged by passing the last run of the previous page.
+ *
+ * Runs are materialized up to MAX_RUNS_PER_TASK per task. A task with more runs than that over the horizon can be
+ * given a RunGenerator instead, whose runs are computed as range queries reach them. Any other task is truncated to
+ * its first MAX_RUNS_PER_TASK runs and counted as such.
+ */
+public class OccurrenceIndex {
+    /**
+     * The maximum number of runs materialized for a single task over the horizon.
+     */
+    public static final int MAX_RUNS_PER_TASK = 2016;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeSet<ScheduledRun> runs = new TreeSet<>();
+    private final Map<TaskContext,ArrayDeque<ScheduledRun>> taskRuns = new HashMap<>();
+    private final Map<TaskContext,RunGenerator> generators = new HashMap<>();
+    private final Set<TaskContext> truncated = new HashSet<>();
+    private long horizonStart;
+    private long horizonEnd;
+
+    public long getHorizonStart() {
+        return horizonStart;
+    }
+
+    public long getHorizonEnd() {
+        return horizonEnd;
+    }
+
+    public boolean hasHorizon() {
+        return (horizonEnd > horizonStart);
+    }
+
+    /**
+     * Moves the index horizon forward, discarding any runs that occur before its new start.
+     *
+     * @param start the new start of the horizon
+     * @param end the new end of the horizon
+     */
+    public void advance(long start, long end) {
+        lock.writeLock().lock();
+        try {
+            runs.headSet(new ScheduledRun(null, start)).clear();
+            for (ArrayDeque<ScheduledRun> q : taskRuns.values()) {
+                while (!q.isEmpty() && q.peekFirst().getTime() < start) {
+                    q.pollFirst();
+                }
+            }
+            horizonStart = start;
+            horizonEnd = end;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces all indexed runs for a task.
+     *
+     * @param ctx the task context
+     * @param times the task's run times in ascending order
+     *
+     * @return false if the runs were truncated to MAX_RUNS_PER_TASK
+     */
+    public boolean put(TaskContext ctx, List<Long> times) {
+        lock.writeLock().lock();
+        try {
+            removeRuns(ctx);
+            return addRuns(ctx, times);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds runs for a task to those already indexed (e.g. when the horizon has been advanced). This does nothing for
+     * a task whose runs are generated.
+     *
+     * @param ctx the task context
+     * @param times the additional run times in ascending order
+     *
+     * @return false if the runs were truncated to MAX_RUNS_PER_TASK
+     */
+    public boolean append(TaskContext ctx, List<Long> times) {
+        lock.writeLock().lock();
+        try {
+            return generators.containsKey(ctx) || addRuns(ctx, times);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces all indexed runs for a task with a generator that produces them as they're queried.
+     *
+     * @param ctx the task context
+     * @param generator the generator
+     */
+    public void putGenerator(TaskContext ctx, RunGenerator generator) {
+        lock.writeLock().lock();
+        try {
+            removeRuns(ctx);
+            generators.put(ctx, generator);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indicates whether a task's runs are generated rather than materialized.
+     *
+     * @param ctx the task context
+     *
+     * @return a boolean
+     */
+    public boolean isGenerated(TaskContext ctx) {
+        lock.readLock().lock();
+        try {
+            return generators.containsKey(ctx);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getGeneratedTaskCount() {
+        lock.readLock().lock();
+        try {
+            return generators.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks whose runs were truncated to MAX_RUNS_PER_TASK.
+     *
+     * @return a count
+     */
+    public int getTruncatedTaskCount() {
+        lock.readLock().lock();
+        try {
+            return truncated.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all indexed runs for a task.
+     *
+     * @param ctx the task context
+     */
+    public void remove(TaskContext ctx) {
+        lock.writeLock().lock();
+        try {
+            removeRuns(ctx);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            runs.clear();
+            taskRuns.clear();
+            generators.clear();
+            truncated.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return runs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns indexed runs in a time interval in ascending order. Generated runs are only returned within the
+     * horizon, the same as materialized ones.
+     *
+     * @param startTime the start of the interval (inclusive)
+     * @param endTime the end of the interval (exclusive)
+     * @param after the last run of the previous page (or null for the first page)
+     * @param limit the maximum number of runs to return
+     *
+     * @return a list of ScheduledRun objects
+     */
+    public List<ScheduledRun> getRuns(long startTime, long endTime, ScheduledRun after, int limit) {
+        List<ScheduledRun> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            boolean paging = (after != null && after.getTime() >= startTime);
+            NavigableSet<ScheduledRun> range;
+            if (paging) {
+                range = runs.tailSet(after, false);
+            } else {
+                range = runs.tailSet(new ScheduledRun(null, startTime), true);
+            }
+
+            // merge the materialized runs with the next run of each generated task
+            PriorityQueue<GeneratedRun> generated = new PriorityQueue<>();
+            long generatedEnd = Math.min(endTime, horizonEnd);
+            long from = Math.max(paging ? after.getTime() : startTime, horizonStart);
+            for (Map.Entry<TaskContext,RunGenerator> e : generators.entrySet()) {
+                RunGenerator g = e.getValue();
+                long t = g.getNextRun(from - 1);
+                // when paging, a run at the same time as the last one is only included if it sorts after it
+                if (paging && t == after.getTime() && new ScheduledRun(e.getKey(), t).compareTo(after) <= 0) {
+                    t = g.getNextRun(t);
+                }
+                if (t > -1 && t < generatedEnd) {
+                    generated.add(new GeneratedRun(new ScheduledRun(e.getKey(), t), g));
+                }
+            }
+
+            Iterator<ScheduledRun> it = range.iterator();
+            ScheduledRun next = it.hasNext() ? it.next() : null;
+            while (results.size() < limit) {
+                GeneratedRun g = generated.peek();
+                ScheduledRun r;
+                if (g != null && (next == null || g.run.compareTo(next) < 0)) {
+                    r = g.run;
+                    generated.poll();
+                    long t = g.generator.getNextRun(r.getTime());
+                    if (t > -1 && t < generatedEnd) {
+                        generated.add(new GeneratedRun(new ScheduledRun(r.getContext(), t), g.generator));
+                    }
+                } else if (next != null) {
+                    r = next;
+                    next = it.hasNext() ? it.next() : null;
+                } else {
+                    break;
+                }
+                if (r.getTime() >= endTime) {
+                    break;
+                }
+                results.add(r);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    private boolean addRuns(TaskContext ctx, List<Long> times) {
+        ArrayDeque<ScheduledRun> q = taskRuns.get(ctx);
+        if (q == null) {
+            q = new ArrayDeque<>();
+            taskRuns.put(ctx, q);
+        }
+        for (Long t : times) {
+            if (t >= horizonStart && t < horizonEnd && (q.isEmpty() || t > q.peekLast().getTime())) {
+                if (q.size() >= MAX_RUNS_PER_TASK) {
+                    truncated.add(ctx);
+                    return false;
+                }
+                ScheduledRun r = new ScheduledRun(ctx, t);
+                q.addLast(r);
+                runs.add(r);
+            }
+        }
+        return true;
+    }
+
+    private void removeRuns(TaskContext ctx) {
+        generators.remove(ctx);
+        truncated.remove(ctx);
+        ArrayDeque<ScheduledRun> q = taskRuns.remove(ctx);
+        if (q != null) {
+            for (ScheduledRun r : q) {
+                runs.remove(r);
+            }
+        }
+    }
+
+    /**
+     * The next run of a generated task during a range query.
+     */
+    private static class GeneratedRun implements Comparable<GeneratedRun> {
+        final ScheduledRun run;
+        final RunGenerator generator;
+
+        GeneratedRun(ScheduledRun run, RunGenerator generator) {
+            this.run = run;
+            this.generator = generator;
+        }
+
+        @Override
+        public int compareTo(GeneratedRun o) {
+            return run.compareTo(o.run);
+        }
+    }
+}
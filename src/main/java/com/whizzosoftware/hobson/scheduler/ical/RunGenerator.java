@@ -0,0 +1,25 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+/**
+ * Produces a task's runs on demand. The occurrence index uses this for tasks that have too many runs over its
+ * horizon to materialize (e.g. FREQ=MINUTELY rules or cron schedules that fire every minute).
+ *
+ * Implementations must be safe to call from multiple threads.
+ */
+public interface RunGenerator {
+    /**
+     * Returns the first run strictly after a point in time.
+     *
+     * @param after the point in time
+     *
+     * @return a run time or -1 if there are no more runs
+     */
+    long getNextRun(long after);
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * An iCalendar export of the provider's schedule for external consumers (e.g. dashboards) that poll it.
+ *
+ * Every change to a task increments a global version and the task takes that version, which is exported as the
+ * event's SEQUENCE. The ETag identifies the global version so a consumer can skip unchanged polls entirely, and
+ * getChangesSince() returns only the events that changed after a version the consumer already has (with removed
+ * tasks as cancelled events). Each event is serialized at most once per version and the full export is cached until
+ * the next change, so polling an unchanged schedule doesn't serialize anything.
+ *
+ * Removed tasks are remembered so they can be included in deltas; once more than MAX_TOMBSTONES have accumulated the
+ * oldest are forgotten and deltas from before them are returned as a full export instead.
+ */
+public class ScheduleFeed {
+    public static final int MAX_TOMBSTONES = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] HEADER = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//Whizzo Software//Hobson Scheduler//EN\r\n".getBytes(UTF8);
+    private static final byte[] FOOTER = "END:VCALENDAR\r\n".getBytes(UTF8);
+    private static final byte[] EMPTY = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//Whizzo Software//Hobson Scheduler//EN\r\nEND:VCALENDAR\r\n".getBytes(UTF8);
+    private static final String BEGIN_VEVENT = "BEGIN:VEVENT\r\n";
+    private static final long ENTRY_BYTES = 64;
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final Map<TaskContext,Entry> entries = new HashMap<>();
+    private long version;
+    private long minDeltaVersion;
+    private int tombstoneCount;
+    private byte[] fullExport;
+    private long fullExportVersion = -1;
+    private long serializationCount;
+
+    /**
+     * Records that a task has been added or its schedule has changed.
+     *
+     * @param task the task
+     */
+    public synchronized void put(ICalTask task) {
+        Entry old = entries.put(task.getContext(), new Entry(task, ++version));
+        if (old != null && old.task == null) {
+            tombstoneCount--;
+        }
+    }
+
+    /**
+     * Records that a task has been removed.
+     *
+     * @param ctx the task context
+     */
+    public synchronized void remove(TaskContext ctx) {
+        Entry old = entries.get(ctx);
+        if (old != null && old.task != null) {
+            entries.put(ctx, new Entry(null, ++version));
+            tombstoneCount++;
+            if (tombstoneCount > MAX_TOMBSTONES) {
+                pruneTombstones();
+            }
+        }
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the version a task was last changed at.
+     *
+     * @param ctx the task context
+     *
+     * @return a version or 0 if the task isn't in the feed
+     */
+    public synchronized long getVersion(TaskContext ctx) {
+        Entry e = entries.get(ctx);
+        return (e != null && e.task != null) ? e.version : 0;
+    }
+
+    /**
+     * Returns an entity tag for the current version of the feed. It changes whenever any task changes and is never
+     * re-used by a different provider instance.
+     *
+     * @return a quoted ETag
+     */
+    public synchronized String getETag() {
+        return createETag(version);
+    }
+
+    /**
+     * Indicates whether an entity tag a consumer already has is still current.
+     *
+     * @param etag the entity tag
+     *
+     * @return a boolean
+     */
+    public synchronized boolean isCurrent(String etag) {
+        return getETag().equals(etag);
+    }
+
+    /**
+     * Returns the full schedule as an iCalendar document.
+     *
+     * @return UTF-8 bytes
+     */
+    public synchronized byte[] export() {
+        if (fullExportVersion != version) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(HEADER, 0, HEADER.length);
+            for (Entry e : entries.values()) {
+                if (e.task != null) {
+                    byte[] b = e.getBytes();
+                    out.write(b, 0, b.length);
+                }
+            }
+            out.write(FOOTER, 0, FOOTER.length);
+            fullExport = out.toByteArray();
+            fullExportVersion = version;
+        }
+        return fullExport;
+    }
+
+    /**
+     * Returns the changes made after a given version.
+     *
+     * @param sinceVersion the version the consumer already has
+     *
+     * @return a Delta
+     */
+    public synchronized Delta getChangesSince(long sinceVersion) {
+        if (sinceVersion < minDeltaVersion || sinceVersion > version) {
+            // the consumer's version is too old (or isn't one of ours) so it needs everything
+            return new Delta(sinceVersion, version, createETag(version), true, 0, 0, export());
+        } else if (sinceVersion == version) {
+            return new Delta(sinceVersion, version, createETag(version), false, 0, 0, EMPTY);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(HEADER, 0, HEADER.length);
+        int changed = 0;
+        int removed = 0;
+        for (Map.Entry<TaskContext,Entry> me : entries.entrySet()) {
+            Entry e = me.getValue();
+            if (e.version > sinceVersion) {
+                byte[] b;
+                if (e.task != null) {
+                    b = e.getBytes();
+                    changed++;
+                } else {
+                    b = createCancellation(me.getKey(), e.version);
+                    removed++;
+                }
+                out.write(b, 0, b.length);
+            }
+        }
+        out.write(FOOTER, 0, FOOTER.length);
+        return new Delta(sinceVersion, version, createETag(version), false, changed, removed, out.toByteArray());
+    }
+
+    /**
+     * Returns the number of times an event has been serialized.
+     *
+     * @return a count
+     */
+    public synchronized long getSerializationCount() {
+        return serializationCount;
+    }
+
+    /**
+     * Returns the estimated number of bytes the feed occupies, including cached serializations.
+     *
+     * @return a number of bytes
+     */
+    public synchronized long getEstimatedSize() {
+        long size = (fullExport != null) ? fullExport.length : 0;
+        for (Entry e : entries.values()) {
+            size += ENTRY_BYTES + (e.bytes != null ? e.bytes.length : 0);
+        }
+        return size;
+    }
+
+    private void pruneTombstones() {
+        // forget the oldest half of the tombstones
+        List<Long> versions = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            if (e.task == null) {
+                versions.add(e.version);
+            }
+        }
+        Collections.sort(versions);
+        long cutoff = versions.get(versions.size() / 2);
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (e.task == null && e.version <= cutoff) {
+                it.remove();
+                tombstoneCount--;
+            }
+        }
+        minDeltaVersion = cutoff;
+    }
+
+    private String createETag(long v) {
+        return "\"" + epoch + "-" + v + "\"";
+    }
+
+    private byte[] createCancellation(TaskContext ctx, long v) {
+        return (BEGIN_VEVENT + "UID:" + ctx.getTaskId() + "\r\nSEQUENCE:" + v + "\r\nSTATUS:CANCELLED\r\nEND:VEVENT\r\n").getBytes(UTF8);
+    }
+
+    /**
+     * A task's latest version along with its serialized event. A removed task is kept as a tombstone with no task.
+     */
+    private class Entry {
+        private final ICalTask task;
+        private final long version;
+        private byte[] bytes;
+
+        Entry(ICalTask task, long version) {
+            this.task = task;
+            this.version = version;
+        }
+
+        byte[] getBytes() {
+            if (bytes == null) {
+                String s = task.getVEvent().toString();
+                // add the task's version as the event's sequence number
+                if (s.startsWith(BEGIN_VEVENT)) {
+                    s = BEGIN_VEVENT + "SEQUENCE:" + version + "\r\n" + s.substring(BEGIN_VEVENT.length());
+                }
+                bytes = s.getBytes(UTF8);
+                serializationCount++;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * The changes made to the schedule between two versions.
+     */
+    public static class Delta {
+        private final long fromVersion;
+        private final long toVersion;
+        private final String etag;
+        private final boolean full;
+        private final int changedCount;
+        private final int removedCount;
+        private final byte[] bytes;
+
+        Delta(long fromVersion, long toVersion, String etag, boolean full, int changedCount, int removedCount, byte[] bytes) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.etag = etag;
+            this.full = full;
+            this.changedCount = changedCount;
+            this.removedCount = removedCount;
+            this.bytes = bytes;
+        }
+
+        public long getFromVersion() {
+            return fromVersion;
+        }
+
+        /**
+         * Returns the version the consumer will have once it has applied this delta.
+         *
+         * @return a version
+         */
+        public long getToVersion() {
+            return toVersion;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Indicates whether this is a full export rather than a delta (in which case the consumer should discard
+         * everything it has).
+         *
+         * @return a boolean
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        public boolean isEmpty() {
+            return (!full && changedCount == 0 && removedCount == 0);
+        }
+
+        public int getChangedCount() {
+            return changedCount;
+        }
+
+        public int getRemovedCount() {
+            return removedCount;
+        }
+
+        /**
+         * Returns the delta as an iCalendar document containing the changed events and a cancelled event for each
+         * removed task.
+         *
+         * @return UTF-8 bytes
+         */
+        public byte[] toBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+/**
+ * A single upcoming run of a task. Runs are ordered by time and then by task ID so they can be used as
+ * paging keys.
+ */
+public class ScheduledRun implements Comparable<ScheduledRun> {
+    private TaskContext context;
+    private long time;
+
+    public ScheduledRun(TaskContext context, long time) {
+        this.context = context;
+        this.time = time;
+    }
+
+    public TaskContext getContext() {
+        return context;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public int compareTo(ScheduledRun o) {
+        if (time != o.time) {
+            return (time < o.time) ? -1 : 1;
+        }
+        if (context == null || o.context == null) {
+            return (context == o.context) ? 0 : (context == null ? -1 : 1);
+        }
+        return context.getTaskId().compareTo(o.context.getTaskId());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof ScheduledRun && compareTo((ScheduledRun)o) == 0);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int)(time ^ (time >>> 32)) * 31 + (context != null ? context.getTaskId().hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        return context + "@" + time;
+    }
+}
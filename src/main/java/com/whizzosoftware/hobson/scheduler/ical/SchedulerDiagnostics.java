@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.scheduler.queue.QueueDiagnostics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A point-in-time view of the task provider's internal state for troubleshooting a misbehaving hub.
+ *
+ * Like QueueDiagnostics, the snapshot is taken without stopping the scheduler so it's cheap enough to poll every few
+ * seconds. Memory figures are estimates based on typical per-entry sizes.
+ */
+public class SchedulerDiagnostics {
+    private final long time;
+    private final boolean running;
+    private final int taskCount;
+    private final int calendarSize;
+    private final int solarTaskCount;
+    private final long nextDayReset;
+    private final Map<TaskContext,String> tasksInError;
+    private final QueueDiagnostics queue;
+    private final Map<String,Long> estimatedMemory;
+
+    SchedulerDiagnostics(long time, boolean running, int taskCount, int calendarSize, int solarTaskCount, long nextDayReset, Map<TaskContext,String> tasksInError, QueueDiagnostics queue, Map<String,Long> estimatedMemory) {
+        this.time = time;
+        this.running = running;
+        this.taskCount = taskCount;
+        this.calendarSize = calendarSize;
+        this.solarTaskCount = solarTaskCount;
+        this.nextDayReset = nextDayReset;
+        this.tasksInError = Collections.unmodifiableMap(tasksInError);
+        this.queue = queue;
+        this.estimatedMemory = Collections.unmodifiableMap(estimatedMemory);
+    }
+
+    /**
+     * Returns the time the snapshot was taken.
+     *
+     * @return a time in epoch milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getTaskCount() {
+        return taskCount;
+    }
+
+    /**
+     * Returns the number of components in the provider's calendar.
+     *
+     * @return a count
+     */
+    public int getCalendarSize() {
+        return calendarSize;
+    }
+
+    public int getSolarTaskCount() {
+        return solarTaskCount;
+    }
+
+    /**
+     * Returns the time the next day reset is due.
+     *
+     * @return a time in epoch milliseconds (or 0 if none is scheduled)
+     */
+    public long getNextDayReset() {
+        return nextDayReset;
+    }
+
+    /**
+     * Returns the tasks whose schedule couldn't be calculated the last time it was attempted.
+     *
+     * @return a map of task context to error message
+     */
+    public Map<TaskContext,String> getTasksInError() {
+        return tasksInError;
+    }
+
+    /**
+     * Returns the task queue's diagnostics.
+     *
+     * @return a QueueDiagnostics instance (or null if the queue doesn't provide them)
+     */
+    public QueueDiagnostics getQueue() {
+        return queue;
+    }
+
+    /**
+     * Returns the estimated size of each of the scheduler's structures, including the queue's.
+     *
+     * @return a map of structure name to bytes
+     */
+    public Map<String,Long> getEstimatedMemory() {
+        return estimatedMemory;
+    }
+
+    /**
+     * Returns the sum of the estimated structure sizes.
+     *
+     * @return a number of bytes
+     */
+    public long getEstimatedTotalMemory() {
+        long total = 0;
+        for (Long l : estimatedMemory.values()) {
+            total += l;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "tasks=" + taskCount + ", calendar=" + calendarSize + ", errors=" + tasksInError.size() + ", nextDayReset=" + nextDayReset + ", memory=" + getEstimatedTotalMemory() + ", queue=" + queue;
+    }
+}
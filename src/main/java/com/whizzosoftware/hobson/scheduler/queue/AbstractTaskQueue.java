@@ -0,0 +1,657 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.api.task.TaskManager;
+import com.whizzosoftware.hobson.scheduler.TaskNotFoundException;
+import com.whizzosoftware.hobson.scheduler.util.SchedulerEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class for TaskQueue implementations. Subclasses only provide the timer that wakes tasks up; this class
+ * handles everything else.
+ *
+ * The timer thread only publishes due triggers to a TriggerDispatcher, which fires them on its own thread in priority
+ * and deadline order. If the dispatcher's backlog for a priority is full, the trigger is held in a deadline-ordered
+ * overflow queue (along with any later triggers of that priority, so they can't overtake it) and publishing is
+ * retried every BACKPRESSURE_DELAY_MS milliseconds. A trigger that still can't be published after MAX_PUBLISH_WAIT_MS
+ * is dropped, counted in the diagnostics and reported to the listener so the task can be rescheduled.
+ *
+ * Since timers measure delays with the monotonic clock, a ClockWatchdog runs on the timer thread and re-arms every
+ * queued task from its absolute scheduled time whenever the wall clock jumps.
+ *
+ * In precision mode, tasks are woken a short lead time early and a PrecisionTimer waits out the remainder on the
+ * timer thread so that triggers are published within a fraction of a millisecond of their scheduled time. Since that
+ * wait holds up the timer thread, precision mode is only available to queues that own their timer.
+ *
+ * @param <T> the type of handle the timer returns for a scheduled wakeup
+ */
+abstract public class AbstractTaskQueue<T> implements TaskQueue {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    static final long BACKPRESSURE_DELAY_MS = 10;
+    static final long MAX_PUBLISH_WAIT_MS = 5000;
+    static final long MIGRATION_DRAIN_TIMEOUT_MS = 5000;
+
+    // estimated bytes for a queued task (map node, QueuedTask and the timer's handle) and a ring buffer slot
+    private static final long QUEUED_TASK_BYTES = 160;
+    private static final long TRIGGER_SLOT_BYTES = 20;
+
+    private TriggerDispatcher dispatcher;
+    private ConcurrentHashMap<TaskContext,QueuedTask> futureMap = new ConcurrentHashMap<>();
+    private ClockWatchdog watchdog;
+    private boolean watchdogStarted;
+    private volatile PrecisionTimer precisionTimer;
+    private volatile TaskQueue migrationTarget;
+    private final AtomicInteger pendingPublishes = new AtomicInteger();
+    private final List<PriorityQueue<PendingTrigger>> overflow = new ArrayList<>();
+    private boolean retryArmed;
+    private volatile long maxPublishWait = MAX_PUBLISH_WAIT_MS;
+
+    protected AbstractTaskQueue(TaskManager taskManager, int dispatchThreads) {
+        this(new TriggerDispatcher(taskManager, Math.max(1, dispatchThreads)));
+    }
+
+    protected AbstractTaskQueue(TriggerDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        for (int i = 0; i < TaskPriority.values().length; i++) {
+            overflow.add(new PriorityQueue<PendingTrigger>());
+        }
+        this.watchdog = new ClockWatchdog(new ClockJumpListener() {
+            @Override
+            public void onClockJump(long drift) {
+                watchdog.recordRearmed(resync());
+                AbstractTaskQueue.this.dispatcher.recordClockJump(drift);
+            }
+        });
+    }
+
+    /**
+     * Schedules a wakeup on the timer.
+     *
+     * @param task the task to run
+     * @param delayInMs the number of milliseconds from now to run it
+     *
+     * @return a handle for the wakeup or null if the timer has been stopped
+     */
+    abstract protected T scheduleTimer(Runnable task, long delayInMs);
+
+    /**
+     * Cancels a wakeup.
+     *
+     * @param timer the handle returned by scheduleTimer()
+     * @param mayInterrupt whether the thread running the wakeup should be interrupted if it has already started
+     *
+     * @return false if the wakeup had already started or completed
+     */
+    abstract protected boolean cancelTimer(T timer, boolean mayInterrupt);
+
+    /**
+     * Stops the timer. No wakeups should be run after this returns. Wakeups for queued tasks have already been
+     * cancelled when this is called.
+     */
+    abstract protected void stopTimer();
+
+    @Override
+    public synchronized void start() {
+        dispatcher.start();
+        if (!watchdogStarted) {
+            scheduleTimer(new Runnable() {
+                @Override
+                public void run() {
+                    watchdog.run();
+                    scheduleTimer(this, watchdog.getInterval());
+                }
+            }, watchdog.getInterval());
+            watchdogStarted = true;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        for (QueuedTask qt : futureMap.values()) {
+            qt.cancel();
+        }
+        stopTimer();
+        dispatcher.stop();
+        futureMap.clear();
+        synchronized (overflow) {
+            for (PriorityQueue<PendingTrigger> q : overflow) {
+                q.clear();
+            }
+            pendingPublishes.set(0);
+            retryArmed = false;
+        }
+    }
+
+    @Override
+    public void setListener(TaskQueueListener listener) {
+        dispatcher.setListener(listener);
+    }
+
+    public TriggerDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public ClockWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * Sets how long a trigger can wait for room in the dispatcher before it's dropped.
+     *
+     * @param maxPublishWait a number of milliseconds
+     */
+    void setMaxPublishWait(long maxPublishWait) {
+        this.maxPublishWait = maxPublishWait;
+    }
+
+    /**
+     * Indicates whether this queue is the only user of its timer's thread.
+     *
+     * @return a boolean
+     */
+    protected boolean ownsTimer() {
+        return true;
+    }
+
+    /**
+     * Enables or disables precision mode. Enabling it calibrates a new PrecisionTimer for this host. Tasks that are
+     * already queued keep the wakeup time they were armed with.
+     *
+     * @param enabled whether precision mode is enabled
+     *
+     * @throws IllegalStateException if enabling precision mode on a queue that shares its timer
+     */
+    public void setPrecisionMode(boolean enabled) {
+        if (enabled && !ownsTimer()) {
+            throw new IllegalStateException("Precision mode can't be enabled on a queue that shares its timer");
+        }
+        if (enabled && precisionTimer == null) {
+            PrecisionTimer pt = new PrecisionTimer();
+            pt.calibrate();
+            precisionTimer = pt;
+        } else if (!enabled) {
+            precisionTimer = null;
+        }
+    }
+
+    /**
+     * Returns the precision timer.
+     *
+     * @return a PrecisionTimer or null if precision mode is disabled
+     */
+    public PrecisionTimer getPrecisionTimer() {
+        return precisionTimer;
+    }
+
+    /**
+     * Re-arms every queued task from its absolute scheduled time (e.g. after the wall clock has jumped).
+     *
+     * @return the number of tasks re-armed
+     */
+    public int resync() {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (QueuedTask qt : futureMap.values()) {
+            if (qt.rearm(now)) {
+                count++;
+            }
+        }
+        logger.debug("Re-armed {} task(s)", count);
+        return count;
+    }
+
+    @Override
+    public void schedule(TaskContext taskContext, long delayInMs) {
+        schedule(taskContext, delayInMs, null, TaskPriority.NORMAL);
+    }
+
+    @Override
+    public void schedule(TaskContext taskContext, long delayInMs, OccurrenceCursor cursor, TaskPriority priority) {
+        TaskQueue target = migrationTarget;
+        if (target != null) {
+            target.schedule(taskContext, delayInMs, cursor, priority);
+            return;
+        }
+        logger.debug("Scheduling task {} to run in {} seconds", taskContext.getTaskId(), delayInMs / 1000);
+        SchedulerEvent evt = SchedulerEvent.begin(SchedulerEvent.Type.QUEUE_SCHEDULE);
+        QueuedTask qt = new QueuedTask(taskContext, cursor, priority != null ? priority : TaskPriority.NORMAL);
+        QueuedTask old = futureMap.put(taskContext, qt);
+        if (old != null) {
+            old.cancel();
+        }
+        qt.arm(System.currentTimeMillis() + delayInMs);
+        if (evt.isEnabled()) {
+            evt.set("task", taskContext.getTaskId()).set("delay", delayInMs).set("priority", qt.priority.ordinal()).commit();
+        }
+    }
+
+    @Override
+    public boolean isTaskScheduled(TaskContext context) {
+        TaskQueue target = migrationTarget;
+        return (target != null) ? target.isTaskScheduled(context) : futureMap.containsKey(context);
+    }
+
+    @Override
+    public void cancel(TaskContext context) throws TaskNotFoundException {
+        QueuedTask qt = futureMap.remove(context);
+        if (qt != null) {
+            SchedulerEvent evt = SchedulerEvent.begin(SchedulerEvent.Type.QUEUE_CANCEL);
+            qt.cancel();
+            if (evt.isEnabled()) {
+                evt.set("task", context.getTaskId()).set("count", 1).commit();
+            }
+        } else if (migrationTarget != null) {
+            migrationTarget.cancel(context);
+        } else {
+            throw new TaskNotFoundException();
+        }
+    }
+
+    @Override
+    public void cancelAll() {
+        SchedulerEvent evt = SchedulerEvent.begin(SchedulerEvent.Type.QUEUE_CANCEL);
+        int count = 0;
+        for (QueuedTask qt : futureMap.values()) {
+            qt.cancel();
+            count++;
+        }
+        futureMap.clear();
+        if (evt.isEnabled()) {
+            evt.set("count", count).commit();
+        }
+        TaskQueue target = migrationTarget;
+        if (target != null) {
+            target.cancelAll();
+        }
+    }
+
+    @Override
+    public void migrateTo(final TaskQueue target, final ScheduledExecutorService executor, final Runnable onComplete) {
+        migrationTarget = target;
+        int moved = moveTasks(target);
+        logger.info("Migrated {} task(s) to new queue", moved);
+
+        // let anything that was already firing (and any triggers already due) finish before stopping; tasks are
+        // moved again on each pass in case one was scheduled concurrently with the start of the migration
+        final long deadline = System.currentTimeMillis() + MIGRATION_DRAIN_TIMEOUT_MS;
+        Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                moveTasks(target);
+                if (!isDrained()) {
+                    if (System.currentTimeMillis() < deadline) {
+                        try {
+                            executor.schedule(this, BACKPRESSURE_DELAY_MS, TimeUnit.MILLISECONDS);
+                            return;
+                        } catch (RejectedExecutionException ignored) {
+                            // the executor was shut down so stop now
+                        }
+                    }
+                    logger.error("Timed out waiting for old queue to drain; stopping it anyway");
+                }
+                stop();
+                if (onComplete != null) {
+                    onComplete.run();
+                }
+            }
+        };
+        if (isDrained()) {
+            drain.run();
+        } else {
+            try {
+                executor.schedule(drain, BACKPRESSURE_DELAY_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                drain.run();
+            }
+        }
+    }
+
+    private int moveTasks(TaskQueue target) {
+        int moved = 0;
+        long now = System.currentTimeMillis();
+        for (QueuedTask qt : futureMap.values()) {
+            if (!qt.isDetached() && qt.detach()) {
+                futureMap.remove(qt.context, qt);
+                target.schedule(qt.context, qt.scheduledTime - now, qt.cursor, qt.priority);
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private boolean isDrained() {
+        return (futureMap.isEmpty() && pendingPublishes.get() == 0 && dispatcher.getBacklog() == 0 && dispatcher.getDispatchingCount() == 0);
+    }
+
+    /**
+     * Returns the number of tasks currently queued.
+     *
+     * @return a count
+     */
+    public int size() {
+        return futureMap.size();
+    }
+
+    /**
+     * Returns a snapshot of the queue's state. The queue isn't locked while the snapshot is taken so it is cheap
+     * enough to poll frequently; finding the next fires is a single pass over the queued tasks.
+     *
+     * @param maxFires the maximum number of upcoming fires to include
+     *
+     * @return a QueueDiagnostics instance
+     */
+    public QueueDiagnostics getDiagnostics(int maxFires) {
+        long now = System.currentTimeMillis();
+
+        // keep the soonest fires in a max-heap so the latest one can be evicted when a sooner one is found
+        PriorityQueue<QueuedTask> soonest = new PriorityQueue<>(Math.max(1, maxFires), new Comparator<QueuedTask>() {
+            @Override
+            public int compare(QueuedTask o1, QueuedTask o2) {
+                return Long.compare(o2.scheduledTime, o1.scheduledTime);
+            }
+        });
+        int size = 0;
+        if (maxFires > 0) {
+            for (QueuedTask qt : futureMap.values()) {
+                size++;
+                if (soonest.size() < maxFires) {
+                    soonest.add(qt);
+                } else if (qt.scheduledTime < soonest.peek().scheduledTime) {
+                    soonest.poll();
+                    soonest.add(qt);
+                }
+            }
+        } else {
+            size = futureMap.size();
+        }
+
+        List<QueueDiagnostics.ScheduledFire> fires = new ArrayList<>(soonest.size());
+        while (!soonest.isEmpty()) {
+            QueuedTask qt = soonest.poll();
+            long st = qt.scheduledTime;
+            fires.add(new QueueDiagnostics.ScheduledFire(qt.context, st, st - now, qt.priority, qt.cursor != null));
+        }
+        Collections.reverse(fires);
+
+        Map<String,Long> memory = new LinkedHashMap<>();
+        memory.put("queuedTasks", size * QUEUED_TASK_BYTES);
+        memory.put("triggerBuffers", dispatcher.getCapacity() * TRIGGER_SLOT_BYTES);
+
+        return new QueueDiagnostics(
+            getClass().getSimpleName(),
+            now,
+            size,
+            migrationTarget != null,
+            dispatcher.getBacklog(),
+            dispatcher.getPublishedCount(),
+            dispatcher.getRejectedCount(),
+            dispatcher.getDroppedCount(),
+            fires,
+            getThreadSamples(),
+            getTimerSample(),
+            memory
+        );
+    }
+
+    /**
+     * Returns the utilization of the threads that dispatch this queue's triggers.
+     *
+     * @return a list of ThreadSample objects
+     */
+    protected List<QueueDiagnostics.ThreadSample> getThreadSamples() {
+        return dispatcher.getThreadSamples();
+    }
+
+    /**
+     * Returns the state of the pool that runs wakeups, if the timer has one.
+     *
+     * @return a PoolSample (or null)
+     */
+    protected QueueDiagnostics.PoolSample getTimerSample() {
+        return null;
+    }
+
+    /**
+     * Publishes a task's trigger to the dispatcher and, if it has an occurrence cursor, re-arms it for its next
+     * occurrence.
+     *
+     * @param qt the queued task
+     */
+    private void fire(QueuedTask qt) {
+        SchedulerEvent evt = SchedulerEvent.begin(SchedulerEvent.Type.QUEUE_FIRE);
+        long firedAt = evt.isEnabled() ? System.currentTimeMillis() : 0;
+        long scheduledTime = qt.scheduledTime;
+        long nextRunTime = 0;
+        if (qt.cursor != null) {
+            long next = qt.cursor.next();
+            if (next > 0 && futureMap.get(qt.context) == qt && !qt.isDetached() && qt.arm(next)) {
+                logger.trace("Re-armed task {} for {}", qt.context, next);
+                nextRunTime = next;
+            }
+        }
+        if (nextRunTime == 0) {
+            futureMap.remove(qt.context, qt);
+        }
+
+        publish(new PendingTrigger(qt.context, qt.priority, scheduledTime, nextRunTime));
+
+        if (evt.isEnabled()) {
+            evt.set("task", qt.context.getTaskId())
+                .set("scheduledTime", scheduledTime)
+                .set("lateness", firedAt - scheduledTime)
+                .set("rearmed", nextRunTime > 0)
+                .commit();
+        }
+    }
+
+    private void publish(PendingTrigger t) {
+        List<PendingTrigger> dropped = null;
+        synchronized (overflow) {
+            PriorityQueue<PendingTrigger> q = overflow.get(t.priority.ordinal());
+            // triggers already waiting for room go first so a retried trigger can't fall behind later deadlines
+            if (q.isEmpty() && dispatcher.publish(t.context, t.priority, t.scheduledTime, t.nextRunTime)) {
+                return;
+            }
+            t.queuedAt = System.currentTimeMillis();
+            q.add(t);
+            pendingPublishes.incrementAndGet();
+            if (!armRetry()) {
+                dropped = drainOverflow(Long.MAX_VALUE);
+            }
+        }
+        recordDropped(dropped);
+    }
+
+    /**
+     * Publishes as many overflowed triggers as the dispatcher has room for, in deadline order.
+     */
+    private void retryPublishes() {
+        List<PendingTrigger> dropped;
+        synchronized (overflow) {
+            retryArmed = false;
+            dropped = drainOverflow(System.currentTimeMillis() - maxPublishWait);
+            if (pendingPublishes.get() > 0 && !armRetry()) {
+                dropped.addAll(drainOverflow(Long.MAX_VALUE));
+            }
+        }
+        recordDropped(dropped);
+    }
+
+    /**
+     * Publishes overflowed triggers until each priority's buffer is full again, then removes any that were queued
+     * before a cutoff. This must be called while holding the overflow lock.
+     *
+     * @param dropBefore the time before which a trigger that still can't be published is dropped
+     *
+     * @return the dropped triggers
+     */
+    private List<PendingTrigger> drainOverflow(long dropBefore) {
+        List<PendingTrigger> dropped = new ArrayList<>();
+        for (PriorityQueue<PendingTrigger> q : overflow) {
+            PendingTrigger t = q.peek();
+            while (t != null && dispatcher.publish(t.context, t.priority, t.scheduledTime, t.nextRunTime)) {
+                q.poll();
+                pendingPublishes.decrementAndGet();
+                t = q.peek();
+            }
+            for (Iterator<PendingTrigger> it = q.iterator(); it.hasNext(); ) {
+                t = it.next();
+                if (t.queuedAt <= dropBefore) {
+                    it.remove();
+                    pendingPublishes.decrementAndGet();
+                    dropped.add(t);
+                }
+            }
+        }
+        return dropped;
+    }
+
+    private boolean armRetry() {
+        if (!retryArmed) {
+            retryArmed = (scheduleTimer(new Runnable() {
+                @Override
+                public void run() {
+                    retryPublishes();
+                }
+            }, BACKPRESSURE_DELAY_MS) != null);
+        }
+        return retryArmed;
+    }
+
+    private void recordDropped(List<PendingTrigger> dropped) {
+        if (dropped != null) {
+            for (PendingTrigger t : dropped) {
+                dispatcher.recordDropped(t.context, t.scheduledTime, t.nextRunTime);
+            }
+        }
+    }
+
+    /**
+     * A due trigger waiting for room in the dispatcher, ordered by deadline.
+     */
+    private static class PendingTrigger implements Comparable<PendingTrigger> {
+        private final TaskContext context;
+        private final TaskPriority priority;
+        private final long scheduledTime;
+        private final long nextRunTime;
+        private long queuedAt;
+
+        PendingTrigger(TaskContext context, TaskPriority priority, long scheduledTime, long nextRunTime) {
+            this.context = context;
+            this.priority = priority;
+            this.scheduledTime = scheduledTime;
+            this.nextRunTime = nextRunTime;
+        }
+
+        @Override
+        public int compareTo(PendingTrigger o) {
+            return Long.compare(scheduledTime, o.scheduledTime);
+        }
+    }
+
+    /**
+     * An entry in the queue. The same entry is re-used each time a task with an occurrence cursor is re-armed.
+     */
+    private class QueuedTask implements Runnable {
+        private final TaskContext context;
+        private final OccurrenceCursor cursor;
+        private final TaskPriority priority;
+        private volatile long scheduledTime;
+        private T timer;
+        private boolean cancelled;
+        private boolean detached;
+
+        QueuedTask(TaskContext context, OccurrenceCursor cursor, TaskPriority priority) {
+            this.context = context;
+            this.cursor = cursor;
+            this.priority = priority;
+        }
+
+        synchronized boolean arm(long time) {
+            if (!cancelled) {
+                scheduledTime = time;
+                timer = scheduleTimer(this, getDelay(System.currentTimeMillis()));
+                return (timer != null);
+            }
+            return false;
+        }
+
+        /**
+         * Replaces the pending wakeup with one measured from the current wall clock time.
+         *
+         * @param now the current time
+         *
+         * @return false if the task was cancelled or is already firing
+         */
+        synchronized boolean rearm(long now) {
+            if (!cancelled && timer != null && cancelTimer(timer, false)) {
+                timer = scheduleTimer(this, getDelay(now));
+                return (timer != null);
+            }
+            return false;
+        }
+
+        private long getDelay(long now) {
+            PrecisionTimer pt = precisionTimer;
+            return Math.max(0, scheduledTime - now - (pt != null ? pt.getLeadTime() : 0));
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Detaches the task from this queue so it can be moved to another one.
+         *
+         * @return true if the task can be moved; false if it was cancelled or is already firing (in which case it
+         * will finish firing but won't be re-armed)
+         */
+        synchronized boolean detach() {
+            detached = true;
+            if (!cancelled && timer != null && cancelTimer(timer, false)) {
+                cancelled = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean isDetached() {
+            return detached;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (timer != null) {
+                cancelTimer(timer, true);
+            }
+        }
+
+        @Override
+        public void run() {
+            PrecisionTimer pt = precisionTimer;
+            if (pt != null) {
+                pt.awaitUntil(scheduledTime);
+                if (isCancelled()) {
+                    return;
+                }
+            }
+            fire(this);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+/**
+ * An interface for classes that want to be notified when the wall clock jumps relative to the monotonic clock.
+ */
+public interface ClockJumpListener {
+    /**
+     * Called when a clock jump is detected.
+     *
+     * @param drift the number of milliseconds the wall clock moved relative to the monotonic clock (positive if it
+     *              jumped forward)
+     */
+    void onClockJump(long drift);
+}
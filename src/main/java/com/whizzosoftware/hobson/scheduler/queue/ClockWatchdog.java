@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects wall clock jumps (e.g. an NTP step or a VM suspend/resume) and pauses (e.g. a long GC) by comparing how
+ * far the wall clock and the monotonic clock have moved since the last check.
+ *
+ * Timers measure their delays with the monotonic clock, so a wall clock jump leaves them firing at the wrong wall
+ * clock time; the listener is expected to re-arm them from their absolute times. A pause only makes timers late
+ * (they fire as soon as the pause ends), so it is recorded but not acted on.
+ */
+public class ClockWatchdog implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ClockWatchdog.class);
+
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+    public static final long DEFAULT_THRESHOLD_MS = 250;
+
+    private final ClockJumpListener listener;
+    private final long interval;
+    private final long threshold;
+    private long lastWall = -1;
+    private long lastNano;
+    private final AtomicLong jumpCount = new AtomicLong();
+    private final AtomicLong totalDrift = new AtomicLong();
+    private final AtomicLong maxDrift = new AtomicLong();
+    private final AtomicLong pauseCount = new AtomicLong();
+    private final AtomicLong maxPause = new AtomicLong();
+    private final AtomicLong rearmedCount = new AtomicLong();
+
+    public ClockWatchdog(ClockJumpListener listener) {
+        this(listener, DEFAULT_INTERVAL_MS, DEFAULT_THRESHOLD_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param listener the listener to notify of clock jumps
+     * @param interval the number of milliseconds between checks
+     * @param threshold the number of milliseconds of drift (or pause) that is considered significant
+     */
+    public ClockWatchdog(ClockJumpListener listener, long interval, long threshold) {
+        this.listener = listener;
+        this.interval = interval;
+        this.threshold = threshold;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public void run() {
+        try {
+            check(System.currentTimeMillis(), System.nanoTime());
+        } catch (Throwable t) {
+            logger.error("Error checking clock", t);
+        }
+    }
+
+    /**
+     * Compares the wall and monotonic clocks against the last check.
+     *
+     * @param wallNow the current wall clock time in milliseconds
+     * @param nanoNow the current monotonic clock time in nanoseconds
+     *
+     * @return the drift detected (or 0 if it was below the threshold)
+     */
+    synchronized long check(long wallNow, long nanoNow) {
+        long drift = 0;
+        if (lastWall > -1) {
+            long wallDelta = wallNow - lastWall;
+            long monoDelta = (nanoNow - lastNano) / 1000000L;
+
+            // the monotonic clock should have moved about one interval; much more means the check itself was stalled
+            long pause = monoDelta - interval;
+            if (pause > threshold) {
+                pauseCount.incrementAndGet();
+                updateMax(maxPause, pause);
+                logger.debug("Detected a pause of {}ms", pause);
+            }
+
+            // the two clocks should have moved the same amount
+            if (Math.abs(wallDelta - monoDelta) > threshold) {
+                drift = wallDelta - monoDelta;
+                jumpCount.incrementAndGet();
+                totalDrift.addAndGet(Math.abs(drift));
+                updateMax(maxDrift, Math.abs(drift));
+                logger.info("Detected a wall clock jump of {}ms; re-synchronizing timers", drift);
+            }
+        }
+        lastWall = wallNow;
+        lastNano = nanoNow;
+
+        if (drift != 0 && listener != null) {
+            listener.onClockJump(drift);
+        }
+
+        return drift;
+    }
+
+    /**
+     * Records the number of timers that were re-armed as the result of a clock jump.
+     *
+     * @param count the number of timers
+     */
+    public void recordRearmed(int count) {
+        rearmedCount.addAndGet(count);
+    }
+
+    public long getJumpCount() {
+        return jumpCount.get();
+    }
+
+    /**
+     * Returns the sum of the absolute drift of every jump detected.
+     *
+     * @return a number of milliseconds
+     */
+    public long getTotalDrift() {
+        return totalDrift.get();
+    }
+
+    public long getMaxDrift() {
+        return maxDrift.get();
+    }
+
+    public long getPauseCount() {
+        return pauseCount.get();
+    }
+
+    public long getMaxPause() {
+        return maxPause.get();
+    }
+
+    public long getRearmedCount() {
+        return rearmedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "jumps=" + jumpCount.get() + ",totalDrift=" + totalDrift.get() + "ms,maxDrift=" + maxDrift.get() + "ms,pauses=" + pauseCount.get() + ",maxPause=" + maxPause.get() + "ms,rearmed=" + rearmedCount.get();
+    }
+
+    private void updateMax(AtomicLong max, long value) {
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+}
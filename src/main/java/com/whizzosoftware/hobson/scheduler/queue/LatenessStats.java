@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates how late triggers were dispatched relative to their scheduled times.
+ */
+public class LatenessStats {
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalLateness = new AtomicLong();
+    private final AtomicLong maxLateness = new AtomicLong();
+
+    /**
+     * Records a dispatched trigger.
+     *
+     * @param lateness the number of milliseconds after its scheduled time the trigger was dispatched
+     */
+    public void record(long lateness) {
+        lateness = Math.max(0, lateness);
+        count.incrementAndGet();
+        totalLateness.addAndGet(lateness);
+        long max = maxLateness.get();
+        while (lateness > max && !maxLateness.compareAndSet(max, lateness)) {
+            max = maxLateness.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getAverageLateness() {
+        long c = count.get();
+        return (c > 0) ? totalLateness.get() / c : 0;
+    }
+
+    public long getMaxLateness() {
+        return maxLateness.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", avgLateness=" + getAverageLateness() + "ms, maxLateness=" + getMaxLateness() + "ms";
+    }
+}
@@ -7,77 +7,71 @@
  *******************************************************************************/
 package com.whizzosoftware.hobson.scheduler.queue;
 
-import com.whizzosoftware.hobson.api.task.TaskContext;
 import com.whizzosoftware.hobson.api.task.TaskManager;
-import com.whizzosoftware.hobson.scheduler.TaskNotFoundException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * A TaskExecutor implementation that uses a ScheduledThreadPoolExecutor.
+ * A TaskQueue implementation that uses a single-threaded ScheduledThreadPoolExecutor as its timer.
  *
  * @author Dan Noguerol
  */
-public class LocalTaskQueue implements TaskQueue {
-    private final Logger logger = LoggerFactory.getLogger(getClass());
-
-    private TaskManager taskManager;
-    private ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(3);
-    private Map<TaskContext,ScheduledFuture> futureMap = Collections.synchronizedMap(new HashMap<TaskContext,ScheduledFuture>());
+public class LocalTaskQueue extends AbstractTaskQueue<ScheduledFuture> {
+    private volatile ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 
     public LocalTaskQueue(TaskManager taskManager) {
-        this.taskManager = taskManager;
+        this(taskManager, TriggerDispatcher.DEFAULT_THREAD_COUNT);
     }
 
-    @Override
-    public void start() {
+    /**
+     * Constructor.
+     *
+     * @param taskManager the task manager
+     * @param dispatchThreads the number of threads used to fire triggers
+     */
+    public LocalTaskQueue(TaskManager taskManager, int dispatchThreads) {
+        super(taskManager, dispatchThreads);
+        executor.setRemoveOnCancelPolicy(true);
     }
 
-    @Override
-    public void stop() {
-        executor.shutdownNow();
-        executor = null;
-        futureMap.clear();
+    LocalTaskQueue(TriggerDispatcher dispatcher) {
+        super(dispatcher);
+        executor.setRemoveOnCancelPolicy(true);
     }
 
     @Override
-    public void schedule(final TaskContext taskContext, long delayInMs) {
-        logger.debug("Scheduling task {} to run in {} seconds", taskContext.getTaskId(), delayInMs / 1000);
-        ScheduledFuture future = executor.schedule(new Runnable() {
-            @Override
-            public void run() {
-                taskManager.fireTaskTrigger(taskContext);
+    protected ScheduledFuture scheduleTimer(Runnable task, long delayInMs) {
+        ScheduledThreadPoolExecutor e = executor;
+        if (e != null) {
+            try {
+                return e.schedule(task, delayInMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // the executor was shut down
             }
-        }, delayInMs, TimeUnit.MILLISECONDS);
-        futureMap.put(taskContext, future);
+        }
+        return null;
     }
 
     @Override
-    public boolean isTaskScheduled(TaskContext context) {
-        return futureMap.containsKey(context);
+    protected boolean cancelTimer(ScheduledFuture timer, boolean mayInterrupt) {
+        return timer.cancel(mayInterrupt);
     }
 
     @Override
-    public void cancel(TaskContext context) throws TaskNotFoundException {
-        ScheduledFuture future = futureMap.get(context);
-        if (future != null) {
-            future.cancel(true);
-        } else {
-            throw new TaskNotFoundException();
-        }
+    protected QueueDiagnostics.PoolSample getTimerSample() {
+        ScheduledThreadPoolExecutor e = executor;
+        return (e != null) ? QueueDiagnostics.PoolSample.create(e) : null;
     }
 
     @Override
-    public void cancelAll() {
-        for (ScheduledFuture future : futureMap.values()) {
-            future.cancel(true);
+    protected void stopTimer() {
+        ScheduledThreadPoolExecutor e = executor;
+        executor = null;
+        if (e != null) {
+            e.shutdownNow();
         }
     }
 }
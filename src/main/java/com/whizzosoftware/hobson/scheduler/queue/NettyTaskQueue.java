@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.TaskManager;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TaskQueue implementation that uses a Netty HashedWheelTimer as its timer. By default the queue creates a dedicated
+ * timer with a thread of its own. If the embedding environment supplies a timer (e.g. the hub's own Netty timer),
+ * that's used instead and the queue adds no timer thread. Triggers are fired on the queue's dispatch threads either way.
+ *
+ * A wheel timer trades precision for cheap scheduling: wakeups are only checked once per tick, so a task can fire up
+ * to one tick after its scheduled time. Precision mode compensates for this as long as the tick is shorter than the
+ * precision timer's lead time.
+ */
+public class NettyTaskQueue extends AbstractTaskQueue<Timeout> {
+    public static final long DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private final Timer timer;
+    private final boolean ownsTimer;
+    private volatile boolean stopped;
+
+    /**
+     * Constructor that creates a dedicated wheel timer.
+     *
+     * @param taskManager the task manager
+     * @param tickInMs the number of milliseconds between wheel ticks
+     */
+    public NettyTaskQueue(TaskManager taskManager, long tickInMs) {
+        this(taskManager, tickInMs, TriggerDispatcher.DEFAULT_THREAD_COUNT);
+    }
+
+    /**
+     * Constructor that creates a dedicated wheel timer.
+     *
+     * @param taskManager the task manager
+     * @param tickInMs the number of milliseconds between wheel ticks
+     * @param dispatchThreads the number of threads used to fire triggers
+     */
+    public NettyTaskQueue(TaskManager taskManager, long tickInMs, int dispatchThreads) {
+        this(taskManager, new HashedWheelTimer(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Scheduler Wheel");
+                t.setDaemon(true);
+                return t;
+            }
+        }, tickInMs, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL), true, dispatchThreads);
+    }
+
+    /**
+     * Constructor that uses a shared timer. The timer is not stopped when the queue is stopped and precision mode
+     * can't be enabled.
+     *
+     * @param taskManager the task manager
+     * @param timer the timer
+     */
+    public NettyTaskQueue(TaskManager taskManager, Timer timer) {
+        this(taskManager, timer, TriggerDispatcher.DEFAULT_THREAD_COUNT);
+    }
+
+    /**
+     * Constructor that uses a shared timer. The timer is not stopped when the queue is stopped and precision mode
+     * can't be enabled.
+     *
+     * @param taskManager the task manager
+     * @param timer the timer
+     * @param dispatchThreads the number of threads used to fire triggers
+     */
+    public NettyTaskQueue(TaskManager taskManager, Timer timer, int dispatchThreads) {
+        this(taskManager, timer, false, dispatchThreads);
+    }
+
+    private NettyTaskQueue(TaskManager taskManager, Timer timer, boolean ownsTimer, int dispatchThreads) {
+        super(taskManager, dispatchThreads);
+        this.timer = timer;
+        this.ownsTimer = ownsTimer;
+    }
+
+    @Override
+    protected Timeout scheduleTimer(final Runnable task, long delayInMs) {
+        if (!stopped) {
+            try {
+                return timer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) throws Exception {
+                        if (!stopped) {
+                            task.run();
+                        }
+                    }
+                }, delayInMs, TimeUnit.MILLISECONDS);
+            } catch (IllegalStateException ignored) {
+                // the timer was stopped
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean cancelTimer(Timeout timer, boolean mayInterrupt) {
+        if (timer.isExpired()) {
+            return false;
+        }
+        timer.cancel();
+        return timer.isCancelled();
+    }
+
+    @Override
+    protected boolean ownsTimer() {
+        return ownsTimer;
+    }
+
+    @Override
+    protected void stopTimer() {
+        stopped = true;
+        // a shared timer keeps running; any of this queue's wakeups still on it will do nothing when they expire
+        if (ownsTimer) {
+            timer.stop();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+/**
+ * A cursor into the occurrence sequence of a task that recurs at a fixed period (e.g. FREQ=MINUTELY or
+ * FREQ=HOURLY with no BYxxx rules). Since every occurrence is a fixed distance from the previous one, the
+ * cursor can be positioned and advanced with simple arithmetic rather than by expanding the recurrence rule.
+ */
+public class OccurrenceCursor {
+    private long first;
+    private long period;
+    private long last;
+    private long limit = Long.MAX_VALUE;
+    private long current = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param first the time of the first occurrence
+     * @param period the number of milliseconds between occurrences
+     * @param last the time of the last occurrence (or Long.MAX_VALUE if the sequence is unbounded)
+     */
+    public OccurrenceCursor(long first, long period, long last) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Occurrence period must be positive");
+        }
+        this.first = first;
+        this.period = period;
+        this.last = last;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Shifts every occurrence in the sequence by a fixed amount (e.g. to spread the load of concurrent tasks).
+     *
+     * @param offset the number of milliseconds to shift by
+     */
+    public void shift(long offset) {
+        first += offset;
+        if (last != Long.MAX_VALUE) {
+            last += offset;
+        }
+    }
+
+    /**
+     * Sets a time beyond which the cursor will not return occurrences (e.g. the end of the current day).
+     *
+     * @param limit the limit time
+     */
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the current occurrence.
+     *
+     * @return a time or -1 if the cursor has not been positioned or is exhausted
+     */
+    public long current() {
+        return current;
+    }
+
+    /**
+     * Positions the cursor at the first occurrence strictly after a point in time.
+     *
+     * @param time the time
+     *
+     * @return the occurrence time or -1 if there are no more occurrences
+     */
+    public long seek(long time) {
+        current = check(firstAtOrAfter(time + 1));
+        return current;
+    }
+
+    /**
+     * Advances the cursor to the next occurrence.
+     *
+     * @return the occurrence time or -1 if there are no more occurrences
+     */
+    public long next() {
+        if (current > -1) {
+            current = check(current + period);
+        }
+        return current;
+    }
+
+    /**
+     * Indicates whether there is an occurrence in a time interval. This does not move the cursor.
+     *
+     * @param start the start of the interval (inclusive)
+     * @param end the end of the interval (exclusive)
+     *
+     * @return a boolean
+     */
+    public boolean hasOccurrenceBetween(long start, long end) {
+        long t = firstAtOrAfter(start);
+        return (t < end && t <= last);
+    }
+
+    private long firstAtOrAfter(long time) {
+        if (time <= first) {
+            return first;
+        } else {
+            long n = (time - first + period - 1) / period;
+            return first + n * period;
+        }
+    }
+
+    private long check(long time) {
+        return (time <= last && time <= limit) ? time : -1;
+    }
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for a deadline more precisely than a ScheduledThreadPoolExecutor can. The caller is woken up by its executor
+ * a short lead time before the deadline; the timer then parks until it is within the host's park overshoot of the
+ * deadline and spin-waits the remainder.
+ *
+ * The spin threshold is calibrated by measuring how far past their requested time short parks actually wake up on
+ * this host. Spinning costs CPU for up to that threshold on every fire, which is why precision mode is optional.
+ */
+public class PrecisionTimer {
+    private static final Logger logger = LoggerFactory.getLogger(PrecisionTimer.class);
+
+    public static final long DEFAULT_LEAD_MS = 20;
+
+    static final long MIN_SPIN_NS = 50000L;
+    static final long MAX_SPIN_NS = 2000000L;
+    static final long CALIBRATION_PARK_NS = 200000L;
+    static final int CALIBRATION_SAMPLES = 50;
+
+    private final long leadTime;
+    private volatile long spinThreshold = MAX_SPIN_NS;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalError = new AtomicLong();
+    private final AtomicLong maxError = new AtomicLong();
+    private final AtomicLong spinTime = new AtomicLong();
+
+    public PrecisionTimer() {
+        this(DEFAULT_LEAD_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param leadTime the number of milliseconds before a deadline the caller will be woken up
+     */
+    public PrecisionTimer(long leadTime) {
+        this.leadTime = leadTime;
+    }
+
+    public long getLeadTime() {
+        return leadTime;
+    }
+
+    /**
+     * Returns the remaining time to a deadline below which the timer spins rather than parks.
+     *
+     * @return a number of nanoseconds
+     */
+    public long getSpinThreshold() {
+        return spinThreshold;
+    }
+
+    /**
+     * Measures how far past their requested time short parks wake up on this host and sets the spin threshold to
+     * twice the worst case observed.
+     *
+     * @return the new spin threshold in nanoseconds
+     */
+    public long calibrate() {
+        long max = 0;
+        for (int i = 0; i < CALIBRATION_SAMPLES; i++) {
+            long start = System.nanoTime();
+            LockSupport.parkNanos(CALIBRATION_PARK_NS);
+            max = Math.max(max, System.nanoTime() - start - CALIBRATION_PARK_NS);
+        }
+        spinThreshold = Math.min(MAX_SPIN_NS, Math.max(MIN_SPIN_NS, max * 2));
+        logger.debug("Calibrated spin threshold to {}us (max park overshoot {}us)", spinThreshold / 1000, max / 1000);
+        return spinThreshold;
+    }
+
+    /**
+     * Waits until a wall clock time. This returns early if the thread is interrupted.
+     *
+     * @param time the time to wait until
+     */
+    public void awaitUntil(long time) {
+        long deadline = System.nanoTime() + (time - System.currentTimeMillis()) * 1000000L;
+        long threshold = spinThreshold;
+
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > threshold) {
+            LockSupport.parkNanos(remaining - threshold);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+
+        long spinStart = System.nanoTime();
+        long now = spinStart;
+        while (now < deadline) {
+            now = System.nanoTime();
+        }
+        spinTime.addAndGet(now - spinStart);
+
+        record((now - deadline) / 1000);
+    }
+
+    private void record(long error) {
+        count.incrementAndGet();
+        totalError.addAndGet(error);
+        long max = maxError.get();
+        while (error > max && !maxError.compareAndSet(max, error)) {
+            max = maxError.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the average amount of time past their deadline that waits returned.
+     *
+     * @return a number of microseconds
+     */
+    public long getAverageError() {
+        long c = count.get();
+        return (c > 0) ? totalError.get() / c : 0;
+    }
+
+    /**
+     * Returns the maximum amount of time past its deadline that a wait returned.
+     *
+     * @return a number of microseconds
+     */
+    public long getMaxError() {
+        return maxError.get();
+    }
+
+    /**
+     * Returns the total time spent spin-waiting.
+     *
+     * @return a number of nanoseconds
+     */
+    public long getSpinTime() {
+        return spinTime.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", avgError=" + getAverageError() + "us, maxError=" + getMaxError() + "us, spinThreshold=" + (spinThreshold / 1000) + "us, spinTime=" + (getSpinTime() / 1000000) + "ms";
+    }
+}
@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A point-in-time view of a task queue: its depth, the next tasks due to fire, how busy its threads are and roughly
+ * how much memory its structures use.
+ *
+ * The snapshot is taken without stopping the queue so tasks scheduled or fired while it's being taken may or may not
+ * be included, but every remaining delay is measured from the same time. Memory figures are estimates based on
+ * typical per-entry sizes on a 64-bit JVM with compressed references.
+ */
+public class QueueDiagnostics {
+    private final String queueType;
+    private final long time;
+    private final int size;
+    private final boolean migrating;
+    private final int backlog;
+    private final long publishedCount;
+    private final long rejectedCount;
+    private final long droppedCount;
+    private final List<ScheduledFire> nextFires;
+    private final List<ThreadSample> threads;
+    private final PoolSample timer;
+    private final Map<String,Long> estimatedMemory;
+
+    QueueDiagnostics(String queueType, long time, int size, boolean migrating, int backlog, long publishedCount, long rejectedCount, long droppedCount, List<ScheduledFire> nextFires, List<ThreadSample> threads, PoolSample timer, Map<String,Long> estimatedMemory) {
+        this.queueType = queueType;
+        this.time = time;
+        this.size = size;
+        this.migrating = migrating;
+        this.backlog = backlog;
+        this.publishedCount = publishedCount;
+        this.rejectedCount = rejectedCount;
+        this.droppedCount = droppedCount;
+        this.nextFires = Collections.unmodifiableList(nextFires);
+        this.threads = Collections.unmodifiableList(threads);
+        this.timer = timer;
+        this.estimatedMemory = Collections.unmodifiableMap(estimatedMemory);
+    }
+
+    public String getQueueType() {
+        return queueType;
+    }
+
+    /**
+     * Returns the time the snapshot was taken.
+     *
+     * @return a time in epoch milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the number of tasks armed in the queue.
+     *
+     * @return a count
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Indicates whether the queue is forwarding its tasks to another queue.
+     *
+     * @return a boolean
+     */
+    public boolean isMigrating() {
+        return migrating;
+    }
+
+    /**
+     * Returns the number of triggers that are due but haven't been dispatched yet.
+     *
+     * @return a count
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public long getPublishedCount() {
+        return publishedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the tasks due to fire soonest, soonest first.
+     *
+     * @return a list of ScheduledFire objects
+     */
+    public List<ScheduledFire> getNextFires() {
+        return nextFires;
+    }
+
+    /**
+     * Returns the utilization of the threads that dispatch the queue's triggers. For a shared queue these are the
+     * core's threads and so include work done for other tenants.
+     *
+     * @return a list of ThreadSample objects
+     */
+    public List<ThreadSample> getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the state of the pool that runs the queue's wakeups.
+     *
+     * @return a PoolSample (or null if the timer doesn't expose its state)
+     */
+    public PoolSample getTimer() {
+        return timer;
+    }
+
+    /**
+     * Returns the estimated size of each of the queue's structures.
+     *
+     * @return a map of structure name to bytes
+     */
+    public Map<String,Long> getEstimatedMemory() {
+        return estimatedMemory;
+    }
+
+    @Override
+    public String toString() {
+        return queueType + "[size=" + size + ", backlog=" + backlog + ", published=" + publishedCount + ", rejected=" + rejectedCount + ", dropped=" + droppedCount + (migrating ? ", migrating" : "") + "]";
+    }
+
+    /**
+     * A task that is armed to fire.
+     */
+    public static class ScheduledFire {
+        private final TaskContext context;
+        private final long scheduledTime;
+        private final long remainingDelay;
+        private final TaskPriority priority;
+        private final boolean recurring;
+
+        ScheduledFire(TaskContext context, long scheduledTime, long remainingDelay, TaskPriority priority, boolean recurring) {
+            this.context = context;
+            this.scheduledTime = scheduledTime;
+            this.remainingDelay = remainingDelay;
+            this.priority = priority;
+            this.recurring = recurring;
+        }
+
+        public TaskContext getContext() {
+            return context;
+        }
+
+        public long getScheduledTime() {
+            return scheduledTime;
+        }
+
+        /**
+         * Returns how long after the snapshot the task is due. This is negative if the task was already due.
+         *
+         * @return a delay in milliseconds
+         */
+        public long getRemainingDelay() {
+            return remainingDelay;
+        }
+
+        public TaskPriority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Indicates whether the queue will re-arm the task itself after it fires.
+         *
+         * @return a boolean
+         */
+        public boolean isRecurring() {
+            return recurring;
+        }
+
+        @Override
+        public String toString() {
+            return context.getTaskId() + " in " + remainingDelay + "ms";
+        }
+    }
+
+    /**
+     * The busy time of a dispatch thread.
+     */
+    public static class ThreadSample {
+        private final String name;
+        private final long busyNanos;
+        private final long elapsedNanos;
+
+        ThreadSample(String name, long busyNanos, long elapsedNanos) {
+            this.name = name;
+            this.busyNanos = busyNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the fraction of the thread's lifetime spent dispatching.
+         *
+         * @return a value between 0 and 1
+         */
+        public double getUtilization() {
+            return (elapsedNanos > 0) ? Math.min(1.0, (double)busyNanos / elapsedNanos) : 0;
+        }
+
+        /**
+         * Returns the fraction of the time between an earlier sample of the same thread and this one that was spent
+         * dispatching. This is what a poller should use to see current (rather than lifetime) utilization.
+         *
+         * @param earlier the earlier sample
+         *
+         * @return a value between 0 and 1
+         */
+        public double getUtilizationSince(ThreadSample earlier) {
+            long elapsed = elapsedNanos - earlier.elapsedNanos;
+            return (elapsed > 0) ? Math.max(0, Math.min(1.0, (double)(busyNanos - earlier.busyNanos) / elapsed)) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + Math.round(getUtilization() * 100) + "%";
+        }
+    }
+
+    /**
+     * The state of a thread pool.
+     */
+    public static class PoolSample {
+        private final int poolSize;
+        private final int activeCount;
+        private final int queuedCount;
+        private final long completedCount;
+
+        PoolSample(int poolSize, int activeCount, int queuedCount, long completedCount) {
+            this.poolSize = poolSize;
+            this.activeCount = activeCount;
+            this.queuedCount = queuedCount;
+            this.completedCount = completedCount;
+        }
+
+        static PoolSample create(ThreadPoolExecutor e) {
+            return new PoolSample(e.getPoolSize(), e.getActiveCount(), e.getQueue().size(), e.getCompletedTaskCount());
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        /**
+         * Returns the number of wakeups waiting in the pool (for a shared pool this includes other tenants').
+         *
+         * @return a count
+         */
+        public int getQueuedCount() {
+            return queuedCount;
+        }
+
+        public long getCompletedCount() {
+            return completedCount;
+        }
+    }
+}
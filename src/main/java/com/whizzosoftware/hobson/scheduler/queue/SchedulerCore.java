@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.api.task.TaskManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler resources shared by many tenants (e.g. one scheduler plugin per hub) so that the number of scheduler
+ * threads stays the same no matter how many tenants there are: one timer thread, one housekeeping thread and a fixed
+ * pool of dispatch threads.
+ *
+ * Each tenant gets its own lane (a TriggerDispatcher with its own bounded buffers and TaskManager) so that one
+ * tenant filling its backlog can't cause another tenant's triggers to be rejected. The dispatch threads visit lanes
+ * round-robin and dispatch at most one trigger per lane per visit, and a lane is only ever dispatched by one thread at
+ * a time so a tenant with a slow TaskManager can tie up at most one dispatch thread.
+ */
+public class SchedulerCore {
+    private static final Logger logger = LoggerFactory.getLogger(SchedulerCore.class);
+
+    public static final int DEFAULT_DISPATCH_THREADS = 2;
+
+    private static SchedulerCore instance;
+    private static int refCount;
+
+    private final int dispatchThreadCount;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ScheduledThreadPoolExecutor housekeepingExecutor;
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<ThreadUtilization> utilization = new CopyOnWriteArrayList<>();
+    private volatile Lane[] lanes = new Lane[0];
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private final Object signal = new Object();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * Returns the shared core, creating and starting it if this is the first tenant. Each call must be matched by a
+     * call to release().
+     *
+     * @param dispatchThreads the number of dispatch threads to use if the core needs to be created
+     *
+     * @return a SchedulerCore instance
+     */
+    public static synchronized SchedulerCore acquire(int dispatchThreads) {
+        if (instance == null) {
+            instance = new SchedulerCore(dispatchThreads);
+            instance.start();
+            logger.info("Started shared scheduler core with {} dispatch thread(s)", dispatchThreads);
+        }
+        refCount++;
+        return instance;
+    }
+
+    /**
+     * Releases a reference obtained from acquire(). The core is stopped once the last tenant has released it.
+     *
+     * @param core the core
+     */
+    public static synchronized void release(SchedulerCore core) {
+        if (core == instance && refCount > 0 && --refCount == 0) {
+            instance.stop();
+            instance = null;
+            logger.info("Stopped shared scheduler core");
+        }
+    }
+
+    public SchedulerCore(int dispatchThreads) {
+        this.dispatchThreadCount = Math.max(1, dispatchThreads);
+        this.timer = new ScheduledThreadPoolExecutor(1, createThreadFactory("Scheduler Core Timer"));
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.housekeepingExecutor = new ScheduledThreadPoolExecutor(1, createThreadFactory("Scheduler Core Housekeeping"));
+        this.housekeepingExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    public synchronized void start() {
+        if (threads.isEmpty()) {
+            for (int i = 0; i < dispatchThreadCount; i++) {
+                String name = "Scheduler Core Dispatcher " + (i + 1);
+                final ThreadUtilization u = new ThreadUtilization(name);
+                utilization.add(u);
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchLoop(u);
+                    }
+                }, name);
+                t.setDaemon(true);
+                t.start();
+                threads.add(t);
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        threads.clear();
+        utilization.clear();
+        timer.shutdownNow();
+        housekeepingExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the timer that all tenants' wakeups are scheduled on.
+     *
+     * @return a ScheduledThreadPoolExecutor
+     */
+    ScheduledThreadPoolExecutor getTimer() {
+        return timer;
+    }
+
+    /**
+     * Returns an executor that tenants can use for housekeeping work (e.g. day resets) instead of creating their own
+     * thread. Housekeeping work should be short; tenants must cancel their own futures rather than shut it down.
+     *
+     * @return a ScheduledExecutorService
+     */
+    public ScheduledExecutorService getHousekeepingExecutor() {
+        return housekeepingExecutor;
+    }
+
+    public int getDispatchThreadCount() {
+        return dispatchThreadCount;
+    }
+
+    /**
+     * Returns the utilization of the core's dispatch threads.
+     *
+     * @return a list of ThreadSample objects
+     */
+    List<QueueDiagnostics.ThreadSample> getThreadSamples() {
+        List<QueueDiagnostics.ThreadSample> results = new ArrayList<>();
+        for (ThreadUtilization u : utilization) {
+            results.add(u.sample());
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of tenants currently registered.
+     *
+     * @return a count
+     */
+    public int getTenantCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Creates a new lane for a tenant. The lane receives no dispatch threads until it is added.
+     *
+     * @param taskManager the tenant's task manager
+     *
+     * @return a TriggerDispatcher
+     */
+    TriggerDispatcher createLane(TaskManager taskManager) {
+        return new Lane(taskManager);
+    }
+
+    synchronized void addLane(TriggerDispatcher lane) {
+        List<Lane> l = new ArrayList<>(Arrays.asList(lanes));
+        if (!l.contains(lane)) {
+            l.add((Lane)lane);
+            lanes = l.toArray(new Lane[l.size()]);
+        }
+    }
+
+    synchronized void removeLane(TriggerDispatcher lane) {
+        List<Lane> l = new ArrayList<>(Arrays.asList(lanes));
+        if (l.remove(lane)) {
+            lanes = l.toArray(new Lane[l.size()]);
+        }
+    }
+
+    private void wake() {
+        if (waiters.get() > 0) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+
+    private void dispatchLoop(ThreadUtilization u) {
+        TriggerRingBuffer.Entry entry = new TriggerRingBuffer.Entry();
+        while (!Thread.currentThread().isInterrupted()) {
+            long start = System.nanoTime();
+            if (dispatchRound(entry)) {
+                u.addBusy(System.nanoTime() - start);
+            } else {
+                try {
+                    synchronized (signal) {
+                        waiters.incrementAndGet();
+                        try {
+                            if (!hasBacklog()) {
+                                signal.wait(1000);
+                            }
+                        } finally {
+                            waiters.decrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits every lane once, starting after the lane the previous round started at, and dispatches at most one
+     * trigger from each.
+     *
+     * @param entry a consumer-owned entry to poll into
+     *
+     * @return true if anything was dispatched
+     */
+    private boolean dispatchRound(TriggerRingBuffer.Entry entry) {
+        Lane[] l = lanes;
+        boolean dispatched = false;
+        if (l.length > 0) {
+            int start = (nextLane.getAndIncrement() & Integer.MAX_VALUE) % l.length;
+            for (int i = 0; i < l.length; i++) {
+                Lane lane = l[(start + i) % l.length];
+                if (lane.busy.compareAndSet(false, true)) {
+                    try {
+                        dispatched |= lane.dispatchNext(entry);
+                    } finally {
+                        lane.busy.set(false);
+                    }
+                }
+            }
+        }
+        return dispatched;
+    }
+
+    private boolean hasBacklog() {
+        for (Lane lane : lanes) {
+            if (!lane.busy.get() && lane.getBacklog() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * A tenant's dispatcher. It has no threads of its own and wakes the core's dispatch threads when a trigger is
+     * published.
+     */
+    private class Lane extends TriggerDispatcher {
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        Lane(TaskManager taskManager) {
+            super(taskManager, 0);
+        }
+
+        @Override
+        public boolean publish(TaskContext ctx, TaskPriority priority, long scheduledTime, long nextRunTime) {
+            if (super.publish(ctx, priority, scheduledTime, nextRunTime)) {
+                wake();
+                return true;
+            }
+            return false;
+        }
+    }
+}
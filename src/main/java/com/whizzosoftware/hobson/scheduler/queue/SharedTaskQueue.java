@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.TaskManager;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TaskQueue implementation that uses a SchedulerCore's timer and dispatch pool rather than threads of its own.
+ *
+ * Precision mode can't be enabled on a shared queue since the precision timer would wait on the timer thread that
+ * every tenant shares.
+ */
+public class SharedTaskQueue extends AbstractTaskQueue<ScheduledFuture> {
+    private final SchedulerCore core;
+    private volatile boolean stopped;
+
+    public SharedTaskQueue(SchedulerCore core, TaskManager taskManager) {
+        super(core.createLane(taskManager));
+        this.core = core;
+    }
+
+    @Override
+    public synchronized void start() {
+        core.addLane(getDispatcher());
+        super.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        core.removeLane(getDispatcher());
+    }
+
+    @Override
+    protected ScheduledFuture scheduleTimer(final Runnable task, long delayInMs) {
+        if (!stopped) {
+            try {
+                return core.getTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!stopped) {
+                            task.run();
+                        }
+                    }
+                }, delayInMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // the core was stopped
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean cancelTimer(ScheduledFuture timer, boolean mayInterrupt) {
+        // never interrupt the shared timer thread since it may be running another tenant's wakeup by then
+        return timer.cancel(false);
+    }
+
+    @Override
+    protected boolean ownsTimer() {
+        return false;
+    }
+
+    @Override
+    protected List<QueueDiagnostics.ThreadSample> getThreadSamples() {
+        return core.getThreadSamples();
+    }
+
+    @Override
+    protected QueueDiagnostics.PoolSample getTimerSample() {
+        return QueueDiagnostics.PoolSample.create(core.getTimer());
+    }
+
+    @Override
+    protected void stopTimer() {
+        // the core's timer keeps running; any of this queue's wakeups still on it will do nothing when they run
+        stopped = true;
+    }
+}
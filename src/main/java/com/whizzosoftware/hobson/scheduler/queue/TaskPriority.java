@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+/**
+ * The dispatch priority of a scheduled task. When more triggers are due than can be dispatched at once, higher
+ * priority triggers are dispatched first.
+ */
+public enum TaskPriority {
+    HIGH,
+    NORMAL,
+    LOW;
+
+    /**
+     * Returns the priority for a string value.
+     *
+     * @param s the value (e.g. "high")
+     *
+     * @return a TaskPriority (NORMAL if the value is null or empty)
+     */
+    public static TaskPriority fromString(String s) {
+        if (s == null || s.trim().length() == 0) {
+            return NORMAL;
+        }
+        try {
+            return valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid task priority: " + s);
+        }
+    }
+}
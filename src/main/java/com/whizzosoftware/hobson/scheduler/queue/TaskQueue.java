@@ -10,6 +10,8 @@ package com.whizzosoftware.hobson.scheduler.queue;
 import com.whizzosoftware.hobson.api.task.TaskContext;
 import com.whizzosoftware.hobson.scheduler.TaskNotFoundException;
 
+import java.util.concurrent.ScheduledExecutorService;
+
 /**
  * An interface for classes that can queue the execution of tasks.
  *
@@ -34,6 +36,24 @@ public interface TaskQueue {
      */
     void schedule(TaskContext taskContext, long delayInMs);
 
+    /**
+     * Queue a new task for execution that will be re-armed by the queue itself each time it fires. This avoids
+     * a round trip through the task provider for tasks that recur at a fixed period.
+     *
+     * @param taskContext the context of the task to be executed
+     * @param delayInMs how many milliseconds to wait before executing the task
+     * @param cursor a cursor positioned at the task's next occurrence (or null if the task should not be re-armed)
+     * @param priority the priority used to order the task's trigger when many are due at once
+     */
+    void schedule(TaskContext taskContext, long delayInMs, OccurrenceCursor cursor, TaskPriority priority);
+
+    /**
+     * Sets a listener to be notified when queued tasks fire.
+     *
+     * @param listener the listener
+     */
+    void setListener(TaskQueueListener listener);
+
     /**
      * Indicates whether a task is queued for execution.
      *
@@ -56,4 +76,18 @@ public interface TaskQueue {
      * Cancels all tasks scheduled for execution.
      */
     void cancelAll();
+
+    /**
+     * Moves all queued tasks to another (started) queue and then stops this one. Each task is armed on the target
+     * for the same absolute time it was armed for here. A task that is already firing finishes firing here and is
+     * not moved. Anything scheduled on this queue once migration has started is forwarded to the target.
+     *
+     * This returns once the tasks have been moved; waiting for anything already firing to finish is done on the
+     * given executor and this queue is only stopped after that.
+     *
+     * @param target the queue to move tasks to
+     * @param executor the executor used to wait for this queue to drain
+     * @param onComplete run once this queue has drained and stopped (or null)
+     */
+    void migrateTo(TaskQueue target, ScheduledExecutorService executor, Runnable onComplete);
 }
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+/**
+ * An interface for classes that want to be notified when a queued task fires or the queue detects a clock jump.
+ */
+public interface TaskQueueListener {
+    /**
+     * Called after a queued task has fired.
+     *
+     * @param taskContext the context of the task
+     * @param scheduledTime the time the task was scheduled to fire
+     * @param now the time the task actually fired
+     * @param nextRunTime the time the queue re-armed the task for or 0 if it was not re-armed
+     */
+    void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime);
+
+    /**
+     * Called when a due task was dropped without firing because its trigger couldn't be dispatched in time.
+     *
+     * @param taskContext the context of the task
+     * @param scheduledTime the time the task was scheduled to fire
+     * @param nextRunTime the time the queue re-armed the task for or 0 if it was not re-armed
+     */
+    void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime);
+
+    /**
+     * Called after the queue has re-armed its tasks following a wall clock jump, so that anything else scheduled with
+     * a relative delay can be re-planned.
+     *
+     * @param drift the number of milliseconds the wall clock moved relative to the monotonic clock (positive if it
+     *              jumped forward)
+     */
+    void onClockJump(long drift);
+}
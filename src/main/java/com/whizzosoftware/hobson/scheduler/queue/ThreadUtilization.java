@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+/**
+ * Tracks how much of its lifetime a dispatch thread has spent dispatching. Only the owning thread adds busy time so
+ * no locking is needed; readers may see a value that is one dispatch behind.
+ */
+class ThreadUtilization {
+    private final String threadName;
+    private final long startNanos = System.nanoTime();
+    private volatile long busyNanos;
+
+    ThreadUtilization(String threadName) {
+        this.threadName = threadName;
+    }
+
+    void addBusy(long nanos) {
+        busyNanos += nanos;
+    }
+
+    QueueDiagnostics.ThreadSample sample() {
+        return new QueueDiagnostics.ThreadSample(threadName, busyNanos, System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.api.task.TaskManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches due task triggers to the TaskManager on its own thread(s) so that a slow TaskManager can't delay the
+ * timer that detects when triggers are due.
+ *
+ * The timer publishes due triggers into one bounded ring buffer per priority class. Consumers always drain higher
+ * priority buffers first; within a class triggers are dispatched in the order they became due (i.e. earliest
+ * deadline first). When a buffer is full, publish() fails and the caller is expected to apply backpressure by
+ * retrying later; triggers that ultimately can't be published are counted as dropped and reported to the listener.
+ *
+ * A dispatcher created with no threads of its own is drained externally via dispatchNext() (e.g. by a
+ * SchedulerCore that shares one dispatch pool between many dispatchers).
+ */
+public class TriggerDispatcher {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final int DEFAULT_CAPACITY = 256;
+    // the number of threads the original executor fired triggers on, so one slow trigger doesn't hold up the rest
+    public static final int DEFAULT_THREAD_COUNT = 3;
+
+    private TaskManager taskManager;
+    private TaskQueueListener listener;
+    private int threadCount;
+    private final TriggerRingBuffer[] buffers;
+    private final LatenessStats[] latenessStats;
+    private final Object signal = new Object();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicInteger dispatchingCount = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<ThreadUtilization> utilization = new CopyOnWriteArrayList<>();
+
+    public TriggerDispatcher(TaskManager taskManager, int threadCount) {
+        this(taskManager, threadCount, DEFAULT_CAPACITY);
+    }
+
+    public TriggerDispatcher(TaskManager taskManager, int threadCount, int capacity) {
+        this.taskManager = taskManager;
+        this.threadCount = threadCount;
+        TaskPriority[] priorities = TaskPriority.values();
+        this.buffers = new TriggerRingBuffer[priorities.length];
+        this.latenessStats = new LatenessStats[priorities.length];
+        for (TaskPriority p : priorities) {
+            buffers[p.ordinal()] = new TriggerRingBuffer(capacity);
+            latenessStats[p.ordinal()] = new LatenessStats();
+        }
+    }
+
+    public void setListener(TaskQueueListener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (threads.isEmpty()) {
+            for (int i = 0; i < threadCount; i++) {
+                String name = "Scheduler Dispatcher " + (i + 1);
+                final ThreadUtilization u = new ThreadUtilization(name);
+                utilization.add(u);
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchLoop(u);
+                    }
+                }, name);
+                t.setDaemon(true);
+                t.start();
+                threads.add(t);
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        threads.clear();
+        utilization.clear();
+        for (TriggerRingBuffer b : buffers) {
+            int count = b.clear();
+            if (count > 0) {
+                logger.debug("Discarded {} undispatched triggers on stop", count);
+            }
+        }
+    }
+
+    /**
+     * Publishes a due trigger for dispatch. This must only be called from the timer thread.
+     *
+     * @param ctx the task context
+     * @param priority the task priority
+     * @param scheduledTime the time the trigger was due
+     * @param nextRunTime the time the task was re-armed for (or 0 if it wasn't)
+     *
+     * @return false if the trigger could not be accepted because its priority class is full
+     */
+    public boolean publish(TaskContext ctx, TaskPriority priority, long scheduledTime, long nextRunTime) {
+        if (buffers[priority.ordinal()].publish(ctx, scheduledTime, nextRunTime)) {
+            publishedCount.incrementAndGet();
+            if (waiters.get() > 0) {
+                synchronized (signal) {
+                    signal.notifyAll();
+                }
+            }
+            return true;
+        } else {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Records that a trigger was dropped because it could not be published and tells the listener so the task can be
+     * rescheduled.
+     *
+     * @param ctx the task context
+     * @param scheduledTime the time the trigger was due
+     * @param nextRunTime the time the task was re-armed for (or 0 if it wasn't)
+     */
+    public void recordDropped(TaskContext ctx, long scheduledTime, long nextRunTime) {
+        droppedCount.incrementAndGet();
+        logger.error("Dispatch backlog is full; dropped trigger for task {}", ctx);
+        if (listener != null) {
+            try {
+                listener.onTaskDropped(ctx, scheduledTime, nextRunTime);
+            } catch (Throwable t) {
+                logger.error("Error notifying listener of dropped task " + ctx, t);
+            }
+        }
+    }
+
+    /**
+     * Tells the listener that the wall clock has jumped.
+     *
+     * @param drift the number of milliseconds the wall clock moved relative to the monotonic clock
+     */
+    public void recordClockJump(long drift) {
+        if (listener != null) {
+            try {
+                listener.onClockJump(drift);
+            } catch (Throwable t) {
+                logger.error("Error notifying listener of clock jump", t);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of triggers that are due but have not yet been dispatched.
+     *
+     * @return a count
+     */
+    public int getBacklog() {
+        int size = 0;
+        for (TriggerRingBuffer b : buffers) {
+            size += b.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of triggers currently being dispatched.
+     *
+     * @return a count
+     */
+    public int getDispatchingCount() {
+        return dispatchingCount.get();
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    /**
+     * Returns the number of times a publish was rejected because a buffer was full.
+     *
+     * @return a count
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public LatenessStats getLatenessStats(TaskPriority priority) {
+        return latenessStats[priority.ordinal()];
+    }
+
+    /**
+     * Returns the total number of triggers the dispatcher's buffers can hold.
+     *
+     * @return a count
+     */
+    public int getCapacity() {
+        int capacity = 0;
+        for (TriggerRingBuffer b : buffers) {
+            capacity += b.getCapacity();
+        }
+        return capacity;
+    }
+
+    /**
+     * Returns the utilization of the dispatcher's own threads.
+     *
+     * @return a list of ThreadSample objects
+     */
+    List<QueueDiagnostics.ThreadSample> getThreadSamples() {
+        List<QueueDiagnostics.ThreadSample> results = new ArrayList<>();
+        for (ThreadUtilization u : utilization) {
+            results.add(u.sample());
+        }
+        return results;
+    }
+
+    private boolean poll(TriggerRingBuffer.Entry entry) {
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i].poll(entry)) {
+                latenessStats[i].record(System.currentTimeMillis() - entry.scheduledTime);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isEmpty() {
+        for (TriggerRingBuffer b : buffers) {
+            if (!b.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Dispatches the next due trigger, if there is one, on the calling thread.
+     *
+     * @param entry a consumer-owned entry to poll into
+     *
+     * @return true if a trigger was dispatched
+     */
+    boolean dispatchNext(TriggerRingBuffer.Entry entry) {
+        if (poll(entry)) {
+            dispatch(entry);
+            return true;
+        }
+        return false;
+    }
+
+    private void dispatchLoop(ThreadUtilization u) {
+        TriggerRingBuffer.Entry entry = new TriggerRingBuffer.Entry();
+        while (!Thread.currentThread().isInterrupted()) {
+            if (poll(entry)) {
+                long start = System.nanoTime();
+                dispatch(entry);
+                u.addBusy(System.nanoTime() - start);
+            } else {
+                try {
+                    synchronized (signal) {
+                        waiters.incrementAndGet();
+                        try {
+                            if (isEmpty()) {
+                                signal.wait(1000);
+                            }
+                        } finally {
+                            waiters.decrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void dispatch(TriggerRingBuffer.Entry e) {
+        TaskContext ctx = e.context;
+        long now = System.currentTimeMillis();
+        e.context = null;
+        dispatchingCount.incrementAndGet();
+        try {
+            try {
+                taskManager.fireTaskTrigger(ctx);
+            } catch (Throwable t) {
+                logger.error("Error firing trigger for task " + ctx, t);
+            }
+            if (listener != null) {
+                try {
+                    listener.onTaskFired(ctx, e.scheduledTime, now, e.nextRunTime);
+                } catch (Throwable t) {
+                    logger.error("Error notifying listener of fired task " + ctx, t);
+                }
+            }
+        } finally {
+            dispatchingCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, pre-allocated ring buffer of due triggers. It supports a single producer (the timer thread), which
+ * publishes without locking, and one or more consumers, which serialize on the buffer's monitor. Nothing is
+ * allocated when publishing or polling.
+ */
+public class TriggerRingBuffer {
+    private final int capacity;
+    private final int mask;
+    private final TaskContext[] contexts;
+    private final long[] scheduledTimes;
+    private final long[] nextRunTimes;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the minimum number of triggers the buffer can hold (rounded up to a power of two)
+     */
+    public TriggerRingBuffer(int capacity) {
+        int c = 1;
+        while (c < capacity) {
+            c <<= 1;
+        }
+        this.capacity = c;
+        this.mask = c - 1;
+        this.contexts = new TaskContext[c];
+        this.scheduledTimes = new long[c];
+        this.nextRunTimes = new long[c];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return (int)(head.get() - tail.get());
+    }
+
+    public boolean isEmpty() {
+        return (head.get() == tail.get());
+    }
+
+    /**
+     * Publishes a trigger. This must only be called from the producer thread.
+     *
+     * @param ctx the task context
+     * @param scheduledTime the time the trigger was due
+     * @param nextRunTime the time the task was re-armed for (or 0)
+     *
+     * @return false if the buffer is full
+     */
+    public boolean publish(TaskContext ctx, long scheduledTime, long nextRunTime) {
+        long h = head.get();
+        if (h - tail.get() >= capacity) {
+            return false;
+        }
+        int i = (int)(h & mask);
+        contexts[i] = ctx;
+        scheduledTimes[i] = scheduledTime;
+        nextRunTimes[i] = nextRunTime;
+        head.set(h + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest trigger from the buffer.
+     *
+     * @param entry the entry to copy the trigger into
+     *
+     * @return false if the buffer is empty
+     */
+    public synchronized boolean poll(Entry entry) {
+        long t = tail.get();
+        if (t >= head.get()) {
+            return false;
+        }
+        int i = (int)(t & mask);
+        entry.context = contexts[i];
+        entry.scheduledTime = scheduledTimes[i];
+        entry.nextRunTime = nextRunTimes[i];
+        contexts[i] = null;
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Discards all triggers in the buffer.
+     *
+     * @return the number of triggers discarded
+     */
+    public synchronized int clear() {
+        int count = 0;
+        Entry e = new Entry();
+        while (poll(e)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * A consumer-owned holder that triggers are copied into when polled.
+     */
+    public static class Entry {
+        TaskContext context;
+        long scheduledTime;
+        long nextRunTime;
+
+        public TaskContext getContext() {
+            return context;
+        }
+
+        public long getScheduledTime() {
+            return scheduledTime;
+        }
+
+        public long getNextRunTime() {
+            return nextRunTime;
+        }
+    }
+}
@@ -20,6 +20,6 @@ public class DateHelper {
     }
 
     static public long getMillisecondsUntilMidnight(long now, DateTimeZone tz) {
-        return new DateTime(now, tz).plusDays(1).withTimeAtStartOfDay().getMillis() - now;
+        return DayBoundaryTable.getMillisecondsUntilMidnight(now, tz);
     }
 }
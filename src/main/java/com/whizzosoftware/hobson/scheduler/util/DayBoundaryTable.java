@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A precomputed table of the times each day starts in a time zone. The table covers a year ahead so that
+ * start-of-day, end-of-day and time-until-midnight lookups are a binary search over primitive values rather
+ * than a Joda DateTime construction.
+ *
+ * The table is DST-aware: a spring-forward day is an hour short and a fall-back day is an hour long. In zones
+ * that change their clocks at midnight (e.g. America/Sao_Paulo), local midnight doesn't exist on the
+ * spring-forward day so that day starts at the first valid instant (01:00).
+ */
+public class DayBoundaryTable {
+    static final int DAYS_BEFORE = 7;
+    static final int DAYS_AFTER = 366;
+
+    private static final Map<String,DayBoundaryTable> tables = new ConcurrentHashMap<>();
+
+    private final DateTimeZone zone;
+    private final long[] starts;
+
+    /**
+     * Constructor.
+     *
+     * @param zone the time zone
+     * @param now the time the table should be centered on
+     */
+    DayBoundaryTable(DateTimeZone zone, long now) {
+        this.zone = zone;
+        this.starts = new long[DAYS_BEFORE + DAYS_AFTER + 1];
+        LocalDate d = new LocalDate(now, zone).minusDays(DAYS_BEFORE);
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = d.toDateTimeAtStartOfDay(zone).getMillis();
+            d = d.plusDays(1);
+        }
+    }
+
+    /**
+     * Returns the table for a time zone that covers a point in time, building a new one if necessary.
+     *
+     * @param now the point in time
+     * @param tz the time zone
+     *
+     * @return a DayBoundaryTable
+     */
+    static public DayBoundaryTable forZone(long now, DateTimeZone tz) {
+        DayBoundaryTable t = tables.get(tz.getID());
+        if (t == null || !t.covers(now)) {
+            t = new DayBoundaryTable(tz, now);
+            tables.put(tz.getID(), t);
+        }
+        return t;
+    }
+
+    /**
+     * Returns the start of the day a point in time falls in.
+     *
+     * @param now the point in time
+     * @param tz the time zone
+     *
+     * @return a time in milliseconds
+     */
+    static public long getStartOfDay(long now, DateTimeZone tz) {
+        DayBoundaryTable t = forZone(now, tz);
+        return t.starts[t.indexOf(now)];
+    }
+
+    /**
+     * Returns the last millisecond of the day a point in time falls in.
+     *
+     * @param now the point in time
+     * @param tz the time zone
+     *
+     * @return a time in milliseconds
+     */
+    static public long getEndOfDay(long now, DateTimeZone tz) {
+        return getStartOfNextDay(now, tz) - 1;
+    }
+
+    /**
+     * Returns the start of the day after the one a point in time falls in.
+     *
+     * @param now the point in time
+     * @param tz the time zone
+     *
+     * @return a time in milliseconds
+     */
+    static public long getStartOfNextDay(long now, DateTimeZone tz) {
+        return getStartOfDay(now, tz, 1);
+    }
+
+    /**
+     * Returns the start of a day relative to the one a point in time falls in.
+     *
+     * @param now the point in time
+     * @param tz the time zone
+     * @param days the number of days after (or before if negative) the day that now falls in
+     *
+     * @return a time in milliseconds
+     */
+    static public long getStartOfDay(long now, DateTimeZone tz, int days) {
+        DayBoundaryTable t = forZone(now, tz);
+        int i = t.indexOf(now) + days;
+        if (i >= 0 && i < t.starts.length) {
+            return t.starts[i];
+        } else {
+            return new LocalDate(now, tz).plusDays(days).toDateTimeAtStartOfDay(tz).getMillis();
+        }
+    }
+
+    /**
+     * Returns the number of milliseconds from a point in time until the start of the next day.
+     *
+     * @param now the point in time
+     * @param tz the time zone
+     *
+     * @return a number of milliseconds
+     */
+    static public long getMillisecondsUntilMidnight(long now, DateTimeZone tz) {
+        return getStartOfNextDay(now, tz) - now;
+    }
+
+    public DateTimeZone getZone() {
+        return zone;
+    }
+
+    /**
+     * Indicates whether the table can answer lookups for a point in time (including the start of the following day).
+     *
+     * @param now the point in time
+     *
+     * @return a boolean
+     */
+    public boolean covers(long now) {
+        return (now >= starts[0] && now < starts[starts.length - 1]);
+    }
+
+    /**
+     * Returns the index of the day a point in time falls in.
+     *
+     * @param now the point in time
+     *
+     * @return an index
+     */
+    int indexOf(long now) {
+        int i = Arrays.binarySearch(starts, now);
+        return (i >= 0) ? i : -i - 2;
+    }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * A bitmap of the days a task runs on over the year starting on a given day, with one bit per day. Checking whether
+ * a task runs on a day is then a single bit test rather than an expansion of its recurrence rule.
+ *
+ * Days are local to a time zone and are numbered from the epoch so the bitmap can tell whether it covers a day without
+ * any calendar arithmetic.
+ */
+public class RunDayBitmap {
+    public static final int DAYS = 366;
+
+    private static final long DAY = 86400000L;
+
+    private final DateTimeZone timeZone;
+    private final int firstDay;
+    private final long startTime;
+    private final long endTime;
+    private final long[] bits = new long[(DAYS + 63) / 64];
+
+    /**
+     * Constructor.
+     *
+     * @param now a point in time on the first day the bitmap covers
+     * @param timeZone the time zone days are local to
+     */
+    public RunDayBitmap(long now, DateTimeZone timeZone) {
+        this.timeZone = timeZone;
+        this.firstDay = getDay(now, timeZone);
+        this.startTime = DayBoundaryTable.getStartOfDay(now, timeZone);
+        this.endTime = DayBoundaryTable.getStartOfDay(now, timeZone, DAYS);
+    }
+
+    /**
+     * Returns the number of the day a point in time falls in.
+     *
+     * @param time the point in time
+     * @param tz the time zone
+     *
+     * @return the number of days since the epoch in the time zone
+     */
+    public static int getDay(long time, DateTimeZone tz) {
+        long local = tz.convertUTCToLocal(time);
+        return (int)((local >= 0) ? local / DAY : (local + 1) / DAY - 1);
+    }
+
+    /**
+     * Returns the start of the first day the bitmap covers.
+     *
+     * @return a time in epoch milliseconds
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the start of the day after the last day the bitmap covers.
+     *
+     * @return a time in epoch milliseconds
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Indicates whether the bitmap has an answer for the day a point in time falls in.
+     *
+     * @param time the point in time
+     * @param tz the time zone the caller's days are local to
+     *
+     * @return a boolean
+     */
+    public boolean covers(long time, DateTimeZone tz) {
+        int i = getDay(time, tz) - firstDay;
+        return (timeZone.equals(tz) && i >= 0 && i < DAYS);
+    }
+
+    /**
+     * Marks the day a run falls on. Runs outside the bitmap's year are ignored.
+     *
+     * @param time the time of the run
+     */
+    public void set(long time) {
+        int i = getDay(time, timeZone) - firstDay;
+        if (i >= 0 && i < DAYS) {
+            bits[i >>> 6] |= 1L << i;
+        }
+    }
+
+    /**
+     * Indicates whether there's a run on the day a point in time falls in. The day must be one the bitmap covers.
+     *
+     * @param time the point in time
+     *
+     * @return a boolean
+     */
+    public boolean isSet(long time) {
+        int i = getDay(time, timeZone) - firstDay;
+        return ((bits[i >>> 6] & (1L << i)) != 0);
+    }
+
+    /**
+     * Returns the number of days with a run.
+     *
+     * @return a count
+     */
+    public int getRunDayCount() {
+        int count = 0;
+        for (long l : bits) {
+            count += Long.bitCount(l);
+        }
+        return count;
+    }
+}
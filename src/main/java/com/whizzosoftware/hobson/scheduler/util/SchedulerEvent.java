@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Java Flight Recorder event for a scheduler operation (e.g. a recurrence expansion or a queue fire).
+ *
+ * The plugin is built for runtimes that predate JFR's public API so the event types are defined at runtime through
+ * jdk.jfr.EventFactory rather than as subclasses of jdk.jfr.Event. On a runtime without JFR, or when a recording
+ * isn't capturing a particular type, begin() returns a shared no-op event so an un-recorded operation costs a single
+ * enabled check. Since asking JFR is a reflective call, whether each type is enabled is cached and re-read at most
+ * every REFRESH_INTERVAL_MS milliseconds; a new recording can therefore miss up to that long of scheduler events.
+ * Callers should guard their set() calls with isEnabled() to avoid boxing values nobody will see.
+ */
+public class SchedulerEvent {
+    private static final Logger logger = LoggerFactory.getLogger(SchedulerEvent.class);
+
+    private static final String NAME_PREFIX = "com.whizzosoftware.hobson.scheduler.";
+    static final long REFRESH_INTERVAL_MS = 1000;
+    private static final SchedulerEvent NOOP = new SchedulerEvent(null, null);
+
+    /**
+     * The event types along with the names and types of their fields.
+     */
+    public enum Type {
+        RECURRENCE_EXPANSION("RecurrenceExpansion", "Recurrence Expansion", "task", String.class, "rule", String.class, "windowStart", long.class, "windowEnd", long.class, "count", int.class),
+        SOLAR_COMPUTATION("SolarComputation", "Solar Computation", "date", String.class, "latitude", double.class, "longitude", double.class),
+        SCHEDULE_NEXT_RUN("ScheduleNextRun", "Schedule Next Run", "task", String.class, "dayReset", boolean.class, "runToday", boolean.class),
+        DAY_RESET("DayReset", "Day Reset", "taskCount", int.class, "skippedCount", int.class),
+        QUEUE_SCHEDULE("QueueSchedule", "Queue Schedule", "task", String.class, "delay", long.class, "priority", int.class),
+        QUEUE_CANCEL("QueueCancel", "Queue Cancel", "task", String.class, "count", int.class),
+        QUEUE_FIRE("QueueFire", "Queue Fire", "task", String.class, "scheduledTime", long.class, "lateness", long.class, "rearmed", boolean.class);
+
+        private final String name;
+        private final String label;
+        private final String[] fieldNames;
+        private final Class[] fieldTypes;
+
+        Type(String name, String label, Object... fields) {
+            this.name = name;
+            this.label = label;
+            this.fieldNames = new String[fields.length / 2];
+            this.fieldTypes = new Class[fields.length / 2];
+            for (int i = 0; i < fieldNames.length; i++) {
+                fieldNames[i] = (String)fields[i * 2];
+                fieldTypes[i] = (Class)fields[i * 2 + 1];
+            }
+        }
+
+        public String getName() {
+            return NAME_PREFIX + name;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        int indexOf(String field) {
+            for (int i = 0; i < fieldNames.length; i++) {
+                if (fieldNames[i].equals(field)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Event " + name + " has no field named " + field);
+        }
+    }
+
+    private final Type type;
+    private final Object event;
+
+    private SchedulerEvent(Type type, Object event) {
+        this.type = type;
+        this.event = event;
+    }
+
+    /**
+     * Begins timing an operation.
+     *
+     * @param type the event type
+     *
+     * @return a SchedulerEvent (which is a no-op if the type isn't being recorded)
+     */
+    public static SchedulerEvent begin(Type type) {
+        Recorder r = Recorder.INSTANCE;
+        if (r != null) {
+            Object e = r.newEvent(type);
+            if (e != null) {
+                return new SchedulerEvent(type, e);
+            }
+        }
+        return NOOP;
+    }
+
+    /**
+     * Re-reads whether each event type is enabled rather than waiting for the next periodic refresh.
+     */
+    static void refresh() {
+        Recorder r = Recorder.INSTANCE;
+        if (r != null) {
+            r.refresh(System.nanoTime());
+        }
+    }
+
+    /**
+     * Indicates whether JFR event types could be defined on this runtime.
+     *
+     * @return a boolean
+     */
+    public static boolean isAvailable() {
+        return (Recorder.INSTANCE != null);
+    }
+
+    /**
+     * Indicates whether this event will be recorded.
+     *
+     * @return a boolean
+     */
+    public boolean isEnabled() {
+        return (event != null);
+    }
+
+    /**
+     * Sets a field value.
+     *
+     * @param field the field name
+     * @param value the value
+     *
+     * @return this event
+     */
+    public SchedulerEvent set(String field, Object value) {
+        if (event != null) {
+            Recorder r = Recorder.INSTANCE;
+            if (r != null) {
+                r.set(event, type.indexOf(field), value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Ends timing the operation and records the event.
+     */
+    public void commit() {
+        if (event != null) {
+            Recorder r = Recorder.INSTANCE;
+            if (r != null) {
+                r.commit(event);
+            }
+        }
+    }
+
+    /**
+     * The reflective bridge to jdk.jfr. It's initialized the first time an event is begun and is null if JFR isn't
+     * present. If JFR fails part way through a recording the bridge disables itself rather than failing the
+     * scheduler operation being recorded.
+     */
+    private static class Recorder {
+        static volatile Recorder INSTANCE = create();
+
+        private final Object[] factories;
+        private final Object[] eventTypes;
+        private final Method newEvent;
+        private final Method isEnabled;
+        private final Method begin;
+        private final Method set;
+        private final Method commit;
+        private volatile boolean[] enabled;
+        private volatile long refreshedAt;
+
+        private Recorder(Object[] factories, Object[] eventTypes, Method newEvent, Method isEnabled, Method begin, Method set, Method commit) {
+            this.factories = factories;
+            this.eventTypes = eventTypes;
+            this.newEvent = newEvent;
+            this.isEnabled = isEnabled;
+            this.begin = begin;
+            this.set = set;
+            this.commit = commit;
+        }
+
+        @SuppressWarnings("unchecked")
+        static Recorder create() {
+            try {
+                Class factoryClass = loadClass("jdk.jfr.EventFactory");
+                Class annotationElementClass = loadClass("jdk.jfr.AnnotationElement");
+                Class valueDescriptorClass = loadClass("jdk.jfr.ValueDescriptor");
+                Class eventClass = loadClass("jdk.jfr.Event");
+                Class eventTypeClass = loadClass("jdk.jfr.EventType");
+                Class nameClass = loadClass("jdk.jfr.Name");
+                Class labelClass = loadClass("jdk.jfr.Label");
+                Class categoryClass = loadClass("jdk.jfr.Category");
+                Class stackTraceClass = loadClass("jdk.jfr.StackTrace");
+
+                Constructor annotationCtor = annotationElementClass.getConstructor(Class.class, Object.class);
+                Constructor descriptorCtor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+                Method create = factoryClass.getMethod("create", List.class, List.class);
+                Method getEventType = factoryClass.getMethod("getEventType");
+
+                Type[] types = Type.values();
+                Object[] factories = new Object[types.length];
+                Object[] eventTypes = new Object[types.length];
+                for (Type t : types) {
+                    List<Object> annotations = new ArrayList<>();
+                    annotations.add(annotationCtor.newInstance(nameClass, t.getName()));
+                    annotations.add(annotationCtor.newInstance(labelClass, t.getLabel()));
+                    annotations.add(annotationCtor.newInstance(categoryClass, new String[] {"Hobson", "Scheduler"}));
+                    annotations.add(annotationCtor.newInstance(stackTraceClass, false));
+
+                    List<Object> fields = new ArrayList<>();
+                    for (int i = 0; i < t.fieldNames.length; i++) {
+                        List<Object> fieldAnnotations = Arrays.asList(annotationCtor.newInstance(labelClass, t.fieldNames[i]));
+                        fields.add(descriptorCtor.newInstance(t.fieldTypes[i], t.fieldNames[i], fieldAnnotations));
+                    }
+
+                    factories[t.ordinal()] = create.invoke(null, annotations, fields);
+                    eventTypes[t.ordinal()] = getEventType.invoke(factories[t.ordinal()]);
+                }
+
+                logger.debug("Registered {} flight recorder event types", types.length);
+
+                Recorder r = new Recorder(
+                    factories,
+                    eventTypes,
+                    factoryClass.getMethod("newEvent"),
+                    eventTypeClass.getMethod("isEnabled"),
+                    eventClass.getMethod("begin"),
+                    eventClass.getMethod("set", int.class, Object.class),
+                    eventClass.getMethod("commit")
+                );
+                r.readEnabled(System.nanoTime());
+                return r;
+            } catch (ClassNotFoundException e) {
+                logger.debug("Flight recorder is not available; scheduler events will not be recorded");
+            } catch (Throwable t) {
+                logger.warn("Unable to register flight recorder events; scheduler events will not be recorded", t);
+            }
+            return null;
+        }
+
+        static Class loadClass(String name) throws ClassNotFoundException {
+            // the plugin's own class loader may not delegate jdk.* packages so try the platform directly first
+            try {
+                return Class.forName(name, true, null);
+            } catch (ClassNotFoundException e) {
+                return Class.forName(name, true, ClassLoader.getSystemClassLoader());
+            }
+        }
+
+        Object newEvent(Type type) {
+            long now = System.nanoTime();
+            if (now - refreshedAt >= TimeUnit.MILLISECONDS.toNanos(REFRESH_INTERVAL_MS)) {
+                refresh(now);
+            }
+            if (enabled[type.ordinal()]) {
+                try {
+                    Object e = newEvent.invoke(factories[type.ordinal()]);
+                    begin.invoke(e);
+                    return e;
+                } catch (Throwable t) {
+                    disable(t);
+                }
+            }
+            return null;
+        }
+
+        void refresh(long now) {
+            try {
+                readEnabled(now);
+            } catch (Throwable t) {
+                disable(t);
+            }
+        }
+
+        private void readEnabled(long now) throws Exception {
+            boolean[] b = new boolean[eventTypes.length];
+            for (int i = 0; i < eventTypes.length; i++) {
+                b[i] = (Boolean)isEnabled.invoke(eventTypes[i]);
+            }
+            enabled = b;
+            refreshedAt = now;
+        }
+
+        void set(Object event, int index, Object value) {
+            try {
+                set.invoke(event, index, value);
+            } catch (Throwable t) {
+                disable(t);
+            }
+        }
+
+        void commit(Object event) {
+            try {
+                commit.invoke(event);
+            } catch (Throwable t) {
+                disable(t);
+            }
+        }
+
+        private void disable(Throwable t) {
+            logger.warn("Flight recorder event failed; disabling scheduler events", t);
+            INSTANCE = null;
+        }
+    }
+}
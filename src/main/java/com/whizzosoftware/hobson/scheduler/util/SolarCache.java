@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import com.whizzosoftware.hobson.scheduler.SolarOffset;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of sunrise/sunset times for a single geographic location. Since every solar-offset task at a location
+ * shares the same sunrise and sunset on a given day, the (relatively expensive) solar calculation only needs to be
+ * done once per day and time zone. Changing the location invalidates the cache.
+ */
+public class SolarCache {
+    static final int MAX_ENTRIES = 1024;
+
+    private volatile Double latitude;
+    private volatile Double longitude;
+    private final Map<String,SolarHelper.SunriseSunsetCalendar> entries = new ConcurrentHashMap<>();
+    private volatile int generation;
+
+    public SolarCache(Double latitude, Double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    /**
+     * Sets the location. The cache is invalidated if the location has changed.
+     *
+     * @param latitude the latitude
+     * @param longitude the longitude
+     *
+     * @return a boolean indicating whether the location changed
+     */
+    public synchronized boolean setLocation(Double latitude, Double longitude) {
+        if (isEqual(this.latitude, latitude) && isEqual(this.longitude, longitude)) {
+            return false;
+        }
+        this.latitude = latitude;
+        this.longitude = longitude;
+        entries.clear();
+        generation++;
+        return true;
+    }
+
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Returns a number that changes whenever the location does so that anything derived from the cache's times can
+     * tell when it's stale.
+     *
+     * @return a generation number
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    public boolean hasLocation() {
+        return (latitude != null && longitude != null);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the sunrise/sunset times for a particular day.
+     *
+     * @param date the day
+     * @param tz the time zone
+     *
+     * @return a SunriseSunsetCalendar or null if no location has been set
+     */
+    public SolarHelper.SunriseSunsetCalendar getSunriseSunsetCalendar(LocalDate date, DateTimeZone tz) {
+        Double lat = latitude;
+        Double lon = longitude;
+        if (lat == null || lon == null) {
+            return null;
+        }
+        String key = tz.getID() + ":" + date.toString();
+        SolarHelper.SunriseSunsetCalendar ssc = entries.get(key);
+        if (ssc == null) {
+            ssc = SolarHelper.getSunriseSunsetCalendar(date, tz, lat, lon);
+            synchronized (this) {
+                // only cache the result if the location didn't change while it was being calculated
+                if (lat.equals(latitude) && lon.equals(longitude)) {
+                    if (entries.size() >= MAX_ENTRIES) {
+                        entries.clear();
+                    }
+                    entries.put(key, ssc);
+                }
+            }
+        }
+        return ssc;
+    }
+
+    /**
+     * Returns the time of a solar offset on a particular day.
+     *
+     * @param date the day
+     * @param tz the time zone
+     * @param offset the solar offset
+     *
+     * @return a DateTime or null if no location has been set
+     */
+    public DateTime getTime(LocalDate date, DateTimeZone tz, SolarOffset offset) {
+        SolarHelper.SunriseSunsetCalendar ssc = getSunriseSunsetCalendar(date, tz);
+        if (ssc != null) {
+            DateTime dt = (offset.getType() == SolarOffset.Type.SUNSET) ? ssc.getSunset() : ssc.getSunrise();
+            return dt.plusMinutes(offset.getOffset());
+        } else {
+            return null;
+        }
+    }
+
+    static private boolean isEqual(Double d1, Double d2) {
+        return (d1 == null) ? (d2 == null) : d1.equals(d2);
+    }
+}
@@ -41,9 +41,14 @@ public class SolarHelper {
      * @return a SunriseSunsetCalendar instance
      */
     public static SunriseSunsetCalendar getSunriseSunsetCalendar(LocalDate today, DateTimeZone tz, double latitude, double longitude) {
+        SchedulerEvent evt = SchedulerEvent.begin(SchedulerEvent.Type.SOLAR_COMPUTATION);
         SunriseSunsetCalculator calc = new SunriseSunsetCalculator(new Location(latitude, longitude), tz.toTimeZone());
         Calendar c = today.toDateTimeAtStartOfDay(tz).toCalendar(Locale.ENGLISH);
-        return new SunriseSunsetCalendar(new DateTime(calc.getOfficialSunriseCalendarForDate(c)), new DateTime(calc.getOfficialSunsetCalendarForDate(c)));
+        SunriseSunsetCalendar ssc = new SunriseSunsetCalendar(new DateTime(calc.getOfficialSunriseCalendarForDate(c)), new DateTime(calc.getOfficialSunsetCalendarForDate(c)));
+        if (evt.isEnabled()) {
+            evt.set("date", today.toString()).set("latitude", latitude).set("longitude", longitude).commit();
+        }
+        return ssc;
     }
 
     /**
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+/**
+ * Helper for spreading the fire times of tasks that are scheduled for the same moment. The offset for a task is
+ * derived from a hash of its ID so that it is stable across restarts and re-schedules.
+ */
+public class SpreadHelper {
+    /**
+     * Returns the offset to apply to a task's scheduled time.
+     *
+     * @param taskId the task ID
+     * @param windowSeconds the number of seconds either side of the scheduled time the task can be moved
+     *
+     * @return an offset in milliseconds between -windowSeconds and +windowSeconds
+     */
+    static public long getOffset(String taskId, int windowSeconds) {
+        if (taskId == null || windowSeconds <= 0) {
+            return 0;
+        }
+
+        // mix the bits of the string hash so that similar IDs don't end up next to each other
+        int h = taskId.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+
+        long range = windowSeconds * 2000L + 1;
+        return (((h % range) + range) % range) - windowSeconds * 1000L;
+    }
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.TimeZoneRegistry;
+import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
+import org.joda.time.DateTimeZone;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A shared cache of time zone lookups. Building an iCal time zone (with its full transition table) is relatively
+ * expensive, so it is done once and then shared by every task in the same zone. Day boundaries for a zone are
+ * available from DayBoundaryTable.
+ */
+public class TimeZoneCache {
+    private static TimeZoneRegistry registry;
+    private static final Map<String,TimeZone> icalZones = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a Joda time zone.
+     *
+     * @param id the zone ID (e.g. "America/Denver")
+     *
+     * @return a DateTimeZone
+     *
+     * @throws IllegalArgumentException if the ID is not a known time zone
+     */
+    static public DateTimeZone getZone(String id) {
+        return DateTimeZone.forID(id);
+    }
+
+    /**
+     * Returns an iCal time zone suitable for binding a TZID to a date/time property.
+     *
+     * @param id the zone ID (e.g. "America/Denver")
+     *
+     * @return a TimeZone or null if the ID is not a known time zone
+     */
+    static public TimeZone getICalTimeZone(String id) {
+        TimeZone tz = icalZones.get(id);
+        if (tz == null) {
+            tz = getRegistry().getTimeZone(id);
+            if (tz != null) {
+                icalZones.put(id, tz);
+            }
+        }
+        return tz;
+    }
+
+    static synchronized private TimeZoneRegistry getRegistry() {
+        if (registry == null) {
+            registry = TimeZoneRegistryFactory.getInstance().createRegistry();
+        }
+        return registry;
+    }
+}
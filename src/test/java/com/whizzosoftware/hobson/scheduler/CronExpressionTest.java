@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler;
+
+import com.whizzosoftware.hobson.scheduler.util.DateHelper;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+public class CronExpressionTest {
+    private static final DateTimeZone DENVER = DateTimeZone.forID("America/Denver");
+
+    @Test
+    public void testParse() throws Exception {
+        CronExpression c = CronExpression.parse("*/15 6-8 1,15 JAN-MAR MON-FRI");
+        assertEquals((1L << 0) | (1L << 15) | (1L << 30) | (1L << 45), c.getMinutes());
+        assertEquals((1L << 6) | (1L << 7) | (1L << 8), c.getHours());
+        assertEquals((1L << 1) | (1L << 15), c.getDaysOfMonth());
+        assertEquals((1L << 1) | (1L << 2) | (1L << 3), c.getMonths());
+        assertEquals(0x3e, c.getDaysOfWeek());
+
+        // 7 is Sunday
+        assertEquals(0x41, CronExpression.parse("0 0 * * 6-7").getDaysOfWeek());
+        // a start with a step runs to the end of the range
+        assertEquals((1L << 5) | (1L << 25) | (1L << 45), CronExpression.parse("5/20 0 * * *").getMinutes());
+        assertEquals(CronExpression.parse("0 0 * * *").getHours(), CronExpression.parse("@daily").getHours());
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] invalid = {"", "* * * *", "* * * * * *", "60 * * * *", "* 24 * * *", "* * 0 * *", "* * * 13 *", "* * * * 8", "5-1 * * * *", "*/0 * * * *", "a * * * *", "* * * FOO *"};
+        for (String s : invalid) {
+            try {
+                CronExpression.parse(s);
+                fail("Should have thrown exception for " + s);
+            } catch (ParseException ignored) {}
+        }
+    }
+
+    @Test
+    public void testNext() throws Exception {
+        CronExpression c = CronExpression.parse("30 8 * * MON-FRI");
+        // 2015-01-02 is a Friday
+        long t = DateHelper.getTime(2015, 1, 2, 8, 30, 0, DENVER);
+        assertEquals(t, c.next(DateHelper.getTime(2015, 1, 2, 0, 0, 0, DENVER), DENVER));
+        // the next run is strictly after the starting point
+        assertEquals(DateHelper.getTime(2015, 1, 5, 8, 30, 0, DENVER), c.next(t, DENVER));
+
+        // every 15 minutes rolls over hours and days
+        c = CronExpression.parse("*/15 * * * *");
+        assertEquals(DateHelper.getTime(2015, 1, 1, 0, 0, 0, DENVER), c.next(DateHelper.getTime(2014, 12, 31, 23, 50, 10, DENVER), DENVER));
+
+        // rolls over months and years
+        c = CronExpression.parse("0 12 31 * *");
+        assertEquals(DateHelper.getTime(2015, 3, 31, 12, 0, 0, DENVER), c.next(DateHelper.getTime(2015, 2, 1, 0, 0, 0, DENVER), DENVER));
+        assertEquals(DateHelper.getTime(2016, 1, 31, 12, 0, 0, DENVER), c.next(DateHelper.getTime(2015, 12, 31, 13, 0, 0, DENVER), DENVER));
+
+        // leap days
+        c = CronExpression.parse("0 0 29 FEB *");
+        assertEquals(DateHelper.getTime(2016, 2, 29, 0, 0, 0, DENVER), c.next(DateHelper.getTime(2015, 1, 1, 0, 0, 0, DENVER), DENVER));
+
+        // never
+        assertEquals(-1, CronExpression.parse("0 0 30 2 *").next(DateHelper.getTime(2015, 1, 1, 0, 0, 0, DENVER), DENVER));
+    }
+
+    @Test
+    public void testDayOfMonthOrDayOfWeek() throws Exception {
+        // the 13th or any Friday; 2015-02-06 is a Friday
+        CronExpression c = CronExpression.parse("0 9 13 * FRI");
+        long t = c.next(DateHelper.getTime(2015, 2, 1, 0, 0, 0, DENVER), DENVER);
+        assertEquals(DateHelper.getTime(2015, 2, 6, 9, 0, 0, DENVER), t);
+        t = c.next(t, DENVER);
+        assertEquals(DateHelper.getTime(2015, 2, 13, 9, 0, 0, DENVER), t);
+        t = c.next(t, DENVER);
+        assertEquals(DateHelper.getTime(2015, 2, 20, 9, 0, 0, DENVER), t);
+
+        // an unrestricted day of month only uses the day of week
+        c = CronExpression.parse("0 9 * * SUN");
+        assertEquals(DateHelper.getTime(2015, 2, 8, 9, 0, 0, DENVER), c.next(DateHelper.getTime(2015, 2, 1, 10, 0, 0, DENVER), DENVER));
+    }
+
+    @Test
+    public void testDaylightSavingTime() throws Exception {
+        // 2:30am doesn't exist on 2015-03-08 in Denver so the run moves forward an hour
+        CronExpression c = CronExpression.parse("30 2 * * *");
+        assertEquals(DateHelper.getTime(2015, 3, 8, 3, 30, 0, DENVER), c.next(DateHelper.getTime(2015, 3, 8, 0, 0, 0, DENVER), DENVER));
+        assertEquals(DateHelper.getTime(2015, 3, 9, 2, 30, 0, DENVER), c.next(DateHelper.getTime(2015, 3, 8, 4, 0, 0, DENVER), DENVER));
+
+        // 1:30am occurs twice on 2015-11-01 but only runs once
+        c = CronExpression.parse("30 1 * * *");
+        long t = c.next(DateHelper.getTime(2015, 11, 1, 0, 0, 0, DENVER), DENVER);
+        assertEquals(DateHelper.getTime(2015, 11, 2, 1, 30, 0, DENVER), c.next(t, DENVER));
+    }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.condition;
+
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.scheduler.SolarOffset;
+import com.whizzosoftware.hobson.scheduler.util.DateHelper;
+import com.whizzosoftware.hobson.scheduler.util.SolarCache;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TimeWindowTest {
+    private static final DateTimeZone TZ = DateTimeZone.forID("America/Denver");
+
+    @Test
+    public void testWeekdayWindow() throws Exception {
+        TimeWindow w = TimeWindow.compile("08:00", "17:30", "WEEKDAYS", TZ, null);
+
+        // Monday June 1, 2015
+        assertFalse(w.contains(DateHelper.getTime(2015, 6, 1, 7, 59, 59, TZ)));
+        assertTrue(w.contains(DateHelper.getTime(2015, 6, 1, 8, 0, 0, TZ)));
+        assertTrue(w.contains(DateHelper.getTime(2015, 6, 1, 17, 29, 59, TZ)));
+        assertFalse(w.contains(DateHelper.getTime(2015, 6, 1, 17, 30, 0, TZ)));
+
+        // Saturday
+        assertFalse(w.contains(DateHelper.getTime(2015, 6, 6, 12, 0, 0, TZ)));
+    }
+
+    @Test
+    public void testOvernightWindow() throws Exception {
+        TimeWindow w = TimeWindow.compile("220000", "0600", "FR", TZ, null);
+
+        // starts Friday June 5 and carries into Saturday morning
+        assertFalse(w.contains(DateHelper.getTime(2015, 6, 5, 5, 0, 0, TZ)));
+        assertTrue(w.contains(DateHelper.getTime(2015, 6, 5, 23, 0, 0, TZ)));
+        assertTrue(w.contains(DateHelper.getTime(2015, 6, 6, 5, 59, 0, TZ)));
+        assertFalse(w.contains(DateHelper.getTime(2015, 6, 6, 6, 0, 0, TZ)));
+        assertFalse(w.contains(DateHelper.getTime(2015, 6, 6, 23, 0, 0, TZ)));
+    }
+
+    @Test
+    public void testDaylightSavingChange() throws Exception {
+        TimeWindow w = TimeWindow.compile("01:00", "04:00", null, TZ, null);
+
+        // clocks go forward at 2:00 on March 8, 2015 so the window is only two hours long
+        long start = DateHelper.getTime(2015, 3, 8, 1, 0, 0, TZ);
+        assertTrue(w.contains(start));
+        assertTrue(w.contains(start + 7199999));
+        assertFalse(w.contains(start + 7200000));
+    }
+
+    @Test
+    public void testSolarWindow() throws Exception {
+        SolarCache cache = new SolarCache(null, null);
+        TimeWindow w = TimeWindow.compile("SS-30", "23:00", null, TZ, cache);
+        long sunset = DateHelper.getTime(2015, 6, 1, 22, 0, 0, TZ);
+
+        // no location means no sunset
+        assertFalse(w.contains(sunset));
+
+        cache.setLocation(39.3722, -104.8561);
+        long ss = cache.getTime(new LocalDate(2015, 6, 1), TZ, new SolarOffset("SS-30")).getMillis();
+        assertFalse(w.contains(ss - 1));
+        assertTrue(w.contains(ss));
+        assertFalse(w.contains(DateHelper.getTime(2015, 6, 1, 23, 0, 0, TZ)));
+    }
+
+    @Test
+    public void testInvalid() {
+        try {
+            TimeWindow.compile("25:00", "23:00", null, TZ, null);
+            fail("Should have thrown exception");
+        } catch (ParseException ignored) {}
+        try {
+            TimeWindow.compile("08:00", "09:00", "XX", TZ, null);
+            fail("Should have thrown exception");
+        } catch (ParseException ignored) {}
+    }
+
+    @Test
+    public void testConditionClass() throws Exception {
+        TimeWindowConditionClass tcc = new TimeWindowConditionClass(PluginContext.createLocal("plugin1"), new SolarCache(null, null), TZ);
+        Map<String,Object> values = new HashMap<>();
+        values.put("start", "000000Z");
+        values.put("end", "000000Z");
+        PropertyContainer pc = new PropertyContainer(tcc.getContext(), values);
+
+        // a window that starts and ends at the same time covers the whole day
+        TimeWindow w = tcc.getTimeWindow(pc);
+        assertEquals(DateTimeZone.UTC, w.getTimeZone());
+        assertSame(w, tcc.getTimeWindow(pc));
+        assertTrue(tcc.evaluate(null, pc));
+
+        // an equal condition in another container shares the compiled window
+        values = new HashMap<>();
+        values.put("start", " 000000Z");
+        values.put("end", "000000Z");
+        assertSame(w, tcc.getTimeWindow(new PropertyContainer(tcc.getContext(), values)));
+
+        values = new HashMap<>();
+        values.put("start", "bad");
+        assertNull(tcc.getTimeWindow(new PropertyContainer(tcc.getContext(), values)));
+        assertFalse(tcc.evaluate(null, new PropertyContainer(tcc.getContext(), values)));
+    }
+
+    @Test
+    public void testConditionClassEviction() throws Exception {
+        TimeWindowConditionClass tcc = new TimeWindowConditionClass(PluginContext.createLocal("plugin1"), new SolarCache(null, null), TZ);
+        PropertyContainer first = createWindow(tcc, 0);
+        PropertyContainer second = createWindow(tcc, 1);
+        TimeWindow w1 = tcc.getTimeWindow(first);
+        TimeWindow w2 = tcc.getTimeWindow(second);
+
+        // fill the cache while keeping the first window in use through equal containers
+        for (int i = 2; i <= TimeWindowConditionClass.MAX_COMPILED; i++) {
+            tcc.getTimeWindow(createWindow(tcc, i));
+            assertSame(w1, tcc.getTimeWindow(createWindow(tcc, 0)));
+        }
+
+        // only the least recently used window was evicted
+        assertSame(w1, tcc.getTimeWindow(createWindow(tcc, 0)));
+        assertNotSame(w2, tcc.getTimeWindow(createWindow(tcc, 1)));
+    }
+
+    @Test
+    public void testConditionClassPrepare() throws Exception {
+        TimeWindowConditionClass tcc = new TimeWindowConditionClass(PluginContext.createLocal("plugin1"), new SolarCache(null, null), TZ);
+        PropertyContainer pc = createWindow(tcc, 30);
+        assertTrue(tcc.prepare(pc));
+
+        // a prepared container is found by identity
+        TimeWindow w = tcc.getTimeWindow(pc);
+        assertNotNull(w);
+        assertSame(w, tcc.getTimeWindow(pc));
+        assertSame(w, tcc.getTimeWindow(createWindow(tcc, 30)));
+
+        Map<String,Object> values = new HashMap<>();
+        values.put("start", "bad");
+        values.put("end", "23:59");
+        assertFalse(tcc.prepare(new PropertyContainer(tcc.getContext(), values)));
+        assertFalse(tcc.prepare(null));
+    }
+
+    private PropertyContainer createWindow(TimeWindowConditionClass tcc, int minute) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("start", String.format("%02d:%02d", minute / 60 % 24, minute % 60));
+        values.put("end", "23:59");
+        return new PropertyContainer(tcc.getContext(), values);
+    }
+}
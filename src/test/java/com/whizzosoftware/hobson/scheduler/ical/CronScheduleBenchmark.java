@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.scheduler.queue.OccurrenceCursor;
+import org.joda.time.DateTimeZone;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the cost of finding a task's next run time for cron schedules against equivalent recurrence rules. Rules
+ * with a fixed period are positioned with an OccurrenceCursor and all others are expanded with ical4j the way the
+ * task provider does (over a day, then six weeks, then 53 weeks). This is not run as part of the test suite; run it
+ * directly with an optional iteration count argument.
+ */
+public class CronScheduleBenchmark {
+    private static final DateTimeZone TZ = DateTimeZone.forID("America/Denver");
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        PropertyContainerClassContext pccc = PropertyContainerClassContext.create(pctx, "schedule");
+        TaskContext tctx = TaskContext.create(pctx.getHubContext(), "task1");
+
+        String[][] schedules = {
+            {"FREQ=MINUTELY;INTERVAL=15", "*/15 * * * *"},
+            {"FREQ=DAILY", "30 8 * * *"},
+            {"FREQ=WEEKLY;BYDAY=MO,TU,WE,TH,FR", "30 8 * * MON-FRI"},
+            {"FREQ=MONTHLY;BYMONTHDAY=1,15", "30 8 1,15 * *"},
+            {"FREQ=YEARLY;BYMONTH=2;BYMONTHDAY=29", "30 8 29 2 *"},
+        };
+
+        for (String[] s : schedules) {
+            ICalTask rruleTask = new ICalTask(tctx, createCondition(pccc, s[0], null));
+            ICalTask cronTask = new ICalTask(tctx, createCondition(pccc, null, s[1]));
+
+            // warm up
+            runRRule(rruleTask, count / 10);
+            runCron(cronTask, count / 10);
+
+            long rruleNanos = runRRule(rruleTask, count);
+            long cronNanos = runCron(cronTask, count);
+            System.out.println(s[0] + " vs " + s[1]);
+            System.out.println("  RRULE: " + (rruleNanos / count) + "ns per next run");
+            System.out.println("  cron:  " + (cronNanos / count) + "ns per next run");
+        }
+    }
+
+    private static long runRRule(ICalTask task, int count) throws Exception {
+        long now = System.currentTimeMillis();
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long t = now + i * 60000L;
+            OccurrenceCursor cursor = task.createOccurrenceCursor();
+            if (cursor != null) {
+                sink += cursor.seek(t);
+            } else {
+                sink += nextFromRecurrenceSet(task, t);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0) {
+            System.out.println("No runs found");
+        }
+        return elapsed;
+    }
+
+    private static long nextFromRecurrenceSet(ICalTask task, long now) throws Exception {
+        long[] windows = {86400000L, 3628800000L, 32054400000L};
+        for (long w : windows) {
+            List<Long> runs = task.getRunsDuringInterval(now, now + w, TZ);
+            for (Long l : runs) {
+                if (l > now) {
+                    return l;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long runCron(ICalTask task, int count) {
+        long now = System.currentTimeMillis();
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sink += task.getNextCronRun(now + i * 60000L, TZ);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0) {
+            System.out.println("No runs found");
+        }
+        return elapsed;
+    }
+
+    private static PropertyContainer createCondition(PropertyContainerClassContext pccc, String recurrence, String cron) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("date", "2015-01-01");
+        values.put("time", "08:30:00");
+        values.put("timeZone", TZ.getID());
+        if (recurrence != null) {
+            values.put("recurrence", recurrence);
+        }
+        if (cron != null) {
+            values.put("cron", cron);
+        }
+        return new PropertyContainer(pccc, values);
+    }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.scheduler.queue.MockTaskQueue;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ExecutionHistoryTest {
+    @Test
+    public void testRingBuffer() {
+        ExecutionHistory h = new ExecutionHistory(3);
+        assertEquals(0, h.getSnapshot().getFireCount());
+        assertEquals(0, h.getSnapshot().getLatenessPercentile(0.99));
+
+        for (int i = 1; i <= 5; i++) {
+            h.record(i * 1000, i * 1000 + i);
+        }
+        ExecutionHistory.Snapshot s = h.getSnapshot();
+        assertEquals(5, s.getFireCount());
+        assertArrayEquals(new long[] {3000, 4000, 5000}, s.getScheduledTimes());
+        assertArrayEquals(new long[] {3003, 4004, 5005}, s.getActualTimes());
+        assertEquals(5005, s.getLastFireTime());
+        assertEquals(5, s.getMaxLateness());
+    }
+
+    @Test
+    public void testPercentiles() {
+        ExecutionHistory h = new ExecutionHistory();
+        for (int i = 0; i < 98; i++) {
+            h.record(0, 0);
+        }
+        h.record(0, 100);
+        h.record(0, 5000);
+        h.record(1000, 900);
+
+        ExecutionHistory.Snapshot s = h.getSnapshot();
+        assertEquals(101, s.getFireCount());
+        assertEquals(1, s.getEarlyCount());
+        assertEquals(0, s.getLatenessPercentile(0.5));
+        assertEquals(127, s.getLatenessPercentile(0.99));
+        assertEquals(5000, s.getLatenessPercentile(1.0));
+        assertEquals(5000, s.getMaxLateness());
+    }
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, ExecutionHistory.getBucket(0));
+        assertEquals(1, ExecutionHistory.getBucket(1));
+        assertEquals(2, ExecutionHistory.getBucket(2));
+        assertEquals(2, ExecutionHistory.getBucket(3));
+        assertEquals(3, ExecutionHistory.getBucket(4));
+        assertEquals(63, ExecutionHistory.getBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testProviderQueries() {
+        ICalTaskProvider provider = new ICalTaskProvider(PluginContext.createLocal("plugin1"), null, null, DateTimeZone.forID("GMT"));
+        provider.setTaskManager(new MockTaskManager());
+        provider.setScheduleExecutor(new MockTaskQueue());
+        TaskContext fast = TaskContext.createLocal("fast");
+        TaskContext slow = TaskContext.createLocal("slow");
+        TaskContext slower = TaskContext.createLocal("slower");
+        for (int i = 0; i < 10; i++) {
+            provider.onTaskFired(fast, i * 1000, i * 1000 + 2, i * 1000 + 1000);
+            provider.onTaskFired(slow, i * 1000, i * 1000 + 500, i * 1000 + 1000);
+            provider.onTaskFired(slower, i * 1000, i * 1000 + 2000, i * 1000 + 1000);
+        }
+        assertEquals(10, provider.getExecutionHistory(fast).getFireCount());
+        assertNull(provider.getExecutionHistory(TaskContext.createLocal("none")));
+
+        List<TaskContext> late = provider.getLateTasks(0.95, 100);
+        assertEquals(2, late.size());
+        assertEquals(slower, late.get(0));
+        assertEquals(slow, late.get(1));
+
+        provider.onDeleteTask(slow);
+        assertNull(provider.getExecutionHistory(slow));
+    }
+}
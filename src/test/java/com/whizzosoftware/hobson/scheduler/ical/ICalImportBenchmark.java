@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+
+import java.io.Reader;
+
+/**
+ * Measures the parse throughput and peak heap use of ICalImporter for increasingly large generated calendars. The
+ * calendars are generated on the fly and imported as a dry run so the only memory used is the importer's own. This is
+ * not run as part of the test suite; run it directly with an optional maximum event count argument.
+ */
+public class ICalImportBenchmark {
+    public static void main(String[] args) throws Exception {
+        int max = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        ICalImporter importer = new ICalImporter(new MockTaskManager(), PluginContext.createLocal("plugin1"));
+        importer.setDryRun(true);
+
+        // warm up
+        importer.importFrom(new GeneratedCalendarReader(10000));
+
+        for (int count = 1000; count <= max; count *= 10) {
+            System.gc();
+            Runtime rt = Runtime.getRuntime();
+            long heapBefore = rt.totalMemory() - rt.freeMemory();
+            GeneratedCalendarReader reader = new GeneratedCalendarReader(count);
+            ICalImporter.Result result = importer.importFrom(reader);
+            System.out.println(count + " events");
+            System.out.println("  " + result);
+            System.out.println("  peak heap growth: " + (reader.peakHeap - heapBefore) / 1024 + "KB");
+        }
+    }
+
+    /**
+     * A reader that generates a calendar with a given number of events without holding it in memory.
+     */
+    private static class GeneratedCalendarReader extends Reader {
+        private final int count;
+        private int index = -1;
+        private String chunk = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\n";
+        private int pos;
+        private long peakHeap;
+
+        GeneratedCalendarReader(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if (pos >= chunk.length()) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length() - pos);
+            chunk.getChars(pos, pos + n, buf, off);
+            pos += n;
+            return n;
+        }
+
+        private boolean nextChunk() {
+            index++;
+            if (index < count) {
+                chunk = "BEGIN:VEVENT\r\nUID:event" + index + "\r\nSUMMARY:Event " + index + "\r\n" +
+                    "DTSTART;TZID=America/Denver:20150101T" + String.format("%02d%02d00", (index / 60) % 24, index % 60) + "\r\n" +
+                    "RRULE:FREQ=WEEKLY;BYDAY=MO,WE,FR\r\nEND:VEVENT\r\n";
+            } else if (index == count) {
+                chunk = "END:VCALENDAR\r\n";
+            } else {
+                return false;
+            }
+            pos = 0;
+            if (index % 1000 == 0) {
+                Runtime rt = Runtime.getRuntime();
+                peakHeap = Math.max(peakHeap, rt.totalMemory() - rt.freeMemory());
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.scheduler.condition.ScheduleConditionClass;
+import com.whizzosoftware.hobson.scheduler.util.DateHelper;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ICalImporterTest {
+    private static final String ICS =
+        "BEGIN:VCALENDAR\r\n" +
+        "VERSION:2.0\r\n" +
+        "BEGIN:VTIMEZONE\r\n" +
+        "TZID:America/Denver\r\n" +
+        "BEGIN:STANDARD\r\n" +
+        "DTSTART:19701101T020000\r\n" +
+        "END:STANDARD\r\n" +
+        "END:VTIMEZONE\r\n" +
+        "BEGIN:VEVENT\r\n" +
+        "UID:utc\r\n" +
+        "SUMMARY:UTC task\\, daily\r\n" +
+        "DTSTART:20150101T170000Z\r\n" +
+        "RRULE:FREQ=DAILY\r\n" +
+        "EXDATE:20150103T170000Z\r\n" +
+        "END:VEVENT\r\n" +
+        "BEGIN:VEVENT\r\n" +
+        "UID:utc\r\n" +
+        "SUMMARY:Moved\r\n" +
+        "RECURRENCE-ID:20150104T170000Z\r\n" +
+        "DTSTART:20150104T180000Z\r\n" +
+        "END:VEVENT\r\n" +
+        "BEGIN:VEVENT\r\n" +
+        "UID:zoned\r\n" +
+        "SUMMARY:A long summary that has been\r\n" +
+        "  folded\r\n" +
+        "DTSTART;TZID=\"America/Denver\":20150102T090000\r\n" +
+        "BEGIN:VALARM\r\n" +
+        "DTSTART:20000101T000000\r\n" +
+        "END:VALARM\r\n" +
+        "END:VEVENT\r\n" +
+        "BEGIN:VTODO\r\n" +
+        "UID:todo\r\n" +
+        "DTSTART:20150103T090000\r\n" +
+        "END:VTODO\r\n" +
+        "BEGIN:VEVENT\r\n" +
+        "UID:allday\r\n" +
+        "DTSTART;VALUE=DATE:20150104\r\n" +
+        "END:VEVENT\r\n" +
+        "BEGIN:VEVENT\r\n" +
+        "UID:solar\r\n" +
+        "DTSTART:20150105T000000\r\n" +
+        "X-SUN-OFFSET:SS30\r\n" +
+        "RRULE:FREQ=WEEKLY;BYDAY=MO,WE\r\n" +
+        "END:VEVENT\r\n" +
+        "BEGIN:VEVENT\r\n" +
+        "UID:invalid\r\n" +
+        "SUMMARY:No start\r\n" +
+        "END:VEVENT\r\n" +
+        "END:VCALENDAR\r\n";
+
+    @Test
+    public void testImport() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin1");
+        MockTaskManager mgr = new MockTaskManager();
+        mgr.publishConditionClass(new ScheduleConditionClass(pctx));
+
+        ICalImporter importer = new ICalImporter(mgr, pctx);
+        importer.setBatchSize(2);
+        ICalImporter.Result result = importer.importFrom(new StringReader(ICS));
+
+        // the moved occurrence of the daily task is skipped rather than becoming a task of its own
+        assertEquals(6, result.getEventCount());
+        assertEquals(4, result.getCreatedCount());
+        assertEquals(2, result.getSkippedCount());
+
+        Map<String,PropertyContainer> conditions = new HashMap<>();
+        for (HobsonTask t : mgr.getCreatedTasks()) {
+            conditions.put(t.getName(), t.getConditions().get(0));
+        }
+        assertEquals(4, conditions.size());
+
+        PropertyContainer pc = conditions.get("UTC task, daily");
+        assertEquals("20150101", pc.getPropertyValue("date"));
+        assertEquals("170000Z", pc.getPropertyValue("time"));
+        assertEquals("FREQ=DAILY", pc.getPropertyValue("recurrence"));
+        assertEquals("20150103T170000Z", pc.getPropertyValue(ScheduleConditionClass.PROP_EXCLUDED_DATES));
+        assertFalse(pc.hasPropertyValue("timeZone"));
+
+        // the excluded occurrence doesn't run
+        DateTimeZone gmt = DateTimeZone.forID("GMT");
+        List<Long> runs = new ICalTask(mgr.getCreatedTasks().iterator().next().getContext(), pc).getRunsDuringInterval(DateHelper.getTime(2015, 1, 2, 0, 0, 0, gmt), DateHelper.getTime(2015, 1, 5, 0, 0, 0, gmt), gmt);
+        assertEquals(2, runs.size());
+        assertEquals(DateHelper.getTime(2015, 1, 2, 17, 0, 0, gmt), (long)runs.get(0));
+        assertEquals(DateHelper.getTime(2015, 1, 4, 17, 0, 0, gmt), (long)runs.get(1));
+
+        pc = conditions.get("A long summary that has been folded");
+        assertEquals("20150102", pc.getPropertyValue("date"));
+        assertEquals("090000", pc.getPropertyValue("time"));
+        assertEquals("America/Denver", pc.getPropertyValue("timeZone"));
+        assertFalse(pc.hasPropertyValue("recurrence"));
+
+        pc = conditions.get("allday");
+        assertEquals("20150104", pc.getPropertyValue("date"));
+        assertEquals("000000", pc.getPropertyValue("time"));
+
+        pc = conditions.get("solar");
+        assertEquals("20150105", pc.getPropertyValue("date"));
+        assertEquals("SS30", pc.getPropertyValue("time"));
+        assertEquals("FREQ=WEEKLY;BYDAY=MO,WE", pc.getPropertyValue("recurrence"));
+
+        // the imported conditions should produce valid tasks
+        for (PropertyContainer c : conditions.values()) {
+            new ICalTask(mgr.getCreatedTasks().iterator().next().getContext(), c);
+        }
+    }
+
+    @Test
+    public void testDryRun() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin1");
+        MockTaskManager mgr = new MockTaskManager();
+        ICalImporter importer = new ICalImporter(mgr, pctx);
+        importer.setDryRun(true);
+        ICalImporter.Result result = importer.importFrom(new StringReader(ICS));
+        assertEquals(6, result.getEventCount());
+        assertEquals(4, result.getCreatedCount());
+        assertFalse(mgr.getCreatedTasks().iterator().hasNext());
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.scheduler.condition.ScheduleConditionClass;
+import com.whizzosoftware.hobson.scheduler.queue.MockTaskQueue;
+import com.whizzosoftware.hobson.scheduler.util.DateHelper;
+import net.fortuna.ical4j.model.component.VEvent;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ICalSubscriptionTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIncrementalRefresh() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin1");
+        MockTaskManager mgr = new MockTaskManager();
+        mgr.publishConditionClass(new ScheduleConditionClass(pctx));
+        ICalTaskProvider provider = new ICalTaskProvider(pctx, null, null, DateTimeZone.forID("GMT"));
+        provider.setTaskManager(mgr);
+        provider.setScheduleExecutor(new MockTaskQueue());
+
+        File file = folder.newFile("cal.ics");
+        write(file, event("e1", "1", "090000Z", "Event 1"), event("e2", "1", "100000Z", "Event 2"), event("e3", null, "110000Z", "Event 3"));
+
+        ICalSubscription sub = new ICalSubscription(file, provider, new ICalImporter(mgr, pctx));
+        assertEquals(3, sub.refresh());
+        assertEquals(3, sub.getEventCount());
+
+        // the hub would normally notify the provider of the new tasks
+        List<TaskContext> created = new ArrayList<>();
+        for (HobsonTask t : mgr.getCreatedTasks()) {
+            created.add(t.getContext());
+        }
+        assertEquals(3, created.size());
+        assertEquals(3, provider.onCreateTasks(created, System.currentTimeMillis()).size());
+
+        // nothing changed so nothing should be re-parsed or re-created
+        assertEquals(0, sub.refresh());
+        assertEquals(3, created.size());
+
+        // e1 gets a new sequence, e2's summary changes without one and e3 (which has no sequence) changes
+        write(file, event("e1", "2", "093000Z", "Event 1"), event("e2", "1", "100000Z", "Renamed"), event("e3", null, "113000Z", "Event 3"));
+        assertEquals(2, sub.refresh());
+        assertEquals("093000Z", sub.getCondition("e1").getPropertyValue("time"));
+        assertEquals("113000Z", sub.getCondition("e3").getPropertyValue("time"));
+        assertEquals(3, provider.getCalendar().getComponents().size());
+        int count = 0;
+        for (HobsonTask ignored : mgr.getCreatedTasks()) {
+            count++;
+        }
+        assertEquals(3, count);
+
+        // e2 is removed
+        write(file, event("e1", "2", "093000Z", "Event 1"), event("e3", null, "113000Z", "Event 3"));
+        assertEquals(0, sub.refresh());
+        assertEquals(2, sub.getEventCount());
+        assertEquals(2, provider.getCalendar().getComponents().size());
+        assertTrue(sub.isRemoved(file.getAbsolutePath() + ICalSubscription.SOURCE_SEPARATOR + "e2"));
+        assertEquals(5, sub.getReparsedCount());
+    }
+
+    @Test
+    public void testModifiedInstanceIsSkipped() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin1");
+        MockTaskManager mgr = new MockTaskManager();
+        mgr.publishConditionClass(new ScheduleConditionClass(pctx));
+        ICalTaskProvider provider = new ICalTaskProvider(pctx, null, null, DateTimeZone.forID("GMT"));
+        provider.setTaskManager(mgr);
+        provider.setScheduleExecutor(new MockTaskQueue());
+
+        // the second block moves one occurrence of e1 and shares its UID
+        File file = folder.newFile("cal.ics");
+        String override = "BEGIN:VEVENT\r\n" +
+            "UID:e1\r\n" +
+            "SEQUENCE:1\r\n" +
+            "RECURRENCE-ID:20150103T090000Z\r\n" +
+            "SUMMARY:Moved\r\n" +
+            "DTSTART:20150103T120000Z\r\n" +
+            "END:VEVENT\r\n";
+        write(file, event("e1", "1", "090000Z", "Event 1"), override);
+
+        ICalSubscription sub = new ICalSubscription(file, provider, new ICalImporter(mgr, pctx));
+        assertEquals(1, sub.refresh());
+        assertEquals(1, sub.getEventCount());
+        PropertyContainer pc = sub.getCondition("e1");
+        assertEquals("090000Z", pc.getPropertyValue("time"));
+        assertEquals("FREQ=DAILY", pc.getPropertyValue("recurrence"));
+        int count = 0;
+        for (HobsonTask ignored : mgr.getCreatedTasks()) {
+            count++;
+        }
+        assertEquals(1, count);
+
+        // the series isn't re-parsed just because the file also contains the override
+        assertEquals(0, sub.refresh());
+        assertEquals(1, sub.getReparsedCount());
+    }
+
+    @Test
+    public void testCronRoundTrip() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin1");
+        PropertyContainerClassContext pccc = PropertyContainerClassContext.create(pctx, ScheduleConditionClass.SCHEDULE_CONDITION_CLASS_ID);
+        DateTimeZone denver = DateTimeZone.forID("America/Denver");
+
+        // export a cron task from one hub's feed
+        Map<String,Object> values = new HashMap<>();
+        values.put("date", "2015-01-01");
+        values.put(ScheduleConditionClass.PROP_CRON, "30 8 * * MON-FRI");
+        values.put("timeZone", "America/Denver");
+        ScheduleFeed feed = new ScheduleFeed();
+        feed.put(new ICalTask(TaskContext.createLocal("cron1"), new PropertyContainer(pccc, values)));
+        File file = folder.newFile("feed.ics");
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(feed.export());
+        }
+
+        // and subscribe to it from another
+        MockTaskManager mgr = new MockTaskManager();
+        mgr.publishConditionClass(new ScheduleConditionClass(pctx));
+        ICalTaskProvider provider = new ICalTaskProvider(pctx, null, null, DateTimeZone.forID("GMT"));
+        provider.setTaskManager(mgr);
+        provider.setScheduleExecutor(new MockTaskQueue());
+        ICalSubscription sub = new ICalSubscription(file, provider, new ICalImporter(mgr, pctx));
+        assertEquals(1, sub.refresh());
+
+        PropertyContainer pc = sub.getCondition("cron1");
+        assertEquals("30 8 * * MON-FRI", pc.getPropertyValue(ScheduleConditionClass.PROP_CRON));
+        assertEquals("America/Denver", pc.getPropertyValue("timeZone"));
+        assertFalse(pc.hasPropertyValue("time"));
+
+        List<TaskContext> created = new ArrayList<>();
+        for (HobsonTask t : mgr.getCreatedTasks()) {
+            created.add(t.getContext());
+        }
+        assertEquals(1, provider.onCreateTasks(created, System.currentTimeMillis()).size());
+        VEvent event = (VEvent)provider.getCalendar().getComponents().get(0);
+        assertEquals("30 8 * * MON-FRI", event.getProperty(ICalTask.PROP_CRON).getValue());
+
+        // the imported task keeps the cron schedule and its first day; 2015-01-01 is a Thursday
+        ICalTask task = new ICalTask(created.get(0), pc);
+        assertTrue(task.hasCronSchedule());
+        assertEquals(DateHelper.getTime(2015, 1, 1, 8, 30, 0, denver), task.getNextCronRun(DateHelper.getTime(2014, 12, 1, 0, 0, 0, denver), null));
+        assertEquals(DateHelper.getTime(2015, 1, 5, 8, 30, 0, denver), task.getNextCronRun(DateHelper.getTime(2015, 1, 2, 9, 0, 0, denver), null));
+    }
+
+    private String event(String uid, String sequence, String time, String summary) {
+        return "BEGIN:VEVENT\r\n" +
+            "UID:" + uid + "\r\n" +
+            (sequence != null ? "SEQUENCE:" + sequence + "\r\n" : "") +
+            "SUMMARY:" + summary + "\r\n" +
+            "DTSTART:20150101T" + time + "\r\n" +
+            "RRULE:FREQ=DAILY\r\n" +
+            "END:VEVENT\r\n";
+    }
+
+    private void write(File file, String... events) throws Exception {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            w.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\n");
+            for (String e : events) {
+                w.write(e);
+            }
+            w.write("END:VCALENDAR\r\n");
+        }
+    }
+}
@@ -17,15 +17,19 @@ import com.whizzosoftware.hobson.api.task.HobsonTask;
 import com.whizzosoftware.hobson.api.task.MockTaskManager;
 import com.whizzosoftware.hobson.api.task.TaskContext;
 import com.whizzosoftware.hobson.api.task.condition.TaskConditionClass;
+import com.whizzosoftware.hobson.scheduler.ReadinessListener;
 import com.whizzosoftware.hobson.scheduler.condition.ScheduleConditionClass;
 import com.whizzosoftware.hobson.scheduler.queue.MockTaskQueue;
 import com.whizzosoftware.hobson.scheduler.util.DateHelper;
+import com.whizzosoftware.hobson.scheduler.util.SpreadHelper;
 import org.joda.time.DateTimeZone;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class ICalTaskProviderTest {
     @Test
@@ -99,6 +103,82 @@ public class ICalTaskProviderTest {
         assertNull(executor.getDelayForTask(task.getContext()));
     }
 
+    @Test
+    public void testLoadScheduleWithSpreadWindow() throws Exception {
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        MockTaskManager manager = createMockTaskManager(scc);
+
+        HobsonTask task = createScheduleTask(manager, scc.getContext(), "20130714", "170000Z", null);
+        long offset = SpreadHelper.getOffset(task.getContext().getTaskId(), 60);
+
+        MockTaskQueue executor = new MockTaskQueue();
+        ICalTaskProvider s = new ICalTaskProvider(PluginContext.createLocal("pluginId"), null, null, tz);
+        s.setTaskManager(manager);
+        s.setScheduleExecutor(executor);
+        s.setSpreadWindow(60);
+        s.onCreateTasks(Collections.singletonList(task.getContext()), DateHelper.getTime(2013, 7, 14, 0, 0, 0, tz));
+
+        // verify task was scheduled at its spread time
+        assertEquals(61200000 + offset, (long)executor.getDelayForTask(task.getContext()));
+        assertEquals(DateHelper.getTime(2013, 7, 14, 17, 0, 0, tz) + offset, task.getProperties().get(ICalTask.PROP_NEXT_RUN_TIME));
+    }
+
+    @Test
+    public void testSpreadForwardAcrossMidnight() throws Exception {
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        MockTaskManager manager = createMockTaskManager(scc);
+        HobsonTask task = createScheduleTask(manager, scc.getContext(), "20130714", "235900Z", "FREQ=DAILY");
+
+        // the spread offset comes from the task ID so find a window that pushes the 23:59 run past midnight
+        int window = findSpreadWindow(task.getContext(), true);
+        long offset = SpreadHelper.getOffset(task.getContext().getTaskId(), window);
+        long midnight = DateHelper.getTime(2013, 7, 15, 0, 0, 0, tz);
+
+        MockTaskQueue executor = new MockTaskQueue();
+        ICalTaskProvider s = new ICalTaskProvider(PluginContext.createLocal("pluginId"), null, null, tz);
+        s.setTaskManager(manager);
+        s.setScheduleExecutor(executor);
+        s.setSpreadWindow(window);
+        s.onCreateTasks(Collections.singletonList(task.getContext()), DateHelper.getTime(2013, 7, 14, 0, 0, 0, tz));
+
+        // the run isn't armed today where the day reset would cancel it; the next day's plan arms it instead
+        assertFalse(executor.isTaskScheduled(task.getContext()));
+        s.resetForNewDay(midnight);
+        assertEquals(offset - 60000, (long)executor.getDelayForTask(task.getContext()));
+    }
+
+    @Test
+    public void testSpreadBackAcrossMidnight() throws Exception {
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        MockTaskManager manager = createMockTaskManager(scc);
+        HobsonTask task = createScheduleTask(manager, scc.getContext(), "20130714", "000100Z", "FREQ=DAILY");
+
+        // find a window that pulls tomorrow's 00:01 run back before midnight
+        int window = findSpreadWindow(task.getContext(), false);
+        long offset = SpreadHelper.getOffset(task.getContext().getTaskId(), window);
+        long startOfDay = DateHelper.getTime(2013, 7, 14, 0, 0, 0, tz);
+        long midnight = DateHelper.getTime(2013, 7, 15, 0, 0, 0, tz);
+
+        MockTaskQueue executor = new MockTaskQueue();
+        ICalTaskProvider s = new ICalTaskProvider(PluginContext.createLocal("pluginId"), null, null, tz);
+        s.setTaskManager(manager);
+        s.setScheduleExecutor(executor);
+        s.setSpreadWindow(window);
+        s.onCreateTasks(Collections.singletonList(task.getContext()), startOfDay);
+
+        // tomorrow's run is armed today at its spread time
+        assertEquals(midnight + 60000 + offset - startOfDay, (long)executor.getDelayForTask(task.getContext()));
+
+        // and the day reset neither fires it again as a missed run nor loses the following one
+        executor.clearDelays();
+        s.resetForNewDay(midnight);
+        assertNull(s.getExecutionHistory(task.getContext()));
+        assertEquals(ICalTaskProvider.MS_24_HOURS + 60000 + offset, (long)executor.getDelayForTask(task.getContext()));
+    }
+
     @Test
     public void testLoadScheduleWithSingleEventWithSunsetOffset() throws Exception {
         DateTimeZone tz = DateTimeZone.forID("America/Denver");
@@ -125,6 +205,53 @@ public class ICalTaskProviderTest {
         assertEquals(67560000, (long)executor.getDelayForTask(task.getContext()));
     }
 
+    @Test
+    public void testLocationChangeReplansSolarTasksOnly() throws Exception {
+        DateTimeZone tz = DateTimeZone.forID("America/Denver");
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        MockTaskManager mgr = createMockTaskManager(scc);
+
+        mgr.createTask(HubContext.createLocal(), "Solar Task", null, createScheduleCondition(scc.getContext(), "20141018", "SS30", null), null);
+        mgr.createTask(HubContext.createLocal(), "Clock Task", null, createScheduleCondition(scc.getContext(), "20141018", "200000", null), null);
+        List<TaskContext> ctxs = new ArrayList<>();
+        for (HobsonTask t : mgr.getCreatedTasks()) {
+            ctxs.add(t.getContext());
+        }
+
+        long startOfDay = DateHelper.getTime(2014, 10, 18, 0, 0, 0, tz);
+
+        MockTaskQueue executor = new MockTaskQueue();
+        ICalTaskProvider s = new ICalTaskProvider(PluginContext.createLocal("pluginId"), 39.3722, -104.8561, tz);
+        s.setTaskManager(mgr);
+        s.setScheduleExecutor(executor);
+        s.onCreateTasks(ctxs, startOfDay);
+        assertEquals(1, s.getSolarTaskCount());
+
+        // the solar task is the one scheduled for 30 minutes after sunset
+        TaskContext solarTask = ctxs.get(0);
+        TaskContext clockTask = ctxs.get(1);
+        if (executor.getDelayForTask(solarTask) != 67560000) {
+            solarTask = ctxs.get(1);
+            clockTask = ctxs.get(0);
+        }
+        assertEquals(67560000, (long)executor.getDelayForTask(solarTask));
+        assertTrue(executor.isTaskScheduled(clockTask));
+
+        // setting the same location shouldn't re-plan anything
+        executor.clearDelays();
+        s.setLatitudeLongitude(39.3722, -104.8561);
+        assertFalse(executor.hasDelays());
+
+        // re-planning should only touch the solar task
+        s.replanSolarTasks(startOfDay);
+        assertEquals(67560000, (long)executor.getDelayForTask(solarTask));
+        assertFalse(executor.isTaskScheduled(clockTask));
+
+        // deleting the solar task should remove it from the solar index
+        s.onDeleteTask(solarTask);
+        assertEquals(0, s.getSolarTaskCount());
+    }
+
     @Test
     public void testDayReset() throws Exception {
         DateTimeZone tz = DateTimeZone.forID("GMT");
@@ -166,6 +293,36 @@ public class ICalTaskProviderTest {
         System.out.println(tasks);
     }
 
+    @Test
+    public void testDayResetSkipsTasksNotRunningToday() throws Exception {
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        MockTaskManager mgr = createMockTaskManager(scc);
+        MockTaskQueue executor = new MockTaskQueue();
+
+        // 2014-07-01 is a Tuesday
+        HobsonTask task = createScheduleTask(mgr, scc.getContext(), "20140701", "090000Z", "FREQ=WEEKLY;BYDAY=TU");
+
+        ICalTaskProvider s = new ICalTaskProvider(scc.getContext().getPluginContext(), null, null, tz);
+        s.setTaskManager(mgr);
+        s.setScheduleExecutor(executor);
+        s.onCreateTasks(Collections.singletonList(task.getContext()), DateHelper.getTime(2014, 7, 1, 10, 0, 0, tz));
+        assertFalse(executor.isTaskScheduled(task.getContext()));
+        assertEquals(DateHelper.getTime(2014, 7, 8, 9, 0, 0, tz), task.getProperties().get(ICalTask.PROP_NEXT_RUN_TIME));
+
+        // the task doesn't run on Wednesday so it's skipped but keeps its next run time
+        s.resetForNewDay(DateHelper.getTime(2014, 7, 2, 0, 0, 0, tz));
+        assertFalse(executor.isTaskScheduled(task.getContext()));
+        assertFalse((boolean)task.getProperties().get(ICalTask.PROP_SCHEDULED));
+        assertEquals(DateHelper.getTime(2014, 7, 8, 9, 0, 0, tz), task.getProperties().get(ICalTask.PROP_NEXT_RUN_TIME));
+
+        // the next Tuesday it's scheduled again
+        s.resetForNewDay(DateHelper.getTime(2014, 7, 8, 0, 0, 0, tz));
+        assertTrue(executor.isTaskScheduled(task.getContext()));
+        assertTrue((boolean)task.getProperties().get(ICalTask.PROP_SCHEDULED));
+        assertEquals(DateHelper.getTime(2014, 7, 8, 9, 0, 0, tz), task.getProperties().get(ICalTask.PROP_NEXT_RUN_TIME));
+    }
+
     @Test
     public void testDelayedDayReset() throws Exception {
         DateTimeZone tz = DateTimeZone.forID("GMT");
@@ -309,6 +466,7 @@ public class ICalTaskProviderTest {
         assertEquals(1, scheduler.getCalendar().getComponents().size());
         assertTrue(executor.hasDelays());
         assertEquals(59000, (long) executor.getDelayForTask(task.getContext()));
+        assertNotNull(executor.getCursorForTask(task.getContext()));
 
         // force task to fire
         executor.clearDelays();
@@ -319,6 +477,107 @@ public class ICalTaskProviderTest {
         assertEquals(60000, (long)executor.getDelayForTask(task.getContext()));
     }
 
+    @Test
+    public void testCoalescedUpdates() throws Exception {
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        MockTaskManager mgr = createMockTaskManager(scc);
+
+        List<PropertyContainer> conditions = createScheduleCondition(scc.getContext(), "20140701", "090000Z", "FREQ=DAILY");
+        mgr.createTask(HubContext.createLocal(), "Task 1", null, conditions, null);
+        TaskContext ctx = mgr.getCreatedTasks().iterator().next().getContext();
+
+        MockTaskQueue executor = new MockTaskQueue();
+        ICalTaskProvider s = new ICalTaskProvider(PluginContext.createLocal("pluginId"), null, null, tz);
+        s.setTaskManager(mgr);
+        s.setScheduleExecutor(executor);
+        s.setUpdateCoalesceWindow(250);
+        long start = DateHelper.getTime(2014, 7, 1, 0, 0, 0, tz);
+        s.onCreateTasks(Collections.singletonList(ctx), start + 8 * 3600000);
+        assertEquals(start + 9 * 3600000, s.getScheduledRuns(start, start + ICalTaskProvider.MS_24_HOURS, null, 1).get(0).getTime());
+
+        // a burst of updates should collapse into the first pending one
+        conditions.set(0, createScheduleCondition(scc.getContext(), "20140701", "100000Z", "FREQ=DAILY").get(0));
+        for (int i = 0; i < 5; i++) {
+            s.onUpdateTask(ctx);
+        }
+        assertEquals(4, s.getCoalescedUpdateCount());
+        assertEquals(0, s.getAppliedUpdateCount());
+
+        // and the net change should be applied once when the window elapses
+        long deadline = System.currentTimeMillis() + 5000;
+        while (s.getAppliedUpdateCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(500);
+        assertEquals(1, s.getAppliedUpdateCount());
+        assertEquals(start + 10 * 3600000, s.getScheduledRuns(start, start + ICalTaskProvider.MS_24_HOURS, null, 1).get(0).getTime());
+
+        // deleting the task should discard the pending update so the next event starts a new one
+        s.onDeleteTask(ctx);
+        s.onUpdateTask(ctx);
+        assertEquals(4, s.getCoalescedUpdateCount());
+        s.stop();
+    }
+
+    @Test
+    public void testScheduledRuns() throws Exception {
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        MockTaskManager mgr = createMockTaskManager(scc);
+
+        mgr.createTask(HubContext.createLocal(), "Task 1", null, createScheduleCondition(scc.getContext(), "20140701", "090000Z", "FREQ=DAILY"), null);
+        mgr.createTask(HubContext.createLocal(), "Task 2", null, createScheduleCondition(scc.getContext(), "20140701", "100000Z", "FREQ=HOURLY;INTERVAL=12"), null);
+        List<TaskContext> ctxs = new ArrayList<>();
+        for (HobsonTask t : mgr.getCreatedTasks()) {
+            ctxs.add(t.getContext());
+        }
+
+        MockTaskQueue executor = new MockTaskQueue();
+        ICalTaskProvider s = new ICalTaskProvider(PluginContext.createLocal("pluginId"), null, null, tz);
+        s.setTaskManager(mgr);
+        s.setScheduleExecutor(executor);
+        s.onCreateTasks(ctxs, DateHelper.getTime(2014, 7, 1, 8, 0, 0, tz));
+
+        // query the first day
+        long start = DateHelper.getTime(2014, 7, 1, 0, 0, 0, tz);
+        List<ScheduledRun> runs = s.getScheduledRuns(start, start + ICalTaskProvider.MS_24_HOURS, null, 10);
+        assertEquals(3, runs.size());
+        assertEquals(DateHelper.getTime(2014, 7, 1, 9, 0, 0, tz), runs.get(0).getTime());
+        assertEquals(DateHelper.getTime(2014, 7, 1, 10, 0, 0, tz), runs.get(1).getTime());
+        assertEquals(DateHelper.getTime(2014, 7, 1, 22, 0, 0, tz), runs.get(2).getTime());
+
+        // page through the whole horizon two runs at a time
+        int count = 0;
+        ScheduledRun last = null;
+        do {
+            runs = s.getScheduledRuns(start, Long.MAX_VALUE, last, 2);
+            for (ScheduledRun r : runs) {
+                if (last != null) {
+                    assertTrue(r.getTime() >= last.getTime());
+                }
+                last = r;
+                count++;
+            }
+        } while (runs.size() == 2);
+        assertEquals(ICalTaskProvider.INDEX_HORIZON_DAYS * 3, count);
+
+        // moving to the next day should drop the first day's runs and index a new one
+        s.resetForNewDay(DateHelper.getTime(2014, 7, 2, 0, 0, 0, tz));
+        assertEquals(0, s.getScheduledRuns(start, start + ICalTaskProvider.MS_24_HOURS, null, 10).size());
+        assertEquals(ICalTaskProvider.INDEX_HORIZON_DAYS * 3, s.getScheduledRuns(0, Long.MAX_VALUE, null, 100).size());
+
+        // deleting a task should remove its runs
+        int remaining = 0;
+        for (ScheduledRun r : s.getScheduledRuns(0, Long.MAX_VALUE, null, 100)) {
+            if (!r.getContext().equals(ctxs.get(0))) {
+                remaining++;
+            }
+        }
+        s.onDeleteTask(ctxs.get(0));
+        assertEquals(remaining, s.getScheduledRuns(0, Long.MAX_VALUE, null, 100).size());
+    }
+
     @Test
     public void testSunOffsetWithNoLatLong() throws Exception {
         DateTimeZone tz = DateTimeZone.getDefault();
@@ -338,6 +597,124 @@ public class ICalTaskProviderTest {
         assertTrue(task.getProperties().containsKey(ICalTask.PROP_ERROR));
     }
 
+    @Test
+    public void testStagedStartup() throws Exception {
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        MockTaskManager mgr = createMockTaskManager(scc);
+        HobsonTask task = createScheduleTask(mgr, scc.getContext(), "20130714", "000000Z", "FREQ=MINUTELY");
+
+        ICalTaskProvider provider = new ICalTaskProvider(scc.getContext().getPluginContext(), null, null, tz);
+        provider.setTaskManager(mgr);
+        provider.setScheduleExecutor(new MockTaskQueue());
+        provider.start();
+        try {
+            // warm-up started two minutes ago so the task has been due at least once since
+            provider.beginWarmup(System.currentTimeMillis() - 120000);
+            provider.onRegisterTasks(Collections.singletonList(task.getContext()));
+            assertTrue(provider.isWarmingUp());
+            assertEquals(0, provider.getCalendar().getComponents().size());
+
+            final int[] counts = new int[2];
+            final CountDownLatch latch = new CountDownLatch(1);
+            provider.completeWarmup(new ReadinessListener() {
+                @Override
+                public void onReady(int plannedCount, int caughtUpCount) {
+                    counts[0] = plannedCount;
+                    counts[1] = caughtUpCount;
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            assertFalse(provider.isWarmingUp());
+            assertEquals(1, counts[0]);
+            assertEquals(1, counts[1]);
+            assertEquals(1, provider.getCalendar().getComponents().size());
+            assertEquals(1, provider.getExecutionHistory(task.getContext()).getFireCount());
+            // the history records the run that was missed rather than when it was caught up
+            assertTrue(provider.getExecutionHistory(task.getContext()).getMaxLateness() >= 60000);
+        } finally {
+            provider.stop();
+        }
+    }
+
+    @Test
+    public void testReadinessWaitsForRegistration() throws Exception {
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        MockTaskManager mgr = createMockTaskManager(scc);
+        HobsonTask task = createScheduleTask(mgr, scc.getContext(), "20130714", "000000Z", "FREQ=MINUTELY");
+
+        ICalTaskProvider provider = new ICalTaskProvider(scc.getContext().getPluginContext(), null, null, tz);
+        provider.setTaskManager(mgr);
+        provider.setScheduleExecutor(new MockTaskQueue());
+        provider.start();
+        try {
+            provider.beginWarmup();
+
+            final int[] counts = new int[1];
+            final CountDownLatch latch = new CountDownLatch(1);
+            provider.completeWarmup(new ReadinessListener() {
+                @Override
+                public void onReady(int plannedCount, int caughtUpCount) {
+                    counts[0] = plannedCount;
+                    latch.countDown();
+                }
+            });
+
+            // the hub hasn't registered any tasks yet so the provider isn't ready
+            assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+            assertTrue(provider.isWarmingUp());
+
+            provider.onRegisterTasks(Collections.singletonList(task.getContext()));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertFalse(provider.isWarmingUp());
+            assertEquals(1, counts[0]);
+            assertEquals(1, provider.getCalendar().getComponents().size());
+        } finally {
+            provider.stop();
+        }
+    }
+
+    @Test
+    public void testReadinessWithNoTasks() throws Exception {
+        ScheduleConditionClass scc = new ScheduleConditionClass(PluginContext.createLocal("plugin1"));
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+        MockTaskManager mgr = createMockTaskManager(scc);
+
+        ICalTaskProvider provider = new ICalTaskProvider(scc.getContext().getPluginContext(), null, null, tz);
+        provider.setTaskManager(mgr);
+        provider.setScheduleExecutor(new MockTaskQueue());
+        provider.start();
+        try {
+            provider.beginWarmup();
+
+            // the hub has no tasks so there's no registration to wait for
+            final CountDownLatch latch = new CountDownLatch(1);
+            provider.completeWarmup(new ReadinessListener() {
+                @Override
+                public void onReady(int plannedCount, int caughtUpCount) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+            assertFalse(provider.isWarmingUp());
+        } finally {
+            provider.stop();
+        }
+    }
+
+    private int findSpreadWindow(TaskContext ctx, boolean forward) {
+        for (int window = 61; window < 100000; window++) {
+            long offset = SpreadHelper.getOffset(ctx.getTaskId(), window);
+            if (forward ? offset > 60000 : offset < -60000) {
+                return window;
+            }
+        }
+        throw new IllegalStateException("No suitable spread window for " + ctx);
+    }
+
     private MockTaskManager createMockTaskManager(TaskConditionClass pcc) {
         MockTaskManager mgr = new MockTaskManager();
         mgr.publishConditionClass(pcc);
@@ -9,17 +9,23 @@
 */
 package com.whizzosoftware.hobson.scheduler.ical;
 
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
 import com.whizzosoftware.hobson.api.hub.HubContext;
 import com.whizzosoftware.hobson.api.plugin.PluginContext;
 import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
 import com.whizzosoftware.hobson.api.property.PropertyContainerSet;
 import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
 import com.whizzosoftware.hobson.scheduler.SchedulingException;
 import com.whizzosoftware.hobson.scheduler.condition.ScheduleConditionClass;
 import com.whizzosoftware.hobson.scheduler.queue.MockTaskQueue;
+import com.whizzosoftware.hobson.scheduler.queue.OccurrenceCursor;
+import com.whizzosoftware.hobson.scheduler.queue.TaskPriority;
 import com.whizzosoftware.hobson.scheduler.util.DateHelper;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Parameter;
 import net.fortuna.ical4j.model.Recur;
 import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.property.Comment;
@@ -124,6 +130,74 @@ public class ICalTaskTest {
         assertEquals(DateHelper.getTime(2014, 8, 30, 9, 0, 0, tz), (long)periods.get(30));
     }
 
+    @Test
+    public void testOccurrenceCursor() throws Exception {
+        PluginContext ctx = PluginContext.createLocal("pluginId");
+        DateTimeZone tz = DateTimeZone.forID("GMT");
+
+        // a minutely event has a fixed period so it should produce a cursor
+        VEvent event = new VEvent(new DateTime(DateHelper.getTime(2014, 7, 1, 10, 0, 0, tz)), "task1");
+        event.getProperties().add(new UidGenerator("1").generateUid());
+        event.getProperties().add(new RRule(new Recur("FREQ=MINUTELY;INTERVAL=5;COUNT=4")));
+        ICalTask task = new ICalTask(ctx, event, null);
+        OccurrenceCursor cursor = task.createOccurrenceCursor();
+        assertNotNull(cursor);
+        assertEquals(DateHelper.getTime(2014, 7, 1, 10, 5, 0, tz), cursor.seek(DateHelper.getTime(2014, 7, 1, 10, 0, 0, tz)));
+        assertEquals(DateHelper.getTime(2014, 7, 1, 10, 10, 0, tz), cursor.next());
+        assertEquals(DateHelper.getTime(2014, 7, 1, 10, 15, 0, tz), cursor.next());
+        assertEquals(-1, cursor.next());
+        assertTrue(cursor.hasOccurrenceBetween(DateHelper.getTime(2014, 7, 1, 9, 0, 0, tz), DateHelper.getTime(2014, 7, 1, 10, 0, 1, tz)));
+        assertFalse(cursor.hasOccurrenceBetween(DateHelper.getTime(2014, 7, 1, 10, 0, 1, tz), DateHelper.getTime(2014, 7, 1, 10, 5, 0, tz)));
+
+        // the cursor should agree with the full recurrence expansion
+        cursor = task.createOccurrenceCursor();
+        List<Long> runs = task.getRunsDuringInterval(DateHelper.getTime(2014, 7, 1, 0, 0, 0, tz), DateHelper.getTime(2014, 7, 2, 0, 0, 0, tz), tz);
+        assertEquals(4, runs.size());
+        long t = cursor.seek(DateHelper.getTime(2014, 7, 1, 9, 59, 59, tz));
+        for (Long run : runs) {
+            assertEquals((long)run, t);
+            t = cursor.next();
+        }
+
+        // a weekly event doesn't have a fixed period
+        event = new VEvent(new DateTime(DateHelper.getTime(2014, 7, 1, 10, 0, 0, tz)), "task2");
+        event.getProperties().add(new UidGenerator("2").generateUid());
+        event.getProperties().add(new RRule(new Recur("FREQ=WEEKLY;BYDAY=MO,WE")));
+        assertNull(new ICalTask(ctx, event, null).createOccurrenceCursor());
+    }
+
+    @Test
+    public void testDiffAndUpdateStart() throws Exception {
+        PropertyContainerClassContext pccc = new ScheduleConditionClass(PluginContext.createLocal("plugin1")).getContext();
+        TaskContext tctx = TaskContext.createLocal("task1");
+
+        ICalTask task = new ICalTask(tctx, createCondition(pccc, "2014-07-01", "10:00:00Z", "FREQ=DAILY", null));
+        VEvent event = task.getVEvent();
+
+        assertEquals(ICalTask.Change.NONE, task.diff(createCondition(pccc, "2014-07-01", "10:00:00Z", "FREQ=DAILY", null)));
+        assertEquals(ICalTask.Change.OPTIONS, task.diff(createCondition(pccc, "2014-07-01", "10:00:00Z", "FREQ=DAILY", "high")));
+        assertEquals(ICalTask.Change.START, task.diff(createCondition(pccc, "2014-07-01", "11:00:00Z", "FREQ=DAILY", null)));
+        assertEquals(ICalTask.Change.RULE, task.diff(createCondition(pccc, "2014-07-01", "10:00:00Z", "FREQ=WEEKLY", null)));
+        assertEquals(ICalTask.Change.RULE, task.diff(createCondition(pccc, "2014-07-01", "10:00:00Z", "never", null)));
+
+        // a start time change should update the existing event in place
+        PropertyContainer pc = createCondition(pccc, "2014-07-01", "SS+30", "FREQ=DAILY", "high");
+        task.updateStart(pc);
+        assertSame(event, task.getVEvent());
+        assertEquals("20140701T000000", event.getProperties().getProperty("DTSTART").getValue());
+        assertEquals("SS+30", event.getProperties().getProperty(ICalTask.PROP_SUN_OFFSET).getValue());
+        assertEquals("FREQ=DAILY", event.getProperties().getProperty("RRULE").getValue());
+        assertEquals(1, event.getProperties().getProperties("DTSTART").size());
+        assertEquals(TaskPriority.HIGH, task.getPriority());
+        assertEquals(ICalTask.Change.NONE, task.diff(pc));
+
+        // and back to a fixed time
+        task.updateStart(createCondition(pccc, "2014-07-01", "10:00:00Z", "FREQ=DAILY", null));
+        assertEquals("20140701T100000Z", event.getProperties().getProperty("DTSTART").getValue());
+        assertNull(event.getProperties().getProperty(ICalTask.PROP_SUN_OFFSET));
+        assertEquals(TaskPriority.NORMAL, task.getPriority());
+    }
+
     @Test
     public void testJSONRuleConstruction() throws Exception {
         PluginContext pctx = PluginContext.createLocal("pluginId");
@@ -296,4 +370,173 @@ public class ICalTaskTest {
 //
 //        assertEquals("", new ICalTask(tm, TaskContext.create(pctx, "tid"), "Test", new TaskConditionMetadata(TaskConditionClassContext.create(pctx, "schedule"), props), null, as.getId()).createDescription());
     }
+
+    @Test
+    public void testTimeZone() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        PropertyContainerClassContext pccc = PropertyContainerClassContext.create(pctx, "schedule");
+        TaskContext tctx = TaskContext.create(pctx.getHubContext(), "task1");
+        DateTimeZone tokyo = DateTimeZone.forID("Asia/Tokyo");
+        DateTimeZone denver = DateTimeZone.forID("America/Denver");
+
+        PropertyContainer pc = createZonedCondition(pccc, "2014-07-01", "09:00:00", "FREQ=DAILY", "Asia/Tokyo");
+        ICalTask task = new ICalTask(tctx, pc);
+        assertEquals(tokyo, task.getTimeZone(denver));
+        assertEquals("Asia/Tokyo", task.getVEvent().getStartDate().getParameter(Parameter.TZID).getValue());
+
+        // the run should be at 9am Tokyo time regardless of the zone passed in
+        long start = DateHelper.getTime(2014, 7, 2, 0, 0, 0, tokyo);
+        List<Long> runs = task.getRunsDuringInterval(start, start + 86400000L, denver);
+        assertEquals(1, runs.size());
+        assertEquals(DateHelper.getTime(2014, 7, 2, 9, 0, 0, tokyo), (long)runs.get(0));
+
+        // changing the zone is a start change
+        PropertyContainer pc2 = createZonedCondition(pccc, "2014-07-01", "09:00:00", "FREQ=DAILY", "America/Denver");
+        assertEquals(ICalTask.Change.START, task.diff(pc2));
+        task.updateStart(pc2);
+        assertEquals(ICalTask.Change.NONE, task.diff(pc2));
+        runs = task.getRunsDuringInterval(start, start + 86400000L, tokyo);
+        assertEquals(1, runs.size());
+        assertEquals(DateHelper.getTime(2014, 7, 1, 9, 0, 0, denver), (long)runs.get(0));
+
+        // an unpinned task uses the zone passed in
+        task.updateStart(createCondition(pccc, "2014-07-01", "09:00:00", "FREQ=DAILY", null));
+        assertEquals(denver, task.getTimeZone(denver));
+    }
+
+    @Test
+    public void testCronSchedule() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        PropertyContainerClassContext pccc = PropertyContainerClassContext.create(pctx, "schedule");
+        TaskContext tctx = TaskContext.create(pctx.getHubContext(), "task1");
+        DateTimeZone denver = DateTimeZone.forID("America/Denver");
+
+        PropertyContainer pc = createCronCondition(pccc, "2014-07-01", "30 8,17 * * MON-FRI", "America/Denver");
+        ICalTask task = new ICalTask(tctx, pc);
+        assertTrue(task.hasCronSchedule());
+        assertNull(task.createOccurrenceCursor());
+        assertEquals("30 8,17 * * MON-FRI", task.getVEvent().getProperty(ICalTask.PROP_CRON).getValue());
+
+        // the cron schedule replaces the recurrence rule; 2014-07-04 is a Friday
+        long start = DateHelper.getTime(2014, 7, 4, 0, 0, 0, denver);
+        List<Long> runs = task.getRunsDuringInterval(start, start + 3 * 86400000L, denver);
+        assertEquals(2, runs.size());
+        assertEquals(DateHelper.getTime(2014, 7, 4, 8, 30, 0, denver), (long)runs.get(0));
+        assertEquals(DateHelper.getTime(2014, 7, 4, 17, 30, 0, denver), (long)runs.get(1));
+        assertEquals(DateHelper.getTime(2014, 7, 7, 8, 30, 0, denver), task.getNextCronRun(runs.get(1), denver));
+
+        // nothing runs before the start date
+        assertEquals(DateHelper.getTime(2014, 7, 1, 8, 30, 0, denver), task.getNextCronRun(DateHelper.getTime(2014, 6, 1, 0, 0, 0, denver), denver));
+
+        // changing the expression is a rule change
+        assertEquals(ICalTask.Change.NONE, task.diff(pc));
+        assertEquals(ICalTask.Change.RULE, task.diff(createCronCondition(pccc, "2014-07-01", "0 12 * * *", "America/Denver")));
+        assertEquals(ICalTask.Change.RULE, task.diff(createZonedCondition(pccc, "2014-07-01", "09:00:00", "FREQ=DAILY", "America/Denver")));
+
+        try {
+            new ICalTask(tctx, createCronCondition(pccc, "2014-07-01", "0 25 * * *", "America/Denver"));
+            fail("Should have thrown exception");
+        } catch (HobsonRuntimeException ignored) {}
+    }
+
+    @Test
+    public void testCronScheduleStartsOnStartDayInTaskZone() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        PropertyContainerClassContext pccc = PropertyContainerClassContext.create(pctx, "schedule");
+        TaskContext tctx = TaskContext.create(pctx.getHubContext(), "task1");
+        DateTimeZone auckland = DateTimeZone.forID("Pacific/Auckland");
+
+        // an unpinned cron task has a floating start and needs no start time
+        Map<String,Object> values = new HashMap<>();
+        values.put("date", "2015-01-05");
+        values.put("cron", "0 6 * * *");
+        ICalTask task = new ICalTask(tctx, new PropertyContainer(pccc, values));
+        assertTrue(task.hasCronSchedule());
+
+        // the first run is on the start date in the zone the task runs in, whatever zone the JVM is in
+        assertEquals(DateHelper.getTime(2015, 1, 5, 6, 0, 0, auckland), task.getNextCronRun(DateHelper.getTime(2015, 1, 1, 0, 0, 0, auckland), auckland));
+        List<Long> runs = task.getRunsDuringInterval(DateHelper.getTime(2015, 1, 4, 0, 0, 0, auckland), DateHelper.getTime(2015, 1, 6, 0, 0, 0, auckland), auckland);
+        assertEquals(1, runs.size());
+        assertEquals(DateHelper.getTime(2015, 1, 5, 6, 0, 0, auckland), (long)runs.get(0));
+    }
+
+    @Test
+    public void testExcludedDates() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        PropertyContainerClassContext pccc = PropertyContainerClassContext.create(pctx, "schedule");
+        TaskContext tctx = TaskContext.create(pctx.getHubContext(), "task1");
+        DateTimeZone denver = DateTimeZone.forID("America/Denver");
+
+        // a date on its own excludes that day's occurrence at the start time
+        Map<String,Object> values = new HashMap<>();
+        values.put("date", "2014-07-01");
+        values.put("time", "09:00:00");
+        values.put("recurrence", "FREQ=DAILY");
+        values.put("timeZone", "America/Denver");
+        values.put(ScheduleConditionClass.PROP_EXCLUDED_DATES, "20140702,20140704T090000");
+        ICalTask task = new ICalTask(tctx, new PropertyContainer(pccc, values));
+        assertNull(task.createOccurrenceCursor());
+        List<Long> runs = task.getRunsDuringInterval(DateHelper.getTime(2014, 7, 1, 0, 0, 0, denver), DateHelper.getTime(2014, 7, 6, 0, 0, 0, denver), denver);
+        assertEquals(3, runs.size());
+        assertEquals(DateHelper.getTime(2014, 7, 1, 9, 0, 0, denver), (long)runs.get(0));
+        assertEquals(DateHelper.getTime(2014, 7, 3, 9, 0, 0, denver), (long)runs.get(1));
+        assertEquals(DateHelper.getTime(2014, 7, 5, 9, 0, 0, denver), (long)runs.get(2));
+
+        // changing the excluded dates updates the task in place
+        assertEquals(ICalTask.Change.START, task.diff(createZonedCondition(pccc, "2014-07-01", "09:00:00", "FREQ=DAILY", "America/Denver")));
+    }
+
+    @Test
+    public void testMayRunOnWithSpread() throws Exception {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        PropertyContainerClassContext pccc = PropertyContainerClassContext.create(pctx, "schedule");
+        TaskContext tctx = TaskContext.create(pctx.getHubContext(), "task1");
+        DateTimeZone utc = DateTimeZone.UTC;
+
+        // a weekly Sunday run just before midnight that's spread forward actually runs on Monday
+        ICalTask task = new ICalTask(tctx, createZonedCondition(pccc, "2014-07-06", "23:59:50", "FREQ=WEEKLY", "UTC"));
+        long monday = DateHelper.getTime(2014, 7, 7, 0, 0, 0, utc);
+        long tuesday = DateHelper.getTime(2014, 7, 8, 0, 0, 0, utc);
+        assertFalse(task.mayRunOn(monday, utc, 0));
+        assertTrue(task.mayRunOn(monday, utc, 30000));
+        assertFalse(task.mayRunOn(tuesday, utc, 30000));
+        assertTrue(task.mayRunOn(DateHelper.getTime(2014, 7, 13, 0, 0, 0, utc), utc, 30000));
+
+        // and a Monday run just after midnight that's spread back actually runs on Sunday
+        task = new ICalTask(tctx, createZonedCondition(pccc, "2014-07-07", "00:00:10", "FREQ=WEEKLY", "UTC"));
+        long sunday = DateHelper.getTime(2014, 7, 13, 0, 0, 0, utc);
+        assertFalse(task.mayRunOn(sunday, utc, 0));
+        assertTrue(task.mayRunOn(sunday, utc, -30000));
+        assertTrue(task.mayRunOn(DateHelper.getTime(2014, 7, 14, 0, 0, 0, utc), utc, -30000));
+    }
+
+    private PropertyContainer createCronCondition(PropertyContainerClassContext pccc, String date, String cron, String timeZone) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("date", date);
+        values.put("time", "09:00:00");
+        values.put("recurrence", "FREQ=DAILY");
+        values.put("cron", cron);
+        values.put("timeZone", timeZone);
+        return new PropertyContainer(pccc, values);
+    }
+
+    private PropertyContainer createZonedCondition(PropertyContainerClassContext pccc, String date, String time, String recurrence, String timeZone) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("date", date);
+        values.put("time", time);
+        values.put("recurrence", recurrence);
+        values.put("timeZone", timeZone);
+        return new PropertyContainer(pccc, values);
+    }
+
+    private PropertyContainer createCondition(PropertyContainerClassContext pccc, String date, String time, String recurrence, String priority) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("date", date);
+        values.put("time", time);
+        values.put("recurrence", recurrence);
+        if (priority != null) {
+            values.put("priority", priority);
+        }
+        return new PropertyContainer(pccc, values);
+    }
 }
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OccurrenceIndexTest {
+    private static final long MINUTE = 60000;
+    private static final long DAY = 24 * 60 * MINUTE;
+
+    @Test
+    public void testTruncation() {
+        OccurrenceIndex index = new OccurrenceIndex();
+        index.advance(0, 7 * DAY);
+
+        TaskContext ctx = TaskContext.createLocal("minutely");
+        assertFalse(index.put(ctx, createRuns(0, MINUTE, 7 * DAY)));
+        assertEquals(OccurrenceIndex.MAX_RUNS_PER_TASK, index.size());
+        assertEquals(1, index.getTruncatedTaskCount());
+
+        // replacing the runs with ones that fit clears the truncation
+        assertTrue(index.put(ctx, Arrays.asList(MINUTE, 2 * MINUTE)));
+        assertEquals(0, index.getTruncatedTaskCount());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testGeneratedRuns() {
+        OccurrenceIndex index = new OccurrenceIndex();
+        index.advance(0, 7 * DAY);
+
+        // a task that runs every minute for the whole week, well over the materialized limit
+        TaskContext minutely = TaskContext.createLocal("a");
+        index.putGenerator(minutely, new RunGenerator() {
+            @Override
+            public long getNextRun(long after) {
+                return (after < 0) ? 0 : (after / MINUTE + 1) * MINUTE;
+            }
+        });
+        TaskContext daily = TaskContext.createLocal("b");
+        assertTrue(index.put(daily, createRuns(DAY, DAY, 7 * DAY)));
+        assertTrue(index.isGenerated(minutely));
+        assertEquals(1, index.getGeneratedTaskCount());
+        assertEquals(0, index.getTruncatedTaskCount());
+
+        // the last day of the horizon still has all its runs
+        List<ScheduledRun> runs = index.getRuns(6 * DAY, 7 * DAY, null, 2000);
+        assertEquals(24 * 60 + 1, runs.size());
+        assertEquals(6 * DAY, runs.get(0).getTime());
+        assertEquals(minutely, runs.get(0).getContext());
+        assertEquals(6 * DAY, runs.get(1).getTime());
+        assertEquals(daily, runs.get(1).getContext());
+        assertEquals(6 * DAY + MINUTE, runs.get(2).getTime());
+        assertEquals(7 * DAY - MINUTE, runs.get(runs.size() - 1).getTime());
+
+        // paging picks up after the last run, including a tie broken by task ID
+        runs = index.getRuns(DAY, 2 * DAY, null, 1);
+        assertEquals(minutely, runs.get(0).getContext());
+        runs = index.getRuns(DAY, 2 * DAY, runs.get(0), 2);
+        assertEquals(2, runs.size());
+        assertEquals(daily, runs.get(0).getContext());
+        assertEquals(DAY, runs.get(0).getTime());
+        assertEquals(minutely, runs.get(1).getContext());
+        assertEquals(DAY + MINUTE, runs.get(1).getTime());
+
+        // generated runs stop at the end of the horizon
+        assertEquals(0, index.getRuns(7 * DAY, 8 * DAY, null, 10).size());
+
+        // appending to a generated task does nothing and removing it removes its runs
+        assertTrue(index.append(minutely, Arrays.asList(7 * DAY)));
+        index.remove(minutely);
+        assertFalse(index.isGenerated(minutely));
+        assertEquals(1, index.getRuns(6 * DAY, 7 * DAY, null, 2000).size());
+    }
+
+    private List<Long> createRuns(long first, long period, long end) {
+        List<Long> runs = new ArrayList<>();
+        for (long t = first; t < end; t += period) {
+            runs.add(t);
+        }
+        return runs;
+    }
+}
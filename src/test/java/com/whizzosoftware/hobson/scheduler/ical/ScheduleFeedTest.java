@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.ical;
+
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.scheduler.condition.ScheduleConditionClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ScheduleFeedTest {
+    @Test
+    public void testExportAndDeltas() throws Exception {
+        ScheduleFeed feed = new ScheduleFeed();
+        ICalTask t1 = createTask("task1", "090000Z");
+        ICalTask t2 = createTask("task2", "100000Z");
+        feed.put(t1);
+        feed.put(t2);
+        assertEquals(2, feed.getVersion());
+        assertEquals(1, feed.getVersion(t1.getContext()));
+
+        String etag = feed.getETag();
+        String s = new String(feed.export(), "UTF-8");
+        assertTrue(s.startsWith("BEGIN:VCALENDAR\r\n"));
+        assertTrue(s.contains("UID:task1"));
+        assertTrue(s.contains("UID:task2"));
+        assertTrue(s.contains("SEQUENCE:2"));
+        assertEquals(2, feed.getSerializationCount());
+
+        // polling an unchanged feed serializes nothing
+        assertSame(feed.export(), feed.export());
+        assertTrue(feed.getChangesSince(2).isEmpty());
+        assertTrue(feed.isCurrent(etag));
+        assertEquals(2, feed.getSerializationCount());
+
+        // change one task and remove the other
+        t1.updateStart(createCondition("093000Z"));
+        feed.put(t1);
+        feed.remove(t2.getContext());
+        assertFalse(feed.isCurrent(etag));
+
+        ScheduleFeed.Delta d = feed.getChangesSince(2);
+        assertFalse(d.isFull());
+        assertEquals(4, d.getToVersion());
+        assertEquals(1, d.getChangedCount());
+        assertEquals(1, d.getRemovedCount());
+        s = new String(d.toBytes(), "UTF-8");
+        assertTrue(s.contains("UID:task1"));
+        assertTrue(s.contains("SEQUENCE:3"));
+        assertTrue(s.contains("T093000Z"));
+        assertTrue(s.contains("UID:task2\r\nSEQUENCE:4\r\nSTATUS:CANCELLED"));
+        assertEquals(3, feed.getSerializationCount());
+
+        // only the change after version 3 is returned
+        d = feed.getChangesSince(3);
+        assertEquals(0, d.getChangedCount());
+        assertEquals(1, d.getRemovedCount());
+
+        // a version from the future requires a full export
+        assertTrue(feed.getChangesSince(100).isFull());
+        assertFalse(new String(feed.export(), "UTF-8").contains("UID:task2"));
+    }
+
+    @Test
+    public void testTombstonePruning() throws Exception {
+        ScheduleFeed feed = new ScheduleFeed();
+        for (int i = 0; i <= ScheduleFeed.MAX_TOMBSTONES; i++) {
+            ICalTask t = createTask("task" + i, "090000Z");
+            feed.put(t);
+            feed.remove(t.getContext());
+        }
+        assertTrue(feed.getChangesSince(0).isFull());
+        assertFalse(feed.getChangesSince(feed.getVersion() - 1).isFull());
+    }
+
+    private ICalTask createTask(String id, String time) {
+        return new ICalTask(TaskContext.createLocal(id), createCondition(time));
+    }
+
+    private PropertyContainer createCondition(String time) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("date", "20150101");
+        values.put("time", time);
+        values.put("recurrence", "FREQ=DAILY");
+        return new PropertyContainer(PropertyContainerClassContext.create(PluginContext.createLocal("plugin1"), ScheduleConditionClass.SCHEDULE_CONDITION_CLASS_ID), values);
+    }
+}
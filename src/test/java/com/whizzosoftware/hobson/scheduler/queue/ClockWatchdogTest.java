@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClockWatchdogTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testJumpsAndPauses() {
+        final List<Long> jumps = new ArrayList<>();
+        ClockWatchdog w = new ClockWatchdog(new ClockJumpListener() {
+            @Override
+            public void onClockJump(long drift) {
+                jumps.add(drift);
+            }
+        }, 1000, 250);
+
+        // first check only establishes a baseline
+        long wall = 1000000000L;
+        long nano = 5000L * MS;
+        assertEquals(0, w.check(wall, nano));
+
+        // normal tick with a little jitter
+        wall += 1010;
+        nano += 1005 * MS;
+        assertEquals(0, w.check(wall, nano));
+
+        // NTP steps the wall clock back 5 seconds
+        wall += 1000 - 5000;
+        nano += 1000 * MS;
+        assertEquals(-5000, w.check(wall, nano));
+
+        // VM suspended for a minute; the wall clock moves but the monotonic clock doesn't
+        wall += 61000;
+        nano += 1000 * MS;
+        assertEquals(60000, w.check(wall, nano));
+
+        // GC pause of 3 seconds; both clocks move together
+        wall += 4000;
+        nano += 4000 * MS;
+        assertEquals(0, w.check(wall, nano));
+
+        assertEquals(2, jumps.size());
+        assertEquals(-5000, (long)jumps.get(0));
+        assertEquals(60000, (long)jumps.get(1));
+        assertEquals(2, w.getJumpCount());
+        assertEquals(65000, w.getTotalDrift());
+        assertEquals(60000, w.getMaxDrift());
+        assertEquals(1, w.getPauseCount());
+        assertEquals(3000, w.getMaxPause());
+    }
+
+    @Test
+    public void testQueueNotifiesListenerOfJump() {
+        final List<Long> jumps = new ArrayList<>();
+        LocalTaskQueue q = new LocalTaskQueue(new MockTaskManager(), 1);
+        q.setListener(new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+                jumps.add(drift);
+            }
+        });
+
+        // the queue re-arms its own tasks and then passes the jump on so the listener can re-plan its own timers
+        long wall = System.currentTimeMillis();
+        long nano = System.nanoTime();
+        q.getWatchdog().check(wall, nano);
+        q.getWatchdog().check(wall + 1000 + 3600000, nano + 1000 * MS);
+        assertEquals(1, jumps.size());
+        assertEquals(3600000, (long)jumps.get(0));
+        assertEquals(1, q.getWatchdog().getJumpCount());
+    }
+}
@@ -12,9 +12,12 @@ import com.whizzosoftware.hobson.scheduler.TaskNotFoundException;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class MockTaskQueue implements TaskQueue {
     private Map<TaskContext,Long> delayMap = new HashMap<>();
+    private Map<TaskContext,OccurrenceCursor> cursorMap = new HashMap<>();
+    private Map<TaskContext,TaskPriority> priorityMap = new HashMap<>();
 
     @Override
     public void start() {
@@ -26,7 +29,22 @@ public class MockTaskQueue implements TaskQueue {
 
     @Override
     public void schedule(TaskContext taskContext, long delayInMs) {
+        schedule(taskContext, delayInMs, null, TaskPriority.NORMAL);
+    }
+
+    @Override
+    public void schedule(TaskContext taskContext, long delayInMs, OccurrenceCursor cursor, TaskPriority priority) {
         delayMap.put(taskContext, delayInMs);
+        priorityMap.put(taskContext, priority);
+        if (cursor != null) {
+            cursorMap.put(taskContext, cursor);
+        } else {
+            cursorMap.remove(taskContext);
+        }
+    }
+
+    @Override
+    public void setListener(TaskQueueListener listener) {
     }
 
     @Override
@@ -37,22 +55,44 @@ public class MockTaskQueue implements TaskQueue {
     @Override
     public void cancel(TaskContext context) throws TaskNotFoundException {
         delayMap.remove(context);
+        cursorMap.remove(context);
     }
 
     @Override
     public void cancelAll() {
         delayMap.clear();
+        cursorMap.clear();
+    }
+
+    @Override
+    public void migrateTo(TaskQueue target, ScheduledExecutorService executor, Runnable onComplete) {
+        for (TaskContext ctx : delayMap.keySet()) {
+            target.schedule(ctx, delayMap.get(ctx), cursorMap.get(ctx), priorityMap.get(ctx));
+        }
+        cancelAll();
+        if (onComplete != null) {
+            onComplete.run();
+        }
     }
 
     public Long getDelayForTask(TaskContext context) {
         return delayMap.get(context);
     }
 
+    public TaskPriority getPriorityForTask(TaskContext context) {
+        return priorityMap.get(context);
+    }
+
+    public OccurrenceCursor getCursorForTask(TaskContext context) {
+        return cursorMap.get(context);
+    }
+
     public boolean hasDelays() {
         return (delayMap.size() > 0);
     }
 
     public void clearDelays() {
         delayMap.clear();
+        cursorMap.clear();
     }
 }
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import io.netty.util.HashedWheelTimer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NettyTaskQueueTest {
+    @Test
+    public void testFireCancelAndRearm() throws Exception {
+        final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(4);
+
+        HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS);
+        NettyTaskQueue q = new NettyTaskQueue(new MockTaskManager(), timer);
+        q.setListener(new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                fired.add(taskContext.getTaskId());
+                latch.countDown();
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        });
+        q.start();
+
+        try {
+            long now = System.currentTimeMillis();
+            q.schedule(TaskContext.createLocal("once"), 20);
+            q.schedule(TaskContext.createLocal("cancelled"), 30);
+            q.cancel(TaskContext.createLocal("cancelled"));
+            OccurrenceCursor cursor = new OccurrenceCursor(now + 40, 50, now + 140);
+            assertEquals(now + 40, cursor.seek(now));
+            q.schedule(TaskContext.createLocal("repeat"), 40, cursor, TaskPriority.NORMAL);
+            assertTrue(q.isTaskScheduled(TaskContext.createLocal("repeat")));
+            assertFalse(q.isTaskScheduled(TaskContext.createLocal("cancelled")));
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(4, fired.size());
+            assertEquals("once", fired.get(0));
+            assertEquals("repeat", fired.get(1));
+            assertEquals("repeat", fired.get(2));
+            assertEquals("repeat", fired.get(3));
+            assertFalse(fired.contains("cancelled"));
+            assertFalse(q.isTaskScheduled(TaskContext.createLocal("repeat")));
+        } finally {
+            q.stop();
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testMigrateFromLocalQueue() throws Exception {
+        final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        TaskQueueListener listener = new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                fired.add(taskContext.getTaskId());
+                latch.countDown();
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        };
+
+        MockTaskManager tm = new MockTaskManager();
+        LocalTaskQueue local = new LocalTaskQueue(tm);
+        local.setListener(listener);
+        local.start();
+        NettyTaskQueue wheel = new NettyTaskQueue(tm, 5, 2);
+        wheel.setListener(listener);
+        wheel.start();
+        ScheduledExecutorService housekeeping = new ScheduledThreadPoolExecutor(1);
+        final CountDownLatch drained = new CountDownLatch(1);
+
+        try {
+            long now = System.currentTimeMillis();
+            local.schedule(TaskContext.createLocal("once"), 100);
+            OccurrenceCursor cursor = new OccurrenceCursor(now + 150, 50, now + 200);
+            assertEquals(now + 150, cursor.seek(now));
+            local.schedule(TaskContext.createLocal("repeat"), 150, cursor, TaskPriority.NORMAL);
+
+            local.migrateTo(wheel, housekeeping, new Runnable() {
+                @Override
+                public void run() {
+                    drained.countDown();
+                }
+            });
+            assertEquals(0, local.size());
+            assertTrue(wheel.isTaskScheduled(TaskContext.createLocal("once")));
+            assertTrue(wheel.isTaskScheduled(TaskContext.createLocal("repeat")));
+
+            // schedules made against the old queue are forwarded
+            local.schedule(TaskContext.createLocal("late"), 10);
+            assertTrue(wheel.isTaskScheduled(TaskContext.createLocal("late")));
+            local.cancel(TaskContext.createLocal("late"));
+            assertFalse(wheel.isTaskScheduled(TaskContext.createLocal("late")));
+
+            assertTrue(drained.await(5, TimeUnit.SECONDS));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(3, fired.size());
+            assertEquals("once", fired.get(0));
+            assertEquals("repeat", fired.get(1));
+            assertEquals("repeat", fired.get(2));
+        } finally {
+            local.stop();
+            wheel.stop();
+            housekeeping.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMigrationDrainsInBackground() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TaskQueueListener listener = new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                if ("slow".equals(taskContext.getTaskId())) {
+                    started.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        };
+
+        MockTaskManager tm = new MockTaskManager();
+        LocalTaskQueue local = new LocalTaskQueue(tm);
+        local.setListener(listener);
+        local.start();
+        NettyTaskQueue wheel = new NettyTaskQueue(tm, 5, 1);
+        wheel.setListener(listener);
+        wheel.start();
+        ScheduledExecutorService housekeeping = new ScheduledThreadPoolExecutor(1);
+        final CountDownLatch drained = new CountDownLatch(1);
+
+        try {
+            local.schedule(TaskContext.createLocal("slow"), 0);
+            local.schedule(TaskContext.createLocal("later"), 60000);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // migration returns straight away even though the old queue is still firing a task
+            long start = System.currentTimeMillis();
+            local.migrateTo(wheel, housekeeping, new Runnable() {
+                @Override
+                public void run() {
+                    drained.countDown();
+                }
+            });
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertTrue(wheel.isTaskScheduled(TaskContext.createLocal("later")));
+            assertFalse(drained.await(100, TimeUnit.MILLISECONDS));
+
+            release.countDown();
+            assertTrue(drained.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            local.stop();
+            wheel.stop();
+            housekeeping.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPrecisionModeRequiresOwnedTimer() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS);
+        NettyTaskQueue shared = new NettyTaskQueue(new MockTaskManager(), timer);
+        try {
+            shared.setPrecisionMode(true);
+            fail("Should have thrown exception");
+        } catch (IllegalStateException ignored) {
+        } finally {
+            timer.stop();
+        }
+        assertNull(shared.getPrecisionTimer());
+
+        // disabling is always allowed
+        shared.setPrecisionMode(false);
+
+        NettyTaskQueue owned = new NettyTaskQueue(new MockTaskManager(), 1);
+        try {
+            owned.setPrecisionMode(true);
+            assertNotNull(owned.getPrecisionTimer());
+        } finally {
+            owned.stop();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the fire precision and CPU cost of LocalTaskQueue with and without precision mode. This is not run as
+ * part of the test suite; run it directly with an optional task count argument.
+ */
+public class PrecisionModeBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        run(false, count);
+        run(true, count);
+    }
+
+    private static void run(boolean precision, int count) throws Exception {
+        final Map<TaskContext,Long> deadlines = new ConcurrentHashMap<>();
+        final long[] errors = new long[count];
+        final AtomicInteger index = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(count);
+
+        LocalTaskQueue q = new LocalTaskQueue(new MockTaskManager());
+        q.setPrecisionMode(precision);
+        q.setListener(new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                long error = System.nanoTime() - deadlines.get(taskContext);
+                errors[index.getAndIncrement()] = error;
+                latch.countDown();
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        });
+        q.start();
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long cpuStart = getTotalCpuTime(mx);
+
+        // spread the tasks 25ms apart so each one is woken up on its own
+        long wallNow = System.currentTimeMillis();
+        long nanoNow = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            TaskContext ctx = TaskContext.createLocal("task" + i);
+            long delay = 100 + i * 25;
+            deadlines.put(ctx, nanoNow + delay * 1000000L);
+            q.schedule(ctx, delay - (System.currentTimeMillis() - wallNow));
+        }
+
+        latch.await(count * 25 + 10000, TimeUnit.MILLISECONDS);
+        long cpu = getTotalCpuTime(mx) - cpuStart;
+        q.stop();
+
+        Arrays.sort(errors);
+        System.out.println((precision ? "Precision mode" : "Normal mode") + " (" + count + " tasks)");
+        System.out.println("  median error: " + errors[count / 2] / 1000 + "us");
+        System.out.println("  p99 error:    " + errors[(int)(count * 0.99)] / 1000 + "us");
+        System.out.println("  max error:    " + errors[count - 1] / 1000 + "us");
+        System.out.println("  CPU time:     " + cpu / 1000000 + "ms");
+        if (q.getPrecisionTimer() != null) {
+            System.out.println("  timer:        " + q.getPrecisionTimer());
+        }
+    }
+
+    private static long getTotalCpuTime(ThreadMXBean mx) {
+        long total = 0;
+        for (long id : mx.getAllThreadIds()) {
+            long t = mx.getThreadCpuTime(id);
+            if (t > 0) {
+                total += t;
+            }
+        }
+        return total;
+    }
+}
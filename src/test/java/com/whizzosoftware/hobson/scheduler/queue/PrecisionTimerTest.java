@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PrecisionTimerTest {
+    @Test
+    public void testCalibrateAndAwait() {
+        PrecisionTimer pt = new PrecisionTimer();
+        long threshold = pt.calibrate();
+        assertTrue(threshold >= PrecisionTimer.MIN_SPIN_NS);
+        assertTrue(threshold <= PrecisionTimer.MAX_SPIN_NS);
+
+        for (int i = 0; i < 3; i++) {
+            long time = System.currentTimeMillis() + 30;
+            pt.awaitUntil(time);
+            assertTrue(System.currentTimeMillis() >= time - 1);
+        }
+        assertEquals(3, pt.getCount());
+        assertTrue(pt.getSpinTime() > 0);
+    }
+
+    @Test
+    public void testAwaitPastDeadline() {
+        PrecisionTimer pt = new PrecisionTimer();
+        long start = System.currentTimeMillis();
+        pt.awaitUntil(start - 1000);
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertEquals(1, pt.getCount());
+    }
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueueDiagnosticsTest {
+    @Test
+    public void testNextFires() throws Exception {
+        LocalTaskQueue q = new LocalTaskQueue(new MockTaskManager(), 2);
+        q.start();
+        try {
+            for (int i = 20; i > 0; i--) {
+                q.schedule(TaskContext.createLocal("task" + i), i * 60000L);
+            }
+            QueueDiagnostics d = q.getDiagnostics(3);
+            assertEquals("LocalTaskQueue", d.getQueueType());
+            assertEquals(20, d.getSize());
+            assertFalse(d.isMigrating());
+            assertEquals(0, d.getBacklog());
+
+            List<QueueDiagnostics.ScheduledFire> fires = d.getNextFires();
+            assertEquals(3, fires.size());
+            assertEquals("task1", fires.get(0).getContext().getTaskId());
+            assertEquals("task2", fires.get(1).getContext().getTaskId());
+            assertEquals("task3", fires.get(2).getContext().getTaskId());
+            assertTrue(fires.get(0).getRemainingDelay() > 0 && fires.get(0).getRemainingDelay() <= 60000);
+            assertFalse(fires.get(0).isRecurring());
+
+            assertEquals(2, d.getThreads().size());
+            assertEquals(0, d.getThreads().get(0).getUtilization(), 0.1);
+            // the queued tasks plus the clock watchdog
+            assertEquals(21, d.getTimer().getQueuedCount());
+            assertTrue(d.getEstimatedMemory().get("queuedTasks") > 0);
+
+            assertTrue(q.getDiagnostics(0).getNextFires().isEmpty());
+            assertEquals(20, q.getDiagnostics(0).getSize());
+        } finally {
+            q.stop();
+        }
+    }
+
+    @Test
+    public void testUtilizationSince() {
+        QueueDiagnostics.ThreadSample s1 = new QueueDiagnostics.ThreadSample("t", 100, 1000);
+        QueueDiagnostics.ThreadSample s2 = new QueueDiagnostics.ThreadSample("t", 600, 2000);
+        assertEquals(0.3, s2.getUtilization(), 0.001);
+        assertEquals(0.5, s2.getUtilizationSince(s1), 0.001);
+        assertEquals(0, s1.getUtilizationSince(s1), 0.001);
+    }
+}
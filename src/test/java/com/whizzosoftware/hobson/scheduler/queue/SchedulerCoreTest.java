@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SchedulerCoreTest {
+    @Test
+    public void testSlowTenantDoesNotBlockOthers() throws Exception {
+        SchedulerCore core = new SchedulerCore(2);
+        core.start();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch fastFired = new CountDownLatch(20);
+
+        SharedTaskQueue slow = new SharedTaskQueue(core, new MockTaskManager());
+        slow.setListener(new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                slowStarted.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        });
+        SharedTaskQueue fast = new SharedTaskQueue(core, new MockTaskManager());
+        fast.setListener(new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                fastFired.countDown();
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        });
+        slow.start();
+        fast.start();
+        assertEquals(2, core.getTenantCount());
+
+        try {
+            // the slow tenant has more due triggers than there are dispatch threads
+            for (int i = 0; i < 5; i++) {
+                slow.schedule(TaskContext.createLocal("slow" + i), 0);
+            }
+            assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 20; i++) {
+                fast.schedule(TaskContext.createLocal("fast" + i), 10);
+            }
+            assertTrue(fastFired.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            slow.stop();
+            fast.stop();
+            core.stop();
+        }
+        assertEquals(0, core.getTenantCount());
+    }
+
+    @Test
+    public void testThreadCountIsIndependentOfTenants() throws Exception {
+        SchedulerCore core = new SchedulerCore(2);
+        core.start();
+        int before = Thread.activeCount();
+
+        List<SharedTaskQueue> queues = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(25);
+        try {
+            for (int i = 0; i < 25; i++) {
+                SharedTaskQueue q = new SharedTaskQueue(core, new MockTaskManager());
+                q.setListener(new TaskQueueListener() {
+                    @Override
+                    public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+                    }
+
+                    @Override
+                    public void onClockJump(long drift) {
+                    }
+                });
+                q.start();
+                q.schedule(TaskContext.createLocal("task"), 10);
+                queues.add(q);
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            // only the core's timer thread may have been started lazily
+            assertTrue(Thread.activeCount() - before <= 1);
+        } finally {
+            for (SharedTaskQueue q : queues) {
+                q.stop();
+            }
+            core.stop();
+        }
+    }
+
+    @Test
+    public void testAcquireAndRelease() {
+        SchedulerCore c1 = SchedulerCore.acquire(1);
+        SchedulerCore c2 = SchedulerCore.acquire(3);
+        assertSame(c1, c2);
+        assertEquals(1, c1.getDispatchThreadCount());
+        SchedulerCore.release(c1);
+        assertSame(c1, SchedulerCore.acquire(1));
+        SchedulerCore.release(c1);
+        SchedulerCore.release(c2);
+        SchedulerCore c3 = SchedulerCore.acquire(1);
+        assertNotSame(c1, c3);
+        SchedulerCore.release(c3);
+    }
+
+    @Test
+    public void testPrecisionModeIsRejected() {
+        SchedulerCore core = new SchedulerCore(1);
+        SharedTaskQueue q = new SharedTaskQueue(core, new MockTaskManager());
+        try {
+            q.setPrecisionMode(true);
+            fail("Should have thrown exception");
+        } catch (IllegalStateException ignored) {
+        }
+        assertNull(q.getPrecisionTimer());
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares LocalTaskQueue with NettyTaskQueue: the cost of scheduling and cancelling, the lateness of fired tasks,
+ * the number of threads each creates and the CPU time each uses. This is not run as part of the test suite; run it
+ * directly with an optional task count argument.
+ */
+public class TaskQueueBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        MockTaskManager taskManager = new MockTaskManager();
+
+        // warm up
+        run("warmup", new LocalTaskQueue(taskManager), count, true);
+        run("warmup", new NettyTaskQueue(taskManager, NettyTaskQueue.DEFAULT_TICK_MS), count, true);
+
+        run("LocalTaskQueue", new LocalTaskQueue(taskManager), count, false);
+        run("NettyTaskQueue", new NettyTaskQueue(taskManager, NettyTaskQueue.DEFAULT_TICK_MS), count, false);
+    }
+
+    private static void run(String name, AbstractTaskQueue queue, int count, boolean quiet) throws Exception {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        int threadsBefore = mx.getThreadCount();
+
+        final long[] lateness = new long[count];
+        final AtomicInteger index = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(count);
+        queue.setListener(new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                lateness[index.getAndIncrement()] = now - scheduledTime;
+                latch.countDown();
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        });
+        queue.start();
+        int threads = mx.getThreadCount() - threadsBefore;
+
+        TaskContext[] contexts = new TaskContext[count];
+        for (int i = 0; i < count; i++) {
+            contexts[i] = TaskContext.createLocal("task" + i);
+        }
+
+        long cpuStart = getTotalCpuTime(mx);
+
+        // schedule and cancel everything far in the future
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            queue.schedule(contexts[i], 3600000);
+        }
+        long scheduleTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            queue.cancel(contexts[i]);
+        }
+        long cancelTime = System.nanoTime() - start;
+
+        // then fire everything over the next two seconds
+        for (int i = 0; i < count; i++) {
+            queue.schedule(contexts[i], 100 + (i * 2000L / count));
+        }
+        latch.await(30, TimeUnit.SECONDS);
+        long cpu = getTotalCpuTime(mx) - cpuStart;
+        queue.stop();
+
+        if (!quiet) {
+            Arrays.sort(lateness);
+            System.out.println(name + " (" + count + " tasks)");
+            System.out.println("  threads created: " + threads);
+            System.out.println("  schedule:        " + scheduleTime / count + "ns/task");
+            System.out.println("  cancel:          " + cancelTime / count + "ns/task");
+            System.out.println("  median lateness: " + lateness[count / 2] + "ms");
+            System.out.println("  p99 lateness:    " + lateness[(int)(count * 0.99)] + "ms");
+            System.out.println("  CPU time:        " + cpu / 1000000 + "ms");
+        }
+    }
+
+    private static long getTotalCpuTime(ThreadMXBean mx) {
+        long total = 0;
+        for (long id : mx.getAllThreadIds()) {
+            long t = mx.getThreadCpuTime(id);
+            if (t > 0) {
+                total += t;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.queue;
+
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TriggerDispatcherTest {
+    @Test
+    public void testPriorityAndDeadlineOrdering() throws Exception {
+        final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(5);
+
+        TriggerDispatcher d = new TriggerDispatcher(new MockTaskManager(), 1);
+        d.setListener(new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                fired.add(taskContext.getTaskId());
+                latch.countDown();
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        });
+
+        // submit a burst of triggers before the dispatcher starts
+        long now = System.currentTimeMillis();
+        assertTrue(d.publish(TaskContext.createLocal("light1"), TaskPriority.LOW, now - 2000, 0));
+        assertTrue(d.publish(TaskContext.createLocal("light2"), TaskPriority.LOW, now - 1000, 0));
+        assertTrue(d.publish(TaskContext.createLocal("lock"), TaskPriority.HIGH, now - 500, 0));
+        assertTrue(d.publish(TaskContext.createLocal("misc"), TaskPriority.NORMAL, now, 0));
+        assertTrue(d.publish(TaskContext.createLocal("alarm"), TaskPriority.HIGH, now, 0));
+        assertEquals(5, d.getBacklog());
+
+        d.start();
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            d.stop();
+        }
+
+        assertEquals("lock", fired.get(0));
+        assertEquals("alarm", fired.get(1));
+        assertEquals("misc", fired.get(2));
+        assertEquals("light1", fired.get(3));
+        assertEquals("light2", fired.get(4));
+
+        assertEquals(2, d.getLatenessStats(TaskPriority.HIGH).getCount());
+        assertEquals(1, d.getLatenessStats(TaskPriority.NORMAL).getCount());
+        assertEquals(2, d.getLatenessStats(TaskPriority.LOW).getCount());
+        assertTrue(d.getLatenessStats(TaskPriority.LOW).getMaxLateness() >= 2000);
+    }
+
+    @Test
+    public void testOverflowAccounting() throws Exception {
+        TriggerDispatcher d = new TriggerDispatcher(new MockTaskManager(), 1, 4);
+        long now = System.currentTimeMillis();
+
+        // each priority class has its own bounded buffer
+        for (int i = 0; i < 4; i++) {
+            assertTrue(d.publish(TaskContext.createLocal("task" + i), TaskPriority.NORMAL, now, 0));
+        }
+        assertFalse(d.publish(TaskContext.createLocal("task4"), TaskPriority.NORMAL, now, 0));
+        assertTrue(d.publish(TaskContext.createLocal("task5"), TaskPriority.HIGH, now, 0));
+
+        assertEquals(5, d.getPublishedCount());
+        assertEquals(1, d.getRejectedCount());
+        assertEquals(5, d.getBacklog());
+
+        d.recordDropped(TaskContext.createLocal("task4"), now, 0);
+        assertEquals(1, d.getDroppedCount());
+    }
+
+    @Test
+    public void testQueueBackpressure() throws Exception {
+        final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> dropped = Collections.synchronizedList(new ArrayList<String>());
+
+        // a dispatcher with no threads of its own and room for one trigger per priority
+        TriggerDispatcher d = new TriggerDispatcher(new MockTaskManager(), 0, 1);
+        d.setListener(new TaskQueueListener() {
+            @Override
+            public void onTaskFired(TaskContext taskContext, long scheduledTime, long now, long nextRunTime) {
+                fired.add(taskContext.getTaskId());
+            }
+
+            @Override
+            public void onTaskDropped(TaskContext taskContext, long scheduledTime, long nextRunTime) {
+                dropped.add(taskContext.getTaskId());
+            }
+
+            @Override
+            public void onClockJump(long drift) {
+            }
+        });
+        LocalTaskQueue q = new LocalTaskQueue(d);
+        q.setMaxPublishWait(300);
+        q.start();
+        try {
+            TriggerRingBuffer.Entry entry = new TriggerRingBuffer.Entry();
+            q.schedule(TaskContext.createLocal("a"), 0);
+            q.schedule(TaskContext.createLocal("b"), 0);
+            waitForBacklog(d, 1);
+            Thread.sleep(50);
+
+            // once there's room, a trigger that became due later can't overtake the one waiting for it
+            assertTrue(d.dispatchNext(entry));
+            q.schedule(TaskContext.createLocal("c"), 0);
+            Thread.sleep(50);
+            assertTrue(d.dispatchNext(entry));
+            waitForBacklog(d, 1);
+            assertTrue(d.dispatchNext(entry));
+            assertEquals("a", fired.get(0));
+            assertEquals("b", fired.get(1));
+            assertEquals("c", fired.get(2));
+            assertTrue(dropped.isEmpty());
+
+            // a trigger that can't be published in time is dropped and reported
+            q.schedule(TaskContext.createLocal("d"), 0);
+            q.schedule(TaskContext.createLocal("e"), 0);
+            Thread.sleep(600);
+            assertEquals(1, dropped.size());
+            assertEquals("e", dropped.get(0));
+            assertEquals(1, q.getDiagnostics(0).getDroppedCount());
+            assertEquals(1, d.getBacklog());
+        } finally {
+            q.stop();
+        }
+    }
+
+    private void waitForBacklog(TriggerDispatcher d, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (d.getBacklog() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, d.getBacklog());
+    }
+
+    @Test
+    public void testRingBufferWrapAround() {
+        TriggerRingBuffer b = new TriggerRingBuffer(3);
+        assertEquals(4, b.getCapacity());
+
+        TriggerRingBuffer.Entry e = new TriggerRingBuffer.Entry();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(b.publish(TaskContext.createLocal("task" + i), i, i + 1));
+            assertTrue(b.publish(TaskContext.createLocal("task" + i), i, i + 2));
+            assertTrue(b.poll(e));
+            assertEquals(i, e.getScheduledTime());
+            assertEquals(i + 1, e.getNextRunTime());
+            assertTrue(b.poll(e));
+            assertEquals(i + 2, e.getNextRunTime());
+            assertFalse(b.poll(e));
+        }
+    }
+}
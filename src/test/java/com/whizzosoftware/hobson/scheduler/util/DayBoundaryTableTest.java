@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DayBoundaryTableTest {
+    private static final long HOUR = 3600000L;
+
+    @Test
+    public void testNormalDay() {
+        DateTimeZone tz = DateTimeZone.forID("America/Denver");
+        long now = DateHelper.getTime(2017, 3, 27, 9, 41, 0, tz);
+        assertEquals(DateHelper.getTime(2017, 3, 27, 0, 0, 0, tz), DayBoundaryTable.getStartOfDay(now, tz));
+        assertEquals(DateHelper.getTime(2017, 3, 28, 0, 0, 0, tz) - 1, DayBoundaryTable.getEndOfDay(now, tz));
+        assertEquals(DateHelper.getTime(2017, 3, 28, 0, 0, 0, tz) - now, DayBoundaryTable.getMillisecondsUntilMidnight(now, tz));
+
+        // the exact start of a day belongs to that day
+        long start = DateHelper.getTime(2017, 3, 27, 0, 0, 0, tz);
+        assertEquals(start, DayBoundaryTable.getStartOfDay(start, tz));
+        assertEquals(DateHelper.getTime(2017, 3, 26, 0, 0, 0, tz), DayBoundaryTable.getStartOfDay(start - 1, tz));
+    }
+
+    @Test
+    public void testSpringForward() {
+        // clocks go from 02:00 to 03:00 so the day is 23 hours long
+        DateTimeZone tz = DateTimeZone.forID("America/Denver");
+        long start = DateHelper.getTime(2017, 3, 12, 0, 0, 0, tz);
+        long now = DateHelper.getTime(2017, 3, 12, 12, 0, 0, tz);
+        assertEquals(start, DayBoundaryTable.getStartOfDay(now, tz));
+        assertEquals(start + 23 * HOUR, DayBoundaryTable.getStartOfNextDay(now, tz));
+        assertEquals(23 * HOUR, DayBoundaryTable.getMillisecondsUntilMidnight(start, tz));
+    }
+
+    @Test
+    public void testFallBack() {
+        // clocks go from 02:00 back to 01:00 so the day is 25 hours long
+        DateTimeZone tz = DateTimeZone.forID("America/Denver");
+        long start = DateHelper.getTime(2017, 11, 5, 0, 0, 0, tz);
+        long now = DateHelper.getTime(2017, 11, 5, 23, 30, 0, tz);
+        assertEquals(start, DayBoundaryTable.getStartOfDay(now, tz));
+        assertEquals(start + 25 * HOUR, DayBoundaryTable.getStartOfNextDay(now, tz));
+        assertEquals(25 * HOUR, DayBoundaryTable.getMillisecondsUntilMidnight(start, tz));
+
+        // both 01:30s are in the same day
+        long firstOneThirty = start + HOUR + 30 * 60000;
+        long secondOneThirty = firstOneThirty + HOUR;
+        assertEquals(start, DayBoundaryTable.getStartOfDay(firstOneThirty, tz));
+        assertEquals(start, DayBoundaryTable.getStartOfDay(secondOneThirty, tz));
+    }
+
+    @Test
+    public void testSpringForwardAtMidnight() {
+        // clocks went from 00:00 to 01:00 so midnight didn't exist and the day started at 01:00
+        DateTimeZone tz = DateTimeZone.forID("America/Sao_Paulo");
+        long start = new DateTime(2016, 10, 16, 1, 0, 0, 0, tz).getMillis();
+        long now = new DateTime(2016, 10, 16, 12, 0, 0, 0, tz).getMillis();
+        assertEquals(start, DayBoundaryTable.getStartOfDay(now, tz));
+        assertEquals(1, new DateTime(DayBoundaryTable.getStartOfDay(now, tz), tz).getHourOfDay());
+        assertEquals(start + 23 * HOUR, DayBoundaryTable.getStartOfNextDay(now, tz));
+
+        // the previous day ended at the transition
+        assertEquals(start - 1, DayBoundaryTable.getEndOfDay(start - 1, tz));
+        assertEquals(24 * HOUR, DayBoundaryTable.getMillisecondsUntilMidnight(start - 24 * HOUR, tz));
+    }
+
+    @Test
+    public void testRelativeDays() {
+        DateTimeZone tz = DateTimeZone.forID("America/Denver");
+        long now = DateHelper.getTime(2017, 3, 10, 9, 0, 0, tz);
+        assertEquals(DateHelper.getTime(2017, 3, 17, 0, 0, 0, tz), DayBoundaryTable.getStartOfDay(now, tz, 7));
+        assertEquals(DateHelper.getTime(2017, 3, 9, 0, 0, 0, tz), DayBoundaryTable.getStartOfDay(now, tz, -1));
+
+        // beyond the table falls back to a direct calculation
+        assertEquals(DateHelper.getTime(2019, 3, 10, 0, 0, 0, tz), DayBoundaryTable.getStartOfDay(now, tz, 730));
+    }
+
+    @Test
+    public void testRebuildOutsideTable() {
+        DateTimeZone tz = DateTimeZone.forID("Europe/London");
+        long now = DateHelper.getTime(2017, 6, 1, 12, 0, 0, tz);
+        DayBoundaryTable t = DayBoundaryTable.forZone(now, tz);
+        assertTrue(t.covers(now));
+        assertSame(t, DayBoundaryTable.forZone(now + 100 * 24 * HOUR, tz));
+
+        long later = DateHelper.getTime(2019, 6, 1, 12, 0, 0, tz);
+        assertFalse(t.covers(later));
+        assertEquals(DateHelper.getTime(2019, 6, 1, 0, 0, 0, tz), DayBoundaryTable.getStartOfDay(later, tz));
+        assertNotSame(t, DayBoundaryTable.forZone(later, tz));
+    }
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RunDayBitmapTest {
+    @Test
+    public void testSetAndCovers() {
+        DateTimeZone tz = DateTimeZone.forID("America/Denver");
+        long now = DateHelper.getTime(2015, 1, 1, 12, 0, 0, tz);
+        RunDayBitmap b = new RunDayBitmap(now, tz);
+        assertEquals(DateHelper.getTime(2015, 1, 1, 0, 0, 0, tz), b.getStartTime());
+        assertEquals(DateHelper.getTime(2016, 1, 2, 0, 0, 0, tz), b.getEndTime());
+
+        // days are local to the bitmap's zone so 11pm Denver time is still the same day
+        b.set(DateHelper.getTime(2015, 1, 1, 23, 0, 0, tz));
+        b.set(DateHelper.getTime(2015, 12, 31, 8, 0, 0, tz));
+        b.set(DateHelper.getTime(2016, 1, 1, 8, 0, 0, tz));
+        b.set(DateHelper.getTime(2016, 1, 2, 8, 0, 0, tz));
+        assertEquals(3, b.getRunDayCount());
+        assertTrue(b.isSet(DateHelper.getTime(2015, 1, 1, 0, 0, 0, tz)));
+        assertFalse(b.isSet(DateHelper.getTime(2015, 1, 2, 0, 0, 0, tz)));
+        assertTrue(b.isSet(DateHelper.getTime(2015, 12, 31, 23, 59, 59, tz)));
+        assertTrue(b.isSet(DateHelper.getTime(2016, 1, 1, 0, 0, 0, tz)));
+
+        assertTrue(b.covers(DateHelper.getTime(2016, 1, 1, 23, 59, 59, tz), tz));
+        assertFalse(b.covers(DateHelper.getTime(2016, 1, 2, 0, 0, 0, tz), tz));
+        assertFalse(b.covers(DateHelper.getTime(2014, 12, 31, 23, 59, 59, tz), tz));
+        assertFalse(b.covers(now, DateTimeZone.UTC));
+    }
+
+    @Test
+    public void testGetDay() {
+        assertEquals(0, RunDayBitmap.getDay(0, DateTimeZone.UTC));
+        assertEquals(-1, RunDayBitmap.getDay(-1, DateTimeZone.UTC));
+        assertEquals(-1, RunDayBitmap.getDay(0, DateTimeZone.forID("America/Denver")));
+    }
+}
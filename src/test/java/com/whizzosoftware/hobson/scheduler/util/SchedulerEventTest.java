@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SchedulerEventTest {
+    @Test
+    public void testNotRecording() {
+        // with no recording running nothing is enabled, with or without JFR on the runtime
+        for (SchedulerEvent.Type t : SchedulerEvent.Type.values()) {
+            SchedulerEvent e = SchedulerEvent.begin(t);
+            assertFalse(e.isEnabled());
+            e.set("task", "task1").commit();
+        }
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        if (!SchedulerEvent.isAvailable()) {
+            return;
+        }
+
+        // the recording API is only used reflectively since the plugin builds against runtimes without it
+        Class recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, SchedulerEvent.Type.QUEUE_FIRE.getName());
+        recordingClass.getMethod("disable", String.class).invoke(recording, SchedulerEvent.Type.DAY_RESET.getName());
+        recordingClass.getMethod("start").invoke(recording);
+        try {
+            SchedulerEvent.refresh();
+            assertTrue(SchedulerEvent.begin(SchedulerEvent.Type.QUEUE_FIRE).isEnabled());
+            assertFalse(SchedulerEvent.begin(SchedulerEvent.Type.DAY_RESET).isEnabled());
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+        }
+
+        SchedulerEvent.refresh();
+        assertFalse(SchedulerEvent.begin(SchedulerEvent.Type.QUEUE_FIRE).isEnabled());
+    }
+
+    @Test
+    public void testTypeNames() {
+        assertEquals("com.whizzosoftware.hobson.scheduler.QueueFire", SchedulerEvent.Type.QUEUE_FIRE.getName());
+        assertEquals("Recurrence Expansion", SchedulerEvent.Type.RECURRENCE_EXPANSION.getLabel());
+        assertEquals(4, SchedulerEvent.Type.RECURRENCE_EXPANSION.indexOf("count"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownField() {
+        SchedulerEvent.Type.DAY_RESET.indexOf("task");
+    }
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import com.whizzosoftware.hobson.scheduler.SolarOffset;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SolarCacheTest {
+    @Test
+    public void testCacheAndInvalidate() throws Exception {
+        DateTimeZone tz = DateTimeZone.forID("America/Denver");
+        LocalDate c = LocalDate.parse("2014-10-18");
+
+        SolarCache cache = new SolarCache(null, null);
+        assertFalse(cache.hasLocation());
+        assertNull(cache.getTime(c, tz, new SolarOffset("SS")));
+
+        assertTrue(cache.setLocation(39.3722, -104.8561));
+        assertEquals(SolarHelper.createCalendar(c, tz, new SolarOffset("SS+30"), 39.3722, -104.8561).getMillis(), cache.getTime(c, tz, new SolarOffset("SS+30")).getMillis());
+        assertEquals(SolarHelper.createCalendar(c, tz, new SolarOffset("SR-60"), 39.3722, -104.8561).getMillis(), cache.getTime(c, tz, new SolarOffset("SR-60")).getMillis());
+        assertEquals(1, cache.size());
+
+        // the same location shouldn't invalidate the cache
+        assertFalse(cache.setLocation(39.3722, -104.8561));
+        assertEquals(1, cache.size());
+
+        // a new location should
+        assertTrue(cache.setLocation(40.0, -105.0));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.scheduler.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SpreadHelperTest {
+    @Test
+    public void testNoWindow() {
+        assertEquals(0, SpreadHelper.getOffset("task1", 0));
+        assertEquals(0, SpreadHelper.getOffset(null, 30));
+    }
+
+    @Test
+    public void testOffsetIsStableAndBounded() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long offset = SpreadHelper.getOffset("task" + i, 30);
+            assertEquals(offset, SpreadHelper.getOffset("task" + i, 30));
+            assertTrue(offset >= -30000 && offset <= 30000);
+            min = Math.min(min, offset);
+            max = Math.max(max, offset);
+        }
+
+        // 1000 tasks should be spread over most of the window
+        assertTrue(min < -25000);
+        assertTrue(max > 25000);
+    }
+}